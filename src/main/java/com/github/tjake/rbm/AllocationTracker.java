@@ -0,0 +1,174 @@
+package com.github.tjake.rbm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counts the bytes a thread allocates per batch of training, using the
+ * per thread allocation counters of the JVM. Wrap a batch in begin() and
+ * end(), from the thread doing the work.
+ *
+ * The first warmup batches are left out of the statistics, they allocate
+ * the buffers later batches reuse. What's left is the steady state a
+ * {@link #checkBudget(long)} can hold to a limit.
+ *
+ * On JVMs without the counters begin() returns -1 and nothing is recorded.
+ */
+public final class AllocationTracker
+{
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean SUPPORTED = enable();
+
+    private final String name;
+    private final int warmup;
+
+    private long seen;
+    private long batches;
+    private long totalBytes;
+    private long maxBytes;
+    private long lastBytes;
+
+    public AllocationTracker(String name, int warmup)
+    {
+        this.name = name;
+        this.warmup = warmup;
+    }
+
+    //The counters are an extension of HotSpot's ThreadMXBean, only touched
+    //through Counters once it's known to be there
+    private static boolean enable()
+    {
+        try
+        {
+            Class.forName("com.sun.management.ThreadMXBean");
+            return Counters.enable(THREADS);
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    public static boolean isSupported()
+    {
+        return SUPPORTED;
+    }
+
+    //Bytes allocated by the current thread so far, or -1 if unsupported
+    public static long allocatedBytes()
+    {
+        return SUPPORTED ? Counters.allocatedBytes(THREADS) : -1;
+    }
+
+    public long begin()
+    {
+        return allocatedBytes();
+    }
+
+    //Records the bytes the current thread allocated since begin
+    public void end(long begin)
+    {
+        if (begin < 0)
+        {
+            return;
+        }
+
+        record(allocatedBytes() - begin);
+    }
+
+    private synchronized void record(long bytes)
+    {
+        lastBytes = bytes;
+
+        if (++seen <= warmup)
+        {
+            return;
+        }
+
+        batches++;
+        totalBytes += bytes;
+        maxBytes = Math.max(maxBytes, bytes);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    //Batches recorded after the warmup
+    public synchronized long getBatches()
+    {
+        return batches;
+    }
+
+    public synchronized long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    public synchronized long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public synchronized long getLastBytes()
+    {
+        return lastBytes;
+    }
+
+    public synchronized double getMeanBytes()
+    {
+        return batches == 0 ? 0.0 : (double) totalBytes / batches;
+    }
+
+    //Throws if any batch after the warmup allocated more than maxBytes
+    public synchronized void checkBudget(long maxBytes)
+    {
+        if (this.maxBytes > maxBytes)
+        {
+            throw new IllegalStateException(name + " allocated "
+                    + this.maxBytes + " bytes in one batch, the budget is "
+                    + maxBytes);
+        }
+    }
+
+    //Only loaded, and linked against com.sun.management, on JVMs that have it
+    private static final class Counters
+    {
+        static boolean enable(ThreadMXBean threads)
+        {
+            if (!(threads instanceof com.sun.management.ThreadMXBean))
+            {
+                return false;
+            }
+
+            com.sun.management.ThreadMXBean sun =
+                    (com.sun.management.ThreadMXBean) threads;
+
+            if (!sun.isThreadAllocatedMemorySupported())
+            {
+                return false;
+            }
+
+            sun.setThreadAllocatedMemoryEnabled(true);
+            return true;
+        }
+
+        static long allocatedBytes(ThreadMXBean threads)
+        {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(
+                "%s: %d batches, %.0f bytes/batch mean, %d max",
+                name,
+                batches,
+                getMeanBytes(),
+                maxBytes);
+    }
+}
@@ -6,6 +6,9 @@ package com.github.tjake.rbm;
  */
 public class BinaryLayer extends Layer
 {
+    //Intensities above it become 1
+    public static final float THRESHOLD = 30;
+
     private final Layer delegate;
 
     public BinaryLayer(Layer delegate)
@@ -21,7 +24,7 @@ public class BinaryLayer extends Layer
         for (int i = 0; i < delegate.size(); i++)
         {
             float v = delegate.get(i);
-            delegate.set(i, v > 30 ? 1.0f : 0.0f);
+            delegate.set(i, v > THRESHOLD ? 1.0f : 0.0f);
         }
     }
 
@@ -89,6 +92,36 @@ public class BinaryLayer extends Layer
         delegate.copy(src);
     }
 
+    @Override
+    public void assign(float[] values)
+    {
+        delegate.assign(values);
+    }
+
+    @Override
+    public float dot(int from, float[] w, int wFrom, int length)
+    {
+        return delegate.dot(from, w, wFrom, length);
+    }
+
+    @Override
+    public void copyTo(int from, float[] dest, int destFrom, int length)
+    {
+        delegate.copyTo(from, dest, destFrom, length);
+    }
+
+    @Override
+    public boolean hasArray()
+    {
+        return delegate.hasArray();
+    }
+
+    @Override
+    public void release()
+    {
+        delegate.release();
+    }
+
     @Override
     public float[] get()
     {
@@ -0,0 +1,205 @@
+package com.github.tjake.rbm;
+
+/**
+ * A view of several layers one after the other, like the hidden units of
+ * one level followed by the one hot label units fed to the next.
+ *
+ * Nothing is copied: reads and writes go to the layers it's made of, and
+ * the kernels read it through {@link #dot(int, float[], int, int)} part by
+ * part. get() returns a copy.
+ */
+public class ConcatLayer extends Layer
+{
+    private final Layer[] parts;
+    //offsets[p] is the index of the first unit of parts[p]
+    private final int[] offsets;
+    private final int size;
+
+    public ConcatLayer(Layer... parts)
+    {
+        super((float[]) null);
+
+        if (parts.length == 0)
+        {
+            throw new IllegalArgumentException("No layers to concatenate");
+        }
+
+        this.parts = parts.clone();
+        this.offsets = new int[parts.length];
+
+        int size = 0;
+        for (int p = 0; p < parts.length; p++)
+        {
+            offsets[p] = size;
+            size += parts[p].size();
+        }
+
+        this.size = size;
+    }
+
+    //The part holding unit i
+    private int part(int i)
+    {
+        if (i < 0 || i >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+        }
+
+        int p = parts.length - 1;
+        while (offsets[p] > i)
+        {
+            p--;
+        }
+
+        return p;
+    }
+
+    @Override
+    public void set(int i, float f)
+    {
+        int p = part(i);
+        parts[p].set(i - offsets[p], f);
+    }
+
+    @Override
+    public float get(int i)
+    {
+        int p = part(i);
+        return parts[p].get(i - offsets[p]);
+    }
+
+    @Override
+    public void add(int i, float f)
+    {
+        int p = part(i);
+        parts[p].add(i - offsets[p], f);
+    }
+
+    @Override
+    public void div(int i, float f)
+    {
+        int p = part(i);
+        parts[p].div(i - offsets[p], f);
+    }
+
+    @Override
+    public void mult(int i, float f)
+    {
+        int p = part(i);
+        parts[p].mult(i - offsets[p], f);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    //A heap layer with the values of every part
+    @Override
+    public Layer clone()
+    {
+        return new Layer(get());
+    }
+
+    @Override
+    public void clear()
+    {
+        for (Layer part : parts)
+        {
+            part.clear();
+        }
+    }
+
+    @Override
+    public void copy(float[] src)
+    {
+        copyTo(0, src, 0, size);
+    }
+
+    @Override
+    public void assign(float[] values)
+    {
+        for (int p = 0; p < parts.length; p++)
+        {
+            Layer part = parts[p];
+
+            if (part.hasArray())
+            {
+                System.arraycopy(values, offsets[p], part.get(), 0, part.size());
+            }
+            else
+            {
+                for (int i = 0; i < part.size(); i++)
+                {
+                    part.set(i, values[offsets[p] + i]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public float dot(int from, float[] w, int wFrom, int length)
+    {
+        final int to = from + length;
+        float sum = 0.0f;
+
+        for (int p = 0; p < parts.length; p++)
+        {
+            final int start = Math.max(from, offsets[p]);
+            final int end = Math.min(to, offsets[p] + parts[p].size());
+
+            if (start < end)
+            {
+                sum += parts[p].dot(
+                        start - offsets[p],
+                        w,
+                        wFrom + start - from,
+                        end - start);
+            }
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void copyTo(int from, float[] dest, int destFrom, int length)
+    {
+        final int to = from + length;
+
+        for (int p = 0; p < parts.length; p++)
+        {
+            final int start = Math.max(from, offsets[p]);
+            final int end = Math.min(to, offsets[p] + parts[p].size());
+
+            if (start < end)
+            {
+                parts[p].copyTo(
+                        start - offsets[p],
+                        dest,
+                        destFrom + start - from,
+                        end - start);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasArray()
+    {
+        return false;
+    }
+
+    //The parts belong to whoever made the view
+    @Override
+    public void release()
+    {
+    }
+
+    @Override
+    public float[] get()
+    {
+        float[] copy = new float[size];
+        copy(copy);
+        return copy;
+    }
+}
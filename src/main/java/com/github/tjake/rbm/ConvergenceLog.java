@@ -0,0 +1,67 @@
+package com.github.tjake.rbm;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records training error against wall clock time, so different ways of
+ * training can be compared. Safe to record into from many threads.
+ */
+public class ConvergenceLog
+{
+    private final String name;
+    private final long start = System.nanoTime();
+    private final List<Point> points = new ArrayList<>();
+
+    public ConvergenceLog(String name)
+    {
+        this.name = name;
+    }
+
+    public void record(long batches, double error)
+    {
+        Point point = new Point(
+                (System.nanoTime() - start) / 1000000,
+                batches,
+                error);
+
+        synchronized (points)
+        {
+            points.add(point);
+        }
+    }
+
+    public List<Point> getPoints()
+    {
+        synchronized (points)
+        {
+            return new ArrayList<>(points);
+        }
+    }
+
+    public void print(PrintStream out)
+    {
+        out.println(name + ": elapsed ms, batches, error");
+        for (Point point : getPoints())
+        {
+            out.println(name + ": " + point.elapsedMillis
+                    + ", " + point.batches
+                    + ", " + point.error);
+        }
+    }
+
+    public static class Point
+    {
+        public final long elapsedMillis;
+        public final long batches;
+        public final double error;
+
+        Point(long elapsedMillis, long batches, double error)
+        {
+            this.elapsedMillis = elapsedMillis;
+            this.batches = batches;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package com.github.tjake.rbm;
+
+import com.github.tjake.util.Utilities;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An RBM over a rows x cols image whose hidden units share a few small
+ * filters instead of each having a weight for every pixel, with
+ * probabilistic max-pooling on top (Lee et al., Convolutional Deep Belief
+ * Networks, 2009).
+ *
+ * Every filter is slid over the image ("valid" positions only) to give a
+ * map of detection units. The maps are divided into poolSize x poolSize
+ * blocks in which at most one detection unit is on, and each block has a
+ * pooling unit that is on when one of them is. The pooling units are the
+ * output of the level, what activateHidden returns and the next level of a
+ * stack sees. Going down, a pooling unit is spread evenly over its block.
+ *
+ * The filters are the weight rows and there is one hidden bias per filter
+ * and one visible bias per pixel. The parameters are small, so they always
+ * live on the heap. Train it with {@link ConvolutionalRBMTrainer}.
+ */
+public class ConvolutionalRBM extends SimpleRBM
+{
+    static final byte[] MAGIC = {
+            (byte) 0xf0,
+            (byte) 0x0d,
+            (byte) 0xc0,
+            (byte) 0x4e
+    };
+
+    private Shape shape;
+
+    // Per thread buffers of the read only kernels: a detection map and room
+    // for a visible layer that isn't a heap layer
+    private final ThreadLocal<float[][]> scratch = ThreadLocal.withInitial(
+            () -> new float[][] {
+                    new float[shape.getDetectionSize()],
+                    new float[shape.getNumVisible()]
+            });
+
+    ConvolutionalRBM()
+    {
+    }
+
+    public ConvolutionalRBM(
+            Shape shape,
+            boolean gaussianVisibles,
+            LayerFactory lfactory)
+    {
+        this.shape = shape;
+        this.lfactory = lfactory;
+        this.gaussianVisibles = gaussianVisibles;
+
+        biasVisible = new Layer(shape.getNumVisible());
+        for (int i = 0; i < biasVisible.size(); i++)
+        {
+            biasVisible.set(i, (float) (scale * rand.nextGaussian()));
+        }
+
+        biasHidden = new Layer(shape.filters);
+        weights = new Layer[shape.filters];
+
+        for (int k = 0; k < shape.filters; k++)
+        {
+            biasHidden.set(k, (float) (scale * rand.nextGaussian()));
+            weights[k] = new Layer(shape.getFilterLength());
+
+            for (int j = 0; j < weights[k].size(); j++)
+            {
+                weights[k].set(j, (float) (2 * scale * rand.nextGaussian()));
+            }
+        }
+    }
+
+    public Shape getShape()
+    {
+        return shape;
+    }
+
+    @Override
+    public int getNumHidden()
+    {
+        return shape.getNumHidden();
+    }
+
+    @Override
+    SimpleRBM blank()
+    {
+        ConvolutionalRBM blank = new ConvolutionalRBM();
+        blank.shape = shape;
+        return blank;
+    }
+
+    @Override
+    public void save(DataOutput dataOutput) throws IOException
+    {
+        dataOutput.write(MAGIC);
+        saveFields(dataOutput);
+    }
+
+    @Override
+    void saveFields(DataOutput dataOutput) throws IOException
+    {
+        dataOutput.writeInt(shape.rows);
+        dataOutput.writeInt(shape.cols);
+        dataOutput.writeInt(shape.filters);
+        dataOutput.writeInt(shape.filterSize);
+        dataOutput.writeInt(shape.poolSize);
+
+        super.saveFields(dataOutput);
+    }
+
+    @Override
+    public void load(DataInput dataInput, LayerFactory lfactory)
+            throws IOException
+    {
+        byte[] magic = new byte[4];
+        dataInput.readFully(magic);
+
+        if (!Arrays.equals(MAGIC, magic))
+        {
+            throw new IOException("Bad File Format");
+        }
+
+        loadFields(dataInput, lfactory);
+    }
+
+    @Override
+    void loadFields(DataInput dataInput, LayerFactory lfactory)
+            throws IOException
+    {
+        try
+        {
+            shape = new Shape(
+                    dataInput.readInt(),
+                    dataInput.readInt(),
+                    dataInput.readInt(),
+                    dataInput.readInt(),
+                    dataInput.readInt());
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException("Bad File Format", e);
+        }
+
+        super.loadFields(dataInput, lfactory);
+
+        if (biasVisible.size() != shape.getNumVisible()
+                || weights.length != shape.filters
+                || weights[0].size() != shape.getFilterLength())
+        {
+            throw new IOException("Bad File Format");
+        }
+
+        // The layer factory may have put them off the heap
+        biasVisible = onHeap(biasVisible);
+        biasHidden = onHeap(biasHidden);
+        for (int k = 0; k < weights.length; k++)
+        {
+            weights[k] = onHeap(weights[k]);
+        }
+    }
+
+    private static Layer onHeap(Layer layer)
+    {
+        return layer.hasArray() ? layer : new Layer(layer.get());
+    }
+
+    // The pooling unit probabilities given the image visible
+    @Override
+    public Layer activateHidden(final Layer visible, final Layer workingHidden)
+    {
+        if (visible.size() != shape.getNumVisible())
+        {
+            throw new IllegalArgumentException("Mismatched input "
+                    + visible.size()
+                    + " != "
+                    + shape.getNumVisible());
+        }
+
+        final float[][] buffers = scratch.get();
+        final float[] map = buffers[0];
+        final float[] v = array(visible, buffers[1]);
+        final float[] out = workingHidden.hasArray()
+                ? workingHidden.get()
+                : new float[workingHidden.size()];
+
+        for (int k = 0; k < shape.filters; k++)
+        {
+            filter(k, v, map);
+            pool(k, map, out);
+        }
+
+        if (!workingHidden.hasArray())
+        {
+            workingHidden.assign(out);
+        }
+
+        return workingHidden;
+    }
+
+    // The image given the pooling units, only the first getNumHidden()
+    // units of hidden are used
+    @Override
+    public Layer activateVisible(final Layer hidden, final Layer workingVisible)
+    {
+        final float[] map = scratch.get()[0];
+        final float[] out = workingVisible.hasArray()
+                ? workingVisible.get()
+                : new float[workingVisible.size()];
+        final int pooled = shape.getPooledRows() * shape.getPooledCols();
+        final float share = 1.0f / (shape.poolSize * shape.poolSize);
+
+        Arrays.fill(out, 0, shape.getNumVisible(), 0.0f);
+
+        for (int k = 0; k < shape.filters; k++)
+        {
+            // Each detection unit is on with 1 / poolSize^2 of the
+            // probability of its pooling unit
+            for (int a = 0; a < shape.getPooledRows(); a++)
+            {
+                for (int b = 0; b < shape.getPooledCols(); b++)
+                {
+                    final float p = hidden.get(
+                            k * pooled + a * shape.getPooledCols() + b) * share;
+                    fillBlock(map, a, b, p);
+                }
+            }
+
+            reconstruct(k, map, out);
+        }
+
+        addVisibleBias(out);
+
+        if (!workingVisible.hasArray())
+        {
+            workingVisible.assign(out);
+        }
+
+        return workingVisible;
+    }
+
+    @Override
+    public void activateVisible(
+            final Layer[] hidden,
+            final Layer[] workingVisible,
+            int from,
+            int to)
+    {
+        for (int n = from; n < to; n++)
+        {
+            activateVisible(hidden[n], workingVisible[n]);
+        }
+    }
+
+    // F(v) = visible energy - sum over filters and blocks of
+    // log(1 + sum of exp(detection input) over the block)
+    @Override
+    public void freeEnergy(
+            final Layer[] visible,
+            final float[] energy,
+            final int from,
+            final int to)
+    {
+        final float[][] buffers = scratch.get();
+        final float[] map = buffers[0];
+
+        for (int n = from; n < to; n++)
+        {
+            final float[] v = array(visible[n], buffers[1]);
+            float e = visibleEnergy(visible[n], shape.getNumVisible());
+
+            for (int k = 0; k < shape.filters; k++)
+            {
+                filter(k, v, map);
+                e -= pool(k, map, null);
+            }
+
+            energy[n] = e;
+        }
+    }
+
+    // The values of layer, in its own array when it has one
+    private float[] array(Layer layer, float[] buffer)
+    {
+        if (layer.hasArray() && layer.get().length == shape.getNumVisible())
+        {
+            return layer.get();
+        }
+
+        layer.copyTo(0, buffer, 0, shape.getNumVisible());
+        return buffer;
+    }
+
+    // The input of every detection unit of filter k given the image v: the
+    // filter correlated with v at every valid position, plus its bias
+    void filter(final int k, final float[] v, final float[] map)
+    {
+        final int f = shape.filterSize;
+        final int cols = shape.cols;
+        final int hiddenCols = shape.getHiddenCols();
+        final float[] w = weights[k].get();
+
+        Arrays.fill(map, 0, shape.getDetectionSize(), biasHidden.get(k));
+
+        for (int i = 0; i < shape.getHiddenRows(); i++)
+        {
+            final int mapRow = i * hiddenCols;
+
+            for (int r = 0; r < f; r++)
+            {
+                final int visibleRow = (i + r) * cols;
+
+                for (int s = 0; s < f; s++)
+                {
+                    final float ws = w[r * f + s];
+                    final int start = visibleRow + s;
+
+                    for (int j = 0; j < hiddenCols; j++)
+                    {
+                        map[mapRow + j] += ws * v[start + j];
+                    }
+                }
+            }
+        }
+    }
+
+    // Probabilistic max-pooling of the detection inputs of filter k, in
+    // place: map ends up with the probability of every detection unit and
+    // pooled (if given) with the probability of every pooling unit of k.
+    // Returns the log of the partition function of all blocks.
+    float pool(final int k, final float[] map, final float[] pooled)
+    {
+        final int c = shape.poolSize;
+        final int hiddenCols = shape.getHiddenCols();
+        final int pooledCols = shape.getPooledCols();
+        final int base = k * shape.getPooledRows() * pooledCols;
+        float logZ = 0.0f;
+
+        for (int a = 0; a < shape.getPooledRows(); a++)
+        {
+            for (int b = 0; b < pooledCols; b++)
+            {
+                final int first = a * c * hiddenCols + b * c;
+
+                // Shifted by the biggest input (or 0, the all off state) so
+                // exp never overflows
+                float max = 0.0f;
+                for (int r = 0; r < c; r++)
+                {
+                    for (int s = 0; s < c; s++)
+                    {
+                        max = Math.max(max, map[first + r * hiddenCols + s]);
+                    }
+                }
+
+                final float off = (float) Math.exp(-max);
+                float z = off;
+                for (int r = 0; r < c; r++)
+                {
+                    for (int s = 0; s < c; s++)
+                    {
+                        final int u = first + r * hiddenCols + s;
+                        map[u] = (float) Math.exp(map[u] - max);
+                        z += map[u];
+                    }
+                }
+
+                final float inverse = 1.0f / z;
+                for (int r = 0; r < c; r++)
+                {
+                    for (int s = 0; s < c; s++)
+                    {
+                        map[first + r * hiddenCols + s] *= inverse;
+                    }
+                }
+
+                if (pooled != null)
+                {
+                    pooled[base + a * pooledCols + b] = 1.0f - off * inverse;
+                }
+
+                logZ += max + (float) Math.log(z);
+            }
+        }
+
+        return logZ;
+    }
+
+    // Sets every detection unit of block (a, b) to value
+    private void fillBlock(final float[] map, int a, int b, float value)
+    {
+        final int c = shape.poolSize;
+        final int hiddenCols = shape.getHiddenCols();
+        final int first = a * c * hiddenCols + b * c;
+
+        for (int r = 0; r < c; r++)
+        {
+            Arrays.fill(map, first + r * hiddenCols, first + r * hiddenCols + c, value);
+        }
+    }
+
+    // Adds the detection units of filter k, convolved with the filter, to
+    // the image v
+    void reconstruct(final int k, final float[] map, final float[] v)
+    {
+        final int f = shape.filterSize;
+        final int cols = shape.cols;
+        final int hiddenCols = shape.getHiddenCols();
+        final float[] w = weights[k].get();
+
+        for (int i = 0; i < shape.getHiddenRows(); i++)
+        {
+            final int mapRow = i * hiddenCols;
+
+            for (int r = 0; r < f; r++)
+            {
+                final int visibleRow = (i + r) * cols;
+
+                for (int s = 0; s < f; s++)
+                {
+                    final float ws = w[r * f + s];
+                    final int start = visibleRow + s;
+
+                    for (int j = 0; j < hiddenCols; j++)
+                    {
+                        v[start + j] += ws * map[mapRow + j];
+                    }
+                }
+            }
+        }
+    }
+
+    // Adds filter k's part of the weight gradient, the detection units
+    // correlated with the image at every filter offset, to gradient
+    void correlate(
+            final int k,
+            final float[] map,
+            final float[] v,
+            final float[] gradient,
+            final float sign)
+    {
+        final int f = shape.filterSize;
+        final int cols = shape.cols;
+        final int hiddenCols = shape.getHiddenCols();
+
+        for (int r = 0; r < f; r++)
+        {
+            for (int s = 0; s < f; s++)
+            {
+                float sum = 0.0f;
+
+                for (int i = 0; i < shape.getHiddenRows(); i++)
+                {
+                    sum += dot(map, i * hiddenCols, v, (i + r) * cols + s, hiddenCols);
+                }
+
+                gradient[r * f + s] += sign * sum;
+            }
+        }
+    }
+
+    void addVisibleBias(final float[] v)
+    {
+        for (int i = 0; i < shape.getNumVisible(); i++)
+        {
+            v[i] += biasVisible.get(i);
+
+            if (!gaussianVisibles)
+            {
+                v[i] = Utilities.sigmoid(v[i]);
+            }
+        }
+    }
+
+    /**
+     * The image size, number and size of the filters and pooling block size
+     * of a convolutional level. Detection maps that don't divide into whole
+     * pooling blocks lose their last rows and columns.
+     */
+    public static final class Shape
+    {
+        public final int rows;
+        public final int cols;
+        public final int filters;
+        public final int filterSize;
+        public final int poolSize;
+
+        public Shape(int rows, int cols, int filters, int filterSize, int poolSize)
+        {
+            if (rows <= 0 || cols <= 0 || filters <= 0
+                    || filterSize <= 0 || poolSize <= 0)
+            {
+                throw new IllegalArgumentException("Invalid shape");
+            }
+
+            if ((rows - filterSize + 1) / poolSize == 0
+                    || (cols - filterSize + 1) / poolSize == 0)
+            {
+                throw new IllegalArgumentException("A " + rows + "x" + cols
+                        + " image is too small for " + filterSize
+                        + "x" + filterSize + " filters pooled by " + poolSize);
+            }
+
+            this.rows = rows;
+            this.cols = cols;
+            this.filters = filters;
+            this.filterSize = filterSize;
+            this.poolSize = poolSize;
+        }
+
+        public int getNumVisible()
+        {
+            return rows * cols;
+        }
+
+        public int getPooledRows()
+        {
+            return (rows - filterSize + 1) / poolSize;
+        }
+
+        public int getPooledCols()
+        {
+            return (cols - filterSize + 1) / poolSize;
+        }
+
+        public int getHiddenRows()
+        {
+            return getPooledRows() * poolSize;
+        }
+
+        public int getHiddenCols()
+        {
+            return getPooledCols() * poolSize;
+        }
+
+        // Detection units of one filter
+        public int getDetectionSize()
+        {
+            return getHiddenRows() * getHiddenCols();
+        }
+
+        public int getFilterLength()
+        {
+            return filterSize * filterSize;
+        }
+
+        // Pooling units of every filter, the output of the level
+        public int getNumHidden()
+        {
+            return filters * getPooledRows() * getPooledCols();
+        }
+
+        // Multiply-adds of one up pass, for comparison with the
+        // getNumVisible() * numHidden of a fully connected level
+        public long getFlops()
+        {
+            return (long) filters * getDetectionSize() * getFilterLength();
+        }
+
+        @Override
+        public String toString()
+        {
+            return rows + "x" + cols + ", " + filters + " " + filterSize
+                    + "x" + filterSize + " filters, " + poolSize + "x"
+                    + poolSize + " pooling -> " + getNumHidden();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.github.tjake.rbm;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Contrastive divergence for a {@link ConvolutionalRBM}, one up/down pass
+ * per sample like {@link SimpleRBMTrainer} and with the same optimizers,
+ * schedules and sparsity target.
+ *
+ * The gradient of a filter is summed over every position it's applied at,
+ * so it's averaged over the detection units of a map as well as over the
+ * batch. The detection maps of one sample are all that's kept, the
+ * gradient is accumulated sample by sample.
+ */
+public class ConvolutionalRBMTrainer extends SimpleRBMTrainer
+{
+    // Detection unit probabilities (then samples) of the positive phase
+    // of every filter, and one map for the negative phase
+    private float[][] hPos;
+    private float[] hNeg;
+    private float[] vPos;
+    private float[] vNeg;
+
+    private float[][] gFilter;
+    private float[] gVisible;
+    private float[] gHidden;
+    private float[] meanHidden;
+
+    public ConvolutionalRBMTrainer(
+            float momentum,
+            float l2,
+            Float targetSparsity,
+            Float learningRate)
+    {
+        super(momentum, l2, targetSparsity, learningRate);
+    }
+
+    @Override
+    double learnBatch(
+            final SimpleRBM simpleRBM,
+            List<Layer> inputBatch,
+            boolean reverse)
+    {
+        if (reverse)
+        {
+            throw new UnsupportedOperationException(
+                    "Convolutional RBMs are only trained bottom up");
+        }
+
+        final ConvolutionalRBM rbm = (ConvolutionalRBM) simpleRBM;
+        final ConvolutionalRBM.Shape shape = rbm.getShape();
+        final int batchSize = inputBatch.size();
+        final int numVisible = shape.getNumVisible();
+        final int filters = shape.filters;
+        final int detections = shape.getDetectionSize();
+        final Random random = ThreadLocalRandom.current();
+
+        allocate(shape);
+
+        for (float[] g : gFilter)
+        {
+            Arrays.fill(g, 0.0f);
+        }
+
+        Arrays.fill(gVisible, 0.0f);
+        Arrays.fill(gHidden, 0.0f);
+        Arrays.fill(meanHidden, 0.0f);
+
+        for (int b = 0; b < batchSize; b++)
+        {
+            Layer input = inputBatch.get(b);
+
+            if (input.size() != numVisible)
+            {
+                throw new IllegalArgumentException("Mismatched input "
+                        + input.size());
+            }
+
+            input.copy(vPos);
+            Arrays.fill(vNeg, 0.0f);
+
+            // Up, then down from a sample of the detection units
+            for (int k = 0; k < filters; k++)
+            {
+                final float[] h = hPos[k];
+                rbm.filter(k, vPos, h);
+                rbm.pool(k, h, null);
+                rbm.correlate(k, h, vPos, gFilter[k], 1.0f);
+
+                final float sum = sum(h, detections);
+                gHidden[k] += sum;
+                meanHidden[k] += sum;
+
+                sample(shape, h, random);
+                rbm.reconstruct(k, h, vNeg);
+            }
+
+            rbm.addVisibleBias(vNeg);
+
+            // And up again
+            for (int k = 0; k < filters; k++)
+            {
+                rbm.filter(k, vNeg, hNeg);
+                rbm.pool(k, hNeg, null);
+                rbm.correlate(k, hNeg, vNeg, gFilter[k], -1.0f);
+                gHidden[k] -= sum(hNeg, detections);
+            }
+
+            for (int i = 0; i < numVisible; i++)
+            {
+                gVisible[i] += vPos[i] - vNeg[i];
+            }
+        }
+
+        optimizer.nextBatch();
+        final float rate = schedule.rate(learningRate, optimizer.batch - 1);
+        final float perUnit = 1.0f / ((float) batchSize * detections);
+
+        for (int k = 0; k < filters; k++)
+        {
+            final float[] g = gFilter[k];
+            final float[] w = rbm.weights[k].get();
+
+            for (int j = 0; j < g.length; j++)
+            {
+                g[j] = g[j] * perUnit - l2 * w[j];
+            }
+
+            optimizer.apply(k, w, g, 0, g.length, rate, updateThreshold);
+
+            gHidden[k] *= perUnit;
+
+            // Pulls the mean activation of each filter towards the target
+            if (targetSparsity != null)
+            {
+                gHidden[k] += targetSparsity - meanHidden[k] * perUnit;
+            }
+        }
+
+        double error = 0.0;
+
+        for (int i = 0; i < numVisible; i++)
+        {
+            gVisible[i] /= batchSize;
+            error += gVisible[i] * gVisible[i];
+        }
+
+        update(rbm.biasVisible, filters, gVisible, rate);
+        update(rbm.biasHidden, filters + 1, gHidden, rate);
+
+        return Math.sqrt(error / numVisible);
+    }
+
+    // Turns the detection probabilities of every pooling block into a
+    // sample: at most one unit of a block is on
+    private static void sample(
+            final ConvolutionalRBM.Shape shape,
+            final float[] map,
+            final Random random)
+    {
+        final int c = shape.poolSize;
+        final int hiddenCols = shape.getHiddenCols();
+
+        for (int a = 0; a < shape.getPooledRows(); a++)
+        {
+            for (int b = 0; b < shape.getPooledCols(); b++)
+            {
+                final int first = a * c * hiddenCols + b * c;
+                float u = random.nextFloat();
+
+                for (int r = 0; r < c; r++)
+                {
+                    for (int s = 0; s < c; s++)
+                    {
+                        final int i = first + r * hiddenCols + s;
+                        final float p = map[i];
+
+                        // u goes negative at the chosen unit, then stays
+                        map[i] = u >= 0.0f && u < p ? 1.0f : 0.0f;
+                        u -= p;
+                    }
+                }
+            }
+        }
+    }
+
+    private static float sum(final float[] map, final int length)
+    {
+        float sum = 0.0f;
+        for (int i = 0; i < length; i++)
+        {
+            sum += map[i];
+        }
+
+        return sum;
+    }
+
+    private void allocate(ConvolutionalRBM.Shape shape)
+    {
+        if (hPos == null
+                || hPos.length != shape.filters
+                || hNeg.length != shape.getDetectionSize()
+                || vPos.length != shape.getNumVisible()
+                || gFilter[0].length != shape.getFilterLength())
+        {
+            hPos = new float[shape.filters][shape.getDetectionSize()];
+            hNeg = new float[shape.getDetectionSize()];
+            vPos = new float[shape.getNumVisible()];
+            vNeg = new float[shape.getNumVisible()];
+
+            gFilter = new float[shape.filters][shape.getFilterLength()];
+            gVisible = new float[shape.getNumVisible()];
+            gHidden = new float[shape.filters];
+            meanHidden = new float[shape.filters];
+        }
+
+        optimizer.allocate(
+                shape.getNumVisible(),
+                shape.filters,
+                shape.getFilterLength());
+    }
+}
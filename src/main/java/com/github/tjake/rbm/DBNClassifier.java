@@ -0,0 +1,116 @@
+package com.github.tjake.rbm;
+
+import com.github.tjake.util.Utilities;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classifies inputs with a DBN whose top level was trained with the label
+ * units appended to its visible layer.
+ *
+ * The input is propagated up to the top level (padding the label units with
+ * 0.1), the top level does one up/down pass, and the label probabilities are
+ * averaged over the input and its reconstruction.
+ */
+public class DBNClassifier
+{
+    private final SnapshotPublisher models;
+    private final int numLabels;
+    private PredictionCache cache;
+
+    // Read only padding layers by size, shared by every classification
+    private final Map<Integer, Layer> padding = new ConcurrentHashMap<>();
+
+    public DBNClassifier(SnapshotPublisher models, int numLabels)
+    {
+        this.models = models;
+        this.numLabels = numLabels;
+    }
+
+    public DBNClassifier withCache(PredictionCache cache)
+    {
+        this.cache = cache;
+        return this;
+    }
+
+    public PredictionCache getCache()
+    {
+        return cache;
+    }
+
+    // Returns the probability of each label for the given input
+    public float[] classify(Layer input)
+    {
+        StackedRBMSnapshot rbm = models.get();
+
+        if (cache == null)
+        {
+            return labelProbabilities(rbm, input);
+        }
+
+        PredictionCache.Key key = cache.key(input, rbm.getVersion());
+
+        if (key == null)
+        {
+            return labelProbabilities(rbm, input);
+        }
+
+        float[] labels = cache.get(key);
+
+        if (labels == null)
+        {
+            labels = labelProbabilities(rbm, input);
+            cache.put(key, labels);
+        }
+
+        return labels.clone();
+    }
+
+    private float[] labelProbabilities(StackedRBMSnapshot rbm, Layer input)
+    {
+        int top = rbm.getNumLevels() - 1;
+
+        for (int i = 0; i < top; i++)
+        {
+            input = rbm.activateHidden(i, pad(input, rbm.getNumVisible(i)));
+        }
+
+        Layer visible = pad(input, rbm.getNumVisible(top));
+        Layer reconstructed = rbm.activateVisible(
+                top,
+                Utilities.bernoulli(rbm.activateHidden(top, visible)));
+
+        float[] labels = new float[numLabels];
+        for (int j = visible.size() - numLabels, k = 0; k < numLabels; j++, k++)
+        {
+            labels[k] = (visible.get(j) + reconstructed.get(j)) / 2;
+        }
+
+        return labels;
+    }
+
+    // A view of input followed by the padding, nothing is copied
+    private Layer pad(Layer input, int size)
+    {
+        if (input.size() >= size)
+        {
+            return input;
+        }
+
+        return new ConcatLayer(
+                input,
+                padding.computeIfAbsent(size - input.size(), DBNClassifier::padding));
+    }
+
+    private static Layer padding(int size)
+    {
+        Layer padding = new Layer(size);
+        for (int j = 0; j < size; j++)
+        {
+            padding.set(j, 0.1f);
+        }
+
+        return padding;
+    }
+}
@@ -7,4 +7,6 @@ public interface DataItem
 {
     byte[] getData();
     String getLabel();
+    //The id of getLabel() in the data set's LabelVocabulary
+    int getLabelId();
 }
@@ -1,6 +1,7 @@
 package com.github.tjake.rbm;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  *
@@ -9,6 +10,9 @@ public interface DataSetReader
 {
     DataItem getRandomTrainingItem();
     DataItem getRandomTestItem();
+    //Every training item once, for passes over the whole training set
+    void forEachTrainingItem(Consumer<? super DataItem> action);
+    LabelVocabulary getLabelVocabulary();
     List<String> getLabels();
     int getRows();
     int getCols();
@@ -1,14 +1,16 @@
 package com.github.tjake.rbm;
 
-
-import com.github.tjake.util.Utilities;
-
 /**
- * Converts raw values to standard deviations
+ * Converts raw values to standard deviations.
+ *
+ * Either with the mean and stddev of the layer itself, or with dataset-wide
+ * per feature {@link NormalizationStats}, see
+ * {@link LayerFactory#createGaussian(byte[], NormalizationStats)}.
  */
 public class GaussianLayer extends Layer
 {
     private final Layer delegate;
+    private final NormalizationStats stats;
     private float mean;
     private float stddev;
 
@@ -16,9 +18,9 @@ public class GaussianLayer extends Layer
     {
         super((float[]) null);
         this.delegate = delegate;
+        this.stats = null;
 
         convertToStddev();
-
     }
 
     public GaussianLayer(Layer delegate, Layer base)
@@ -28,43 +30,70 @@ public class GaussianLayer extends Layer
         GaussianLayer gbase = (GaussianLayer) base;
 
         this.delegate = delegate;
+        stats = gbase.stats;
         mean = gbase.mean;
         stddev = gbase.stddev;
-
     }
 
-    private void convertToStddev()
+    //Normalizes the raw values of delegate in place with stats
+    public GaussianLayer(Layer delegate, NormalizationStats stats)
     {
-        mean = Utilities.mean(delegate);
-        stddev = Utilities.stddev(delegate, mean);
-        stddev = stddev < 0.1f ? 0.1f : stddev;
+        this(delegate, stats, false);
+    }
 
-        double min = Double.MAX_VALUE;
-        double max = Double.MIN_VALUE;
+    //Wraps values already normalized with stats
+    GaussianLayer(Layer delegate, NormalizationStats stats, boolean normalized)
+    {
+        super((float[]) null);
+        this.delegate = delegate;
+        this.stats = stats;
 
-        for (int i = 0; i < delegate.size(); i++)
+        if (!normalized)
         {
-            double v = (delegate.get(i) - mean) / stddev;
-            if (v > max)
-            {
-                max = v;
-            }
-            if (v < min)
+            float[] values = delegate.get();
+            stats.normalize(values, values);
+
+            if (!delegate.hasArray())
             {
-                min = v;
+                delegate.assign(values);
             }
+        }
+    }
 
-            delegate.set(i, (float) v);
+    //Mean and stddev of this layer in one pass (Welford), then normalizes
+    private void convertToStddev()
+    {
+        final int size = delegate.size();
+        double m = 0.0;
+        double m2 = 0.0;
+
+        for (int i = 0; i < size; i++)
+        {
+            double x = delegate.get(i);
+            double delta = x - m;
+            m += delta / (i + 1);
+            m2 += delta * (x - m);
+        }
+
+        mean = (float) m;
+        stddev = (float) Math.sqrt(m2 / (size - 1));
+        stddev = stddev < 0.1f ? 0.1f : stddev;
+
+        final float inverse = 1.0f / stddev;
+
+        for (int i = 0; i < size; i++)
+        {
+            delegate.set(i, (delegate.get(i) - mean) * inverse);
         }
     }
 
+    //Back to raw values in [0, 255]
     public float[] fromGaussian()
     {
-        double min = Double.MAX_VALUE, max = Double.MIN_VALUE;
         float[] output = new float[delegate.size()];
         for (int i = 0; i < output.length; i++)
         {
-            double v = delegate.get(i);
+            float v = delegate.get(i);
 
             //Squash > 2 sigma
             if (Math.abs(v) > 2)
@@ -72,24 +101,31 @@ public class GaussianLayer extends Layer
                 v /= 2;
             }
 
-            v = v * stddev + mean;
+            output[i] = v;
+        }
 
-            if (v > max)
-            {
-                max = v;
-            }
-            if (v < min)
-            {
-                min = v;
-            }
+        if (stats != null)
+        {
+            stats.denormalize(output, output, 0.0f, 255.0f);
+            return output;
+        }
 
-            output[i] = (float) (v < 0 ? 0 : v);
-            output[i] = (float) (v > 255 ? 255 : v);
+        for (int i = 0; i < output.length; i++)
+        {
+            float v = output[i] * stddev + mean;
+            output[i] = v < 0 ? 0 : (v > 255 ? 255 : v);
         }
 
         return output;
     }
 
+    //The dataset-wide statistics of this layer, null if it was normalized
+    //with its own
+    public NormalizationStats getStats()
+    {
+        return stats;
+    }
+
     @Override
     public void set(int i, float f)
     {
@@ -117,7 +153,7 @@ public class GaussianLayer extends Layer
     @Override
     public void mult(int i, float f)
     {
-        delegate.div(i, f);
+        delegate.mult(i, f);
     }
 
     @Override
@@ -144,6 +180,36 @@ public class GaussianLayer extends Layer
         delegate.copy(src);
     }
 
+    @Override
+    public void assign(float[] values)
+    {
+        delegate.assign(values);
+    }
+
+    @Override
+    public float dot(int from, float[] w, int wFrom, int length)
+    {
+        return delegate.dot(from, w, wFrom, length);
+    }
+
+    @Override
+    public void copyTo(int from, float[] dest, int destFrom, int length)
+    {
+        delegate.copyTo(from, dest, destFrom, length);
+    }
+
+    @Override
+    public boolean hasArray()
+    {
+        return delegate.hasArray();
+    }
+
+    @Override
+    public void release()
+    {
+        delegate.release();
+    }
+
     @Override
     public float[] get()
     {
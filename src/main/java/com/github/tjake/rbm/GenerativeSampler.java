@@ -0,0 +1,140 @@
+package com.github.tjake.rbm;
+
+import com.github.tjake.util.Utilities;
+
+import java.util.stream.IntStream;
+
+/**
+ * Generates inputs from a DBN whose top level was trained with the label
+ * units appended to its visible layer.
+ *
+ * For a label it runs numChains independent Gibbs chains in the top level,
+ * in parallel, with the label units clamped to the one-hot label. After
+ * burnIn up/down passes the chains are pushed down through the lower levels
+ * as one batched top-down pass.
+ *
+ * All buffers are kept between calls, so a sampler must only be used by one
+ * thread at a time and the returned layers are overwritten by the next call.
+ */
+public class GenerativeSampler
+{
+    // Chains handed to each task of the batched top-down pass
+    private static final int CHAINS_PER_TASK = 8;
+
+    private final int numLabels;
+    private final int numChains;
+    private final int burnIn;
+
+    // [level][chain], level numLevels holds the top level's hidden units
+    private Layer[][] buffers;
+
+    public GenerativeSampler(int numLabels, int numChains, int burnIn)
+    {
+        if (numLabels <= 0 || numChains <= 0 || burnIn <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "numLabels, numChains and burnIn must be positive");
+        }
+
+        this.numLabels = numLabels;
+        this.numChains = numChains;
+        this.burnIn = burnIn;
+    }
+
+    public int getNumChains()
+    {
+        return numChains;
+    }
+
+    // Returns numChains generated inputs (bottom level visible units)
+    public Layer[] sample(final StackedRBMSnapshot rbm, final int label)
+    {
+        if (label < 0 || label >= numLabels)
+        {
+            throw new IllegalArgumentException("Invalid label " + label);
+        }
+
+        allocate(rbm);
+
+        final int top = rbm.getNumLevels() - 1;
+        final Layer[] topVisible = buffers[top];
+        final Layer[] topHidden = buffers[top + 1];
+
+        IntStream.range(0, numChains).parallel().forEach(n -> {
+            Layer v = topVisible[n];
+            Layer h = topHidden[n];
+
+            v.clear();
+            clampLabel(v, label);
+
+            for (int i = 0; i < burnIn; i++)
+            {
+                Utilities.bernoulli(rbm.activateHidden(top, v, h), h);
+                rbm.activateVisible(top, h, v);
+                clampLabel(v, label);
+            }
+        });
+
+        // The label units at the end of the top visible layer are ignored,
+        // the levels below only read the first numHidden units
+        for (int level = top - 1; level >= 0; level--)
+        {
+            final int l = level;
+            final int numTasks = (numChains + CHAINS_PER_TASK - 1)
+                    / CHAINS_PER_TASK;
+
+            IntStream.range(0, numTasks).parallel().forEach(t ->
+                    rbm.activateVisible(
+                            l,
+                            buffers[l + 1],
+                            buffers[l],
+                            t * CHAINS_PER_TASK,
+                            Math.min(numChains, (t + 1) * CHAINS_PER_TASK)));
+        }
+
+        return buffers[0];
+    }
+
+    private void clampLabel(Layer visible, int label)
+    {
+        int offset = visible.size() - numLabels;
+        for (int k = 0; k < numLabels; k++)
+        {
+            visible.set(offset + k, k == label ? 1.0f : 0.0f);
+        }
+    }
+
+    private void allocate(StackedRBMSnapshot rbm)
+    {
+        int numLevels = rbm.getNumLevels();
+
+        if (buffers != null
+                && buffers.length == numLevels + 1
+                && buffers[numLevels][0].size()
+                        == rbm.getNumHidden(numLevels - 1))
+        {
+            boolean same = true;
+            for (int level = 0; level < numLevels && same; level++)
+            {
+                same = buffers[level][0].size() == rbm.getNumVisible(level);
+            }
+
+            if (same)
+            {
+                return;
+            }
+        }
+
+        buffers = new Layer[numLevels + 1][numChains];
+
+        for (int n = 0; n < numChains; n++)
+        {
+            for (int level = 0; level < numLevels; level++)
+            {
+                buffers[level][n] = new Layer(rbm.getNumVisible(level));
+            }
+
+            buffers[numLevels][n] = new Layer(rbm.getNumHidden(numLevels - 1));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.tjake.rbm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous (Hogwild style) training of a single RBM.
+ *
+ * Every worker draws its own mini-batches from the reader and runs them
+ * through its own {@link SimpleRBMTrainer}, which applies the update straight
+ * to the shared weights without any locking. Workers never wait on each
+ * other, at the cost of sometimes computing a gradient from weights another
+ * worker is halfway through updating.
+ */
+public class HogwildRBMTrainer
+{
+    // Batches (over all workers) between two points of the convergence log
+    private static final int REPORT_EVERY = 50;
+
+    private final int numWorkers;
+    private final int batchSize;
+    private final float momentum;
+    private final float l2;
+    private final Float targetSparsity;
+    private final float learningRate;
+    private final float updateThreshold;
+
+    public HogwildRBMTrainer(
+            int numWorkers,
+            int batchSize,
+            float momentum,
+            float l2,
+            Float targetSparsity,
+            float learningRate,
+            float updateThreshold)
+    {
+        if (numWorkers <= 0 || batchSize <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "numWorkers and batchSize must be positive");
+        }
+
+        this.numWorkers = numWorkers;
+        this.batchSize = batchSize;
+        this.momentum = momentum;
+        this.l2 = l2;
+        this.targetSparsity = targetSparsity;
+        this.learningRate = learningRate;
+        this.updateThreshold = updateThreshold;
+    }
+
+    // Trains rbm on binarized items of the reader for the given time and
+    // returns the error of every REPORT_EVERY'th batch against time
+    public ConvergenceLog train(
+            final SimpleRBM rbm,
+            final DataSetReader reader,
+            final LayerFactory layerFactory,
+            final long durationMillis)
+    {
+        final ConvergenceLog log = new ConvergenceLog(
+                "hogwild x" + numWorkers);
+        final AtomicLong batches = new AtomicLong();
+        final long deadline = System.nanoTime() + durationMillis * 1000000;
+
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+        List<Future<?>> futures = new ArrayList<>(numWorkers);
+
+        for (int w = 0; w < numWorkers; w++)
+        {
+            futures.add(workers.submit(() -> {
+                SimpleRBMTrainer trainer = new SimpleRBMTrainer(
+                        momentum,
+                        l2,
+                        targetSparsity,
+                        learningRate)
+                        .setUpdateThreshold(updateThreshold);
+
+                List<Layer> batch = new ArrayList<>(batchSize);
+
+                while (System.nanoTime() < deadline)
+                {
+                    batch.clear();
+                    for (int j = 0; j < batchSize; j++)
+                    {
+                        batch.add(new BinaryLayer(layerFactory.create(
+                                reader.getRandomTrainingItem().getData())));
+                    }
+
+                    double error = trainer.learn(rbm, batch, false);
+
+                    long done = batches.incrementAndGet();
+                    if (done % REPORT_EVERY == 0)
+                    {
+                        log.record(done, error);
+                    }
+                }
+            }));
+        }
+
+        try
+        {
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
+
+        return log;
+    }
+}
@@ -0,0 +1,350 @@
+package com.github.tjake.rbm;
+
+import com.github.tjake.util.Utilities;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@link StackedRBM} compiled for inference (see StackedRBM.compile()):
+ * the weights of every level in one flat row major array, or the arrays of
+ * a {@link SparseRBM}, and the biases as plain arrays. The kernels only see
+ * float arrays, so there are no Layer calls to dispatch and nothing is
+ * allocated per input, every thread reuses two buffers as wide as the
+ * widest level.
+ *
+ * Immutable and safe to share between threads. Changes to the StackedRBM
+ * after it was compiled aren't seen. Inputs are the visible units of the
+ * bottom level as it was trained on them, binarized or normalized, and
+ * levels wider than the one below (see StackedRBM.withCustomInput) have
+ * the units left padded with 0.1 as DBNClassifier does.
+ */
+public final class InferencePlan
+{
+    private static final float PADDING = 0.1f;
+
+    private final int[] numVisible;
+    private final int[] numHidden;
+    private final boolean[] gaussianVisibles;
+    private final float[][] biasVisible;
+    private final float[][] biasHidden;
+
+    // Level i has dense weights, numHidden[i] rows of numVisible[i], unless
+    // it's sparse and its rows are in values, columns and rowStarts
+    private final float[][] weights;
+    private final float[][] values;
+    private final int[][] columns;
+    private final int[][] rowStarts;
+
+    private final ThreadLocal<float[][]> scratch;
+
+    InferencePlan(StackedRBM rbm)
+    {
+        final int levels = rbm.getInnerRBMs().size();
+
+        if (levels == 0)
+        {
+            throw new IllegalStateException("Nothing to compile, build or load "
+                    + "the StackedRBM first");
+        }
+
+        numVisible = new int[levels];
+        numHidden = new int[levels];
+        gaussianVisibles = new boolean[levels];
+        biasVisible = new float[levels][];
+        biasHidden = new float[levels][];
+        weights = new float[levels][];
+        values = new float[levels][];
+        columns = new int[levels][];
+        rowStarts = new int[levels][];
+
+        int width = 0;
+
+        for (int i = 0; i < levels; i++)
+        {
+            final SimpleRBM level = rbm.getLevel(i);
+
+            if (level instanceof ConvolutionalRBM)
+            {
+                throw new IllegalArgumentException("Level " + i + " is "
+                        + "convolutional, only fully connected levels compile");
+            }
+
+            numVisible[i] = level.getNumVisible();
+            numHidden[i] = level.getNumHidden();
+            gaussianVisibles[i] = level.gaussianVisibles;
+            biasVisible[i] = copy(level.biasVisible);
+            biasHidden[i] = copy(level.biasHidden);
+
+            if (i > 0 && numVisible[i] < numHidden[i - 1])
+            {
+                throw new IllegalArgumentException("Level " + i + " has "
+                        + numVisible[i] + " visible units for "
+                        + numHidden[i - 1] + " hidden units below");
+            }
+
+            if (level instanceof SparseRBM)
+            {
+                final SparseRBM sparse = (SparseRBM) level;
+                values[i] = sparse.values;
+                columns[i] = sparse.columns;
+                rowStarts[i] = sparse.rowStarts;
+            }
+            else
+            {
+                weights[i] = flatten(level);
+            }
+
+            width = Math.max(width, Math.max(numVisible[i], numHidden[i]));
+        }
+
+        final int bufferSize = width;
+        scratch = ThreadLocal.withInitial(() -> new float[][] {
+                new float[bufferSize],
+                new float[bufferSize]
+        });
+    }
+
+    private static float[] copy(Layer layer)
+    {
+        final float[] out = new float[layer.size()];
+        layer.copyTo(0, out, 0, out.length);
+        return out;
+    }
+
+    // The weight rows of level, one after the other
+    private static float[] flatten(SimpleRBM level)
+    {
+        final long size = (long) level.getNumHidden() * level.getNumVisible();
+
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Too many weights to compile: "
+                    + size);
+        }
+
+        final int v = level.getNumVisible();
+        final float[] flat = new float[(int) size];
+
+        for (int k = 0; k < level.weights.length; k++)
+        {
+            level.weights[k].copyTo(0, flat, k * v, v);
+        }
+
+        return flat;
+    }
+
+    public int getNumLevels()
+    {
+        return numVisible.length;
+    }
+
+    public int getNumVisible()
+    {
+        return numVisible[0];
+    }
+
+    public int getNumHidden()
+    {
+        return numHidden[numHidden.length - 1];
+    }
+
+    // Bytes of the weights and biases of every level
+    public long getBytes()
+    {
+        long bytes = 0;
+
+        for (int i = 0; i < numVisible.length; i++)
+        {
+            bytes += (long) (numVisible[i] + numHidden[i]) * Float.BYTES;
+            bytes += weights[i] != null
+                    ? (long) weights[i].length * Float.BYTES
+                    : (long) values[i].length * (Float.BYTES + Integer.BYTES)
+                            + (long) rowStarts[i].length * Integer.BYTES;
+        }
+
+        return bytes;
+    }
+
+    // The expected hidden units of the top level for visible, written into
+    // (and returned) output
+    public float[] activateHidden(final float[] visible, final float[] output)
+    {
+        final int top = numVisible.length - 1;
+        final float[] in = up(visible, top);
+
+        checkSize(output, numHidden[top]);
+        activateHidden(top, in, output);
+
+        return output;
+    }
+
+    // The probability of each of the labels.length label units, the last
+    // visible units of the top level, written into (and returned) labels.
+    // Same as DBNClassifier: the input is propagated to the top level, the
+    // top level samples its hidden units and reconstructs the label units
+    // from them, and each label is the average of its padding and its
+    // reconstruction.
+    public float[] classify(final float[] visible, final float[] labels)
+    {
+        final int top = numVisible.length - 1;
+        final int first = numVisible[top] - labels.length;
+
+        if (first < 0)
+        {
+            throw new IllegalArgumentException("Top level has "
+                    + numVisible[top] + " visible units, less than "
+                    + labels.length + " labels");
+        }
+
+        final float[] in = up(visible, top);
+        final float[][] buffers = scratch.get();
+        final float[] hidden = in == buffers[0] ? buffers[1] : buffers[0];
+
+        activateHidden(top, in, hidden);
+
+        final Random random = ThreadLocalRandom.current();
+        for (int k = 0; k < numHidden[top]; k++)
+        {
+            hidden[k] = random.nextFloat() < hidden[k] ? 1.0f : 0.0f;
+        }
+
+        reconstruct(top, hidden, first, labels);
+
+        for (int j = 0; j < labels.length; j++)
+        {
+            labels[j] = (in[first + j] + labels[j]) / 2;
+        }
+
+        return labels;
+    }
+
+    // The visible units of level top for the input, in one of the scratch
+    // buffers
+    private float[] up(final float[] visible, final int top)
+    {
+        checkSize(visible, numVisible[0]);
+
+        final float[][] buffers = scratch.get();
+        float[] in = buffers[0];
+        float[] out = buffers[1];
+
+        System.arraycopy(visible, 0, in, 0, visible.length);
+
+        for (int i = 0; i < top; i++)
+        {
+            activateHidden(i, in, out);
+            Arrays.fill(out, numHidden[i], numVisible[i + 1], PADDING);
+
+            final float[] t = in;
+            in = out;
+            out = t;
+        }
+
+        return in;
+    }
+
+    private static void checkSize(final float[] array, final int size)
+    {
+        if (array.length != size)
+        {
+            throw new IllegalArgumentException("Mismatched input "
+                    + array.length
+                    + " != "
+                    + size);
+        }
+    }
+
+    // out[0, numHidden) = sigmoid(weights . in + hidden bias) of level i
+    private void activateHidden(final int i, final float[] in, final float[] out)
+    {
+        final int v = numVisible[i];
+        final float[] bias = biasHidden[i];
+        final float[] w = weights[i];
+
+        if (w != null)
+        {
+            for (int k = 0, row = 0; k < bias.length; k++, row += v)
+            {
+                out[k] = Utilities.sigmoid(
+                        SimpleRBM.dot(w, row, in, 0, v) + bias[k]);
+            }
+
+            return;
+        }
+
+        final float[] vals = values[i];
+        final int[] cols = columns[i];
+        final int[] starts = rowStarts[i];
+
+        for (int k = 0; k < bias.length; k++)
+        {
+            float s = 0.0f;
+
+            for (int j = starts[k]; j < starts[k + 1]; j++)
+            {
+                s += vals[j] * in[cols[j]];
+            }
+
+            out[k] = Utilities.sigmoid(s + bias[k]);
+        }
+    }
+
+    // out[0, n) = the visible units [first, first + n) of level i
+    // reconstructed from hidden. Only those columns of the weights are read.
+    private void reconstruct(
+            final int i,
+            final float[] hidden,
+            final int first,
+            final float[] out)
+    {
+        final int v = numVisible[i];
+        final int n = out.length;
+        final float[] w = weights[i];
+
+        Arrays.fill(out, 0.0f);
+
+        for (int k = 0; k < numHidden[i]; k++)
+        {
+            final float hk = hidden[k];
+            if (hk == 0.0f)
+            {
+                continue;
+            }
+
+            if (w != null)
+            {
+                final int row = k * v + first;
+
+                for (int j = 0; j < n; j++)
+                {
+                    out[j] += w[row + j] * hk;
+                }
+            }
+            else
+            {
+                // Columns are ascending within a row, the ones wanted are last
+                final float[] vals = values[i];
+                final int[] cols = columns[i];
+
+                for (int j = rowStarts[i][k + 1] - 1;
+                        j >= rowStarts[i][k] && cols[j] >= first;
+                        j--)
+                {
+                    out[cols[j] - first] += vals[j] * hk;
+                }
+            }
+        }
+
+        for (int j = 0; j < n; j++)
+        {
+            out[j] += biasVisible[i][first + j];
+
+            if (!gaussianVisibles[i])
+            {
+                out[j] = Utilities.sigmoid(out[j]);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.tjake.rbm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the labels of a data set to dense int ids, 0 to size() - 1, so
+ * training and evaluation can index label units directly instead of
+ * parsing or searching for label strings.
+ */
+public final class LabelVocabulary
+{
+    private final List<String> labels;
+    private final Map<String, Integer> ids;
+    private final Layer[] oneHots;
+
+    //Ids are assigned in the iteration order of labels
+    public LabelVocabulary(Collection<String> labels)
+    {
+        this.labels = Collections.unmodifiableList(new ArrayList<>(labels));
+        this.ids = new HashMap<>(this.labels.size() * 2);
+        this.oneHots = new Layer[this.labels.size()];
+
+        for (int id = 0; id < this.labels.size(); id++)
+        {
+            if (ids.put(this.labels.get(id), id) != null)
+            {
+                throw new IllegalArgumentException(
+                        "Duplicate label " + this.labels.get(id));
+            }
+
+            oneHots[id] = new Layer(this.labels.size());
+            oneHots[id].set(id, 1.0f);
+        }
+    }
+
+    public int size()
+    {
+        return labels.size();
+    }
+
+    public int getId(String label)
+    {
+        Integer id = ids.get(label);
+
+        if (id == null)
+        {
+            throw new IllegalArgumentException("Unknown label " + label);
+        }
+
+        return id;
+    }
+
+    public String getLabel(int id)
+    {
+        return labels.get(id);
+    }
+
+    public List<String> getLabels()
+    {
+        return labels;
+    }
+
+    //A layer with only the unit of label id on. The layer is shared by
+    //every caller, so it must not be modified.
+    public Layer oneHot(int id)
+    {
+        return oneHots[id];
+    }
+}
@@ -87,6 +87,39 @@ public class Layer
         System.arraycopy(layer, 0, src, 0, layer.length);
     }
 
+    //Copies values into this layer
+    public void assign(float[] values)
+    {
+        System.arraycopy(values, 0, layer, 0, layer.length);
+    }
+
+    //Sum of get(from + i) * w[wFrom + i] for i < length. The kernels read
+    //their inputs through it, so views over other layers (see ConcatLayer)
+    //are used as they are instead of being copied into one array first.
+    public float dot(int from, float[] w, int wFrom, int length)
+    {
+        return SimpleRBM.dot(layer, from, w, wFrom, length);
+    }
+
+    //Copies length values starting at from into dest[destFrom...]
+    public void copyTo(int from, float[] dest, int destFrom, int length)
+    {
+        System.arraycopy(layer, from, dest, destFrom, length);
+    }
+
+    //Whether get() returns the array backing this layer. When it doesn't,
+    //get() returns a copy and changes to it are not seen by the layer.
+    public boolean hasArray()
+    {
+        return true;
+    }
+
+    //Frees any memory held outside of the heap, the layer can't be used
+    //afterwards. Heap layers are left to the garbage collector.
+    public void release()
+    {
+    }
+
     public float[] get()
     {
         return layer;
@@ -118,4 +118,23 @@ public class LayerFactory
         return new GaussianLayer(create(img));
     }
 
+    //Normalizes the raw bytes of an item straight into a new layer, in one
+    //pass with no intermediate raw layer
+    public GaussianLayer createGaussian(byte[] data, NormalizationStats stats)
+    {
+        Layer layer = create(stats.size());
+        float[] values = layer.hasArray()
+                ? layer.get()
+                : new float[stats.size()];
+
+        stats.normalize(data, values);
+
+        if (!layer.hasArray())
+        {
+            layer.assign(values);
+        }
+
+        return new GaussianLayer(layer, stats, true);
+    }
+
 }
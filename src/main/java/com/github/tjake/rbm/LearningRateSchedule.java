@@ -0,0 +1,48 @@
+package com.github.tjake.rbm;
+
+/**
+ * The learning rate to use for a batch, given the base learning rate of the
+ * trainer and how many batches it has already trained on.
+ */
+public interface LearningRateSchedule
+{
+    float rate(float base, long batch);
+
+    static LearningRateSchedule constant()
+    {
+        return (base, batch) -> base;
+    }
+
+    //Multiplies the rate by factor every batches batches
+    static LearningRateSchedule step(final long batches, final float factor)
+    {
+        if (batches <= 0)
+        {
+            throw new IllegalArgumentException("Invalid batches");
+        }
+
+        return (base, batch) -> base * (float) Math.pow(factor, batch / batches);
+    }
+
+    //base * decay^batch
+    static LearningRateSchedule exponential(final float decay)
+    {
+        return (base, batch) -> base * (float) Math.pow(decay, batch);
+    }
+
+    //base / (1 + decay * batch)
+    static LearningRateSchedule inverse(final float decay)
+    {
+        return (base, batch) -> base / (1.0f + decay * batch);
+    }
+
+    //Ramps up linearly from 0 over the first batches, then follows after
+    static LearningRateSchedule warmup(
+            final long batches,
+            final LearningRateSchedule after)
+    {
+        return (base, batch) -> batch < batches
+                ? base * (batch + 1) / batches
+                : after.rate(base, batch - batches);
+    }
+}
@@ -0,0 +1,328 @@
+package com.github.tjake.rbm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Estimate of the memory a {@link StackedRBM} needs, level by level, once
+ * it's built and trained by a {@link StackedRBMTrainer}: weights and biases,
+ * the gradient buffers and optimizer state of every level's trainer, the
+ * scratch every thread keeps, the batches of activations between the
+ * stages of learnPipelined and, when a {@link ValidationMonitor} checks the
+ * training, the copy it keeps of the level being trained. Only one level is
+ * trained, and copied, at a time, so the totals count the biggest copy.
+ *
+ * Only float arrays are counted, not object headers. Weights and hidden
+ * biases of fully connected levels built with an {@link OffHeapLayerFactory}
+ * are off heap, everything else is on the heap.
+ */
+public class MemoryPlan
+{
+    //Batches of activations one stage of learnPipelined can hold: its
+    //queue, its recycled batches and the one it's working on
+    private static final int ACTIVATION_BATCHES = 2 * 2 + 3;
+
+    private final List<Level> levels;
+    private final int batchSize;
+    private final int threads;
+
+    MemoryPlan(List<Level> levels, int batchSize, int threads)
+    {
+        this.levels = Collections.unmodifiableList(new ArrayList<>(levels));
+        this.batchSize = batchSize;
+        this.threads = threads;
+    }
+
+    public static final class Level
+    {
+        private final int numVisible;
+        private final int numHidden;
+        private final boolean convolutional;
+        private final boolean offHeap;
+
+        private final long weightBytes;
+        private final long biasBytes;
+        private final long gradientBytes;
+        private final long optimizerBytes;
+        private final long scratchBytes;
+        private final long activationBytes;
+        private final long snapshotBytes;
+
+        private Level(
+                int numVisible,
+                int numHidden,
+                boolean convolutional,
+                boolean offHeap,
+                long weightBytes,
+                long biasBytes,
+                long gradientBytes,
+                long optimizerBytes,
+                long scratchBytes,
+                long activationBytes,
+                long snapshotBytes)
+        {
+            this.numVisible = numVisible;
+            this.numHidden = numHidden;
+            this.convolutional = convolutional;
+            this.offHeap = offHeap;
+            this.weightBytes = weightBytes;
+            this.biasBytes = biasBytes;
+            this.gradientBytes = gradientBytes;
+            this.optimizerBytes = optimizerBytes;
+            this.scratchBytes = scratchBytes;
+            this.activationBytes = activationBytes;
+            this.snapshotBytes = snapshotBytes;
+        }
+
+        public int getNumVisible()
+        {
+            return numVisible;
+        }
+
+        public int getNumHidden()
+        {
+            return numHidden;
+        }
+
+        public boolean isConvolutional()
+        {
+            return convolutional;
+        }
+
+        public long getWeightBytes()
+        {
+            return weightBytes;
+        }
+
+        public long getBiasBytes()
+        {
+            return biasBytes;
+        }
+
+        //Buffers of the level's trainer
+        public long getGradientBytes()
+        {
+            return gradientBytes;
+        }
+
+        public long getOptimizerBytes()
+        {
+            return optimizerBytes;
+        }
+
+        //Of all threads
+        public long getScratchBytes()
+        {
+            return scratchBytes;
+        }
+
+        //Batches of the level's output waiting for the next stage
+        public long getActivationBytes()
+        {
+            return activationBytes;
+        }
+
+        //Copy of the weights and biases a ValidationMonitor keeps while
+        //this level trains
+        public long getSnapshotBytes()
+        {
+            return snapshotBytes;
+        }
+
+        public long getOffHeapBytes()
+        {
+            if (!offHeap)
+            {
+                return 0;
+            }
+
+            //The visible biases are always on the heap, so are the ones of
+            //the monitor's copy
+            final long level = weightBytes + (long) numHidden * Float.BYTES;
+            return snapshotBytes > 0 ? 2 * level : level;
+        }
+
+        private long getSnapshotHeapBytes()
+        {
+            return offHeap && snapshotBytes > 0
+                    ? snapshotBytes - weightBytes - (long) numHidden * Float.BYTES
+                    : snapshotBytes;
+        }
+
+        public long getTotalBytes()
+        {
+            return weightBytes + biasBytes + gradientBytes + optimizerBytes
+                    + scratchBytes + activationBytes + snapshotBytes;
+        }
+
+        public long getHeapBytes()
+        {
+            return getTotalBytes() - getOffHeapBytes();
+        }
+
+        @Override
+        public String toString()
+        {
+            return (convolutional ? "Convolutional " : "")
+                    + numVisible + " -> " + numHidden
+                    + ": weights " + mb(weightBytes)
+                    + (offHeap ? " (off heap)" : "")
+                    + ", biases " + mb(biasBytes)
+                    + ", gradients " + mb(gradientBytes)
+                    + ", optimizer " + mb(optimizerBytes)
+                    + ", scratch " + mb(scratchBytes)
+                    + ", activations " + mb(activationBytes)
+                    + ", snapshot " + mb(snapshotBytes);
+        }
+    }
+
+    //A fully connected level, see SimpleRBM and SimpleRBMTrainer
+    static Level simple(
+            int numVisible,
+            int numHidden,
+            boolean top,
+            int batchSize,
+            int optimizerArrays,
+            boolean offHeap,
+            boolean snapshot)
+    {
+        final long v = numVisible;
+        final long h = numHidden;
+        final long b = batchSize;
+
+        return new Level(
+                numVisible,
+                numHidden,
+                false,
+                offHeap,
+                floats(h * v),
+                floats(v + h),
+                floats((2 * b + 3) * v + (2 * b + 2) * h + Math.max(v, h)),
+                floats(optimizerArrays * (h * v + v + h)),
+                0,
+                top ? 0 : floats(ACTIVATION_BATCHES * b * h),
+                snapshot ? floats(h * v + v + h) : 0);
+    }
+
+    //See ConvolutionalRBM and ConvolutionalRBMTrainer, always on the heap
+    static Level convolutional(
+            ConvolutionalRBM.Shape shape,
+            boolean top,
+            int batchSize,
+            int threads,
+            int optimizerArrays,
+            boolean snapshot)
+    {
+        final long v = shape.getNumVisible();
+        final long filters = shape.filters;
+        final long detections = shape.getDetectionSize();
+        final long filterLength = shape.getFilterLength();
+        final long b = batchSize;
+
+        return new Level(
+                shape.getNumVisible(),
+                shape.getNumHidden(),
+                true,
+                false,
+                floats(filters * filterLength),
+                floats(v + filters),
+                floats((filters + 1) * detections + 3 * v
+                        + filters * filterLength + 2 * filters),
+                floats(optimizerArrays * (filters * filterLength + v + filters)),
+                floats(threads * (detections + v)),
+                top ? 0 : floats(ACTIVATION_BATCHES * b * shape.getNumHidden()),
+                snapshot ? floats(filters * filterLength + v + filters) : 0);
+    }
+
+    private static long floats(long count)
+    {
+        return count * Float.BYTES;
+    }
+
+    public List<Level> getLevels()
+    {
+        return levels;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    public long getTotalBytes()
+    {
+        long total = 0;
+        for (Level level : levels)
+        {
+            total += level.getTotalBytes() - level.getSnapshotBytes();
+        }
+
+        Level copied = biggestSnapshot();
+        return copied == null ? total : total + copied.getSnapshotBytes();
+    }
+
+    public long getHeapBytes()
+    {
+        long total = 0;
+        for (Level level : levels)
+        {
+            total += level.getHeapBytes() - level.getSnapshotHeapBytes();
+        }
+
+        Level copied = biggestSnapshot();
+        return copied == null ? total : total + copied.getSnapshotHeapBytes();
+    }
+
+    //The level whose copy takes the most, null without copies
+    private Level biggestSnapshot()
+    {
+        Level biggest = null;
+        for (Level level : levels)
+        {
+            if (level.getSnapshotBytes() > 0 && (biggest == null
+                    || level.getSnapshotBytes() > biggest.getSnapshotBytes()))
+            {
+                biggest = level;
+            }
+        }
+
+        return biggest;
+    }
+
+    public long getOffHeapBytes()
+    {
+        return getTotalBytes() - getHeapBytes();
+    }
+
+    private static String mb(long bytes)
+    {
+        return String.format("%.1fMB", bytes / (1024.0 * 1024.0));
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("MemoryPlan{batchSize=")
+                .append(batchSize)
+                .append(", threads=")
+                .append(threads)
+                .append(", heap=")
+                .append(mb(getHeapBytes()))
+                .append(", offHeap=")
+                .append(mb(getOffHeapBytes()))
+                .append("}");
+
+        for (Level level : levels)
+        {
+            sb.append("\n  ").append(level);
+        }
+
+        return sb.toString();
+    }
+}
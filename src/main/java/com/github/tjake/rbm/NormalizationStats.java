@@ -0,0 +1,239 @@
+package com.github.tjake.rbm;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per feature mean and standard deviation of a whole data set, used to turn
+ * raw inputs into the zero mean, unit variance values gaussian visible
+ * units expect.
+ *
+ * The statistics are computed once with {@link #compute(DataSetReader, float)}
+ * and saved with the model (see StackedRBM.setNormalization), so inputs are
+ * normalized the same way during training and afterwards and no sample ever
+ * needs statistics of its own.
+ */
+public final class NormalizationStats
+{
+    //Smallest stddev of a feature, features that (almost) never change
+    //would otherwise be blown up by the division
+    public static final float DEFAULT_MIN_STDDEV = 0.1f;
+
+    private static final byte[] MAGIC = {
+            (byte) 0xf0,
+            (byte) 0x0d,
+            (byte) 0x57,
+            (byte) 0xa7
+    };
+
+    private final float[] mean;
+    private final float[] stddev;
+    private final float[] inverse;
+
+    public NormalizationStats(float[] mean, float[] stddev)
+    {
+        if (mean.length != stddev.length)
+        {
+            throw new IllegalArgumentException("Mismatched mean and stddev");
+        }
+
+        this.mean = mean.clone();
+        this.stddev = stddev.clone();
+        this.inverse = new float[stddev.length];
+
+        for (int i = 0; i < stddev.length; i++)
+        {
+            inverse[i] = 1.0f / stddev[i];
+        }
+    }
+
+    //One streaming pass over every training item of reader
+    public static NormalizationStats compute(
+            DataSetReader reader,
+            float minStddev)
+    {
+        Accumulator accumulator = new Accumulator(
+                reader.getRows() * reader.getCols());
+        reader.forEachTrainingItem(item -> accumulator.add(item.getData()));
+
+        return accumulator.build(minStddev);
+    }
+
+    public int size()
+    {
+        return mean.length;
+    }
+
+    public float getMean(int i)
+    {
+        return mean[i];
+    }
+
+    public float getStddev(int i)
+    {
+        return stddev[i];
+    }
+
+    //out = (data - mean) / stddev, straight from the raw bytes of an item
+    public void normalize(byte[] data, float[] out)
+    {
+        checkSize(data.length, out.length);
+
+        for (int i = 0; i < mean.length; i++)
+        {
+            out[i] = (data[i] - mean[i]) * inverse[i];
+        }
+    }
+
+    public void normalize(float[] data, float[] out)
+    {
+        checkSize(data.length, out.length);
+
+        for (int i = 0; i < mean.length; i++)
+        {
+            out[i] = (data[i] - mean[i]) * inverse[i];
+        }
+    }
+
+    //out = data * stddev + mean, clamped to [min, max]
+    public void denormalize(float[] data, float[] out, float min, float max)
+    {
+        checkSize(data.length, out.length);
+
+        for (int i = 0; i < mean.length; i++)
+        {
+            out[i] = Math.max(min, Math.min(max, data[i] * stddev[i] + mean[i]));
+        }
+    }
+
+    private void checkSize(int in, int out)
+    {
+        if (in < mean.length || out < mean.length)
+        {
+            throw new IllegalArgumentException("Expected " + mean.length
+                    + " features, got " + in + " -> " + out);
+        }
+    }
+
+    public void save(DataOutput dataOutput) throws IOException
+    {
+        dataOutput.write(MAGIC);
+        dataOutput.writeInt(mean.length);
+
+        for (int i = 0; i < mean.length; i++)
+        {
+            dataOutput.writeFloat(mean[i]);
+            dataOutput.writeFloat(stddev[i]);
+        }
+    }
+
+    public static NormalizationStats load(DataInput dataInput)
+            throws IOException
+    {
+        byte[] magic = new byte[4];
+        dataInput.readFully(magic);
+
+        if (!Arrays.equals(MAGIC, magic))
+        {
+            throw new IOException("Bad File Format");
+        }
+
+        int size = dataInput.readInt();
+
+        if (size < 0)
+        {
+            throw new IOException("Invalid size");
+        }
+
+        float[] mean = new float[size];
+        float[] stddev = new float[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            mean[i] = dataInput.readFloat();
+            stddev[i] = dataInput.readFloat();
+        }
+
+        return new NormalizationStats(mean, stddev);
+    }
+
+    /**
+     * Welford's running mean and variance of every feature, numerically
+     * stable in a single pass over the data.
+     */
+    public static final class Accumulator
+    {
+        private final double[] mean;
+        private final double[] m2;
+        private long count;
+
+        public Accumulator(int size)
+        {
+            this.mean = new double[size];
+            this.m2 = new double[size];
+        }
+
+        public void add(byte[] data)
+        {
+            if (data.length != mean.length)
+            {
+                throw new IllegalArgumentException("Mismatched input "
+                        + data.length);
+            }
+
+            count++;
+            for (int i = 0; i < mean.length; i++)
+            {
+                double delta = data[i] - mean[i];
+                mean[i] += delta / count;
+                m2[i] += delta * (data[i] - mean[i]);
+            }
+        }
+
+        public void add(float[] data)
+        {
+            if (data.length != mean.length)
+            {
+                throw new IllegalArgumentException("Mismatched input "
+                        + data.length);
+            }
+
+            count++;
+            for (int i = 0; i < mean.length; i++)
+            {
+                double delta = data[i] - mean[i];
+                mean[i] += delta / count;
+                m2[i] += delta * (data[i] - mean[i]);
+            }
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        //Sample standard deviation, no smaller than minStddev
+        public NormalizationStats build(float minStddev)
+        {
+            if (count < 2)
+            {
+                throw new IllegalStateException("Need at least two items");
+            }
+
+            float[] means = new float[mean.length];
+            float[] stddevs = new float[mean.length];
+
+            for (int i = 0; i < mean.length; i++)
+            {
+                means[i] = (float) mean[i];
+                stddevs[i] = Math.max(
+                        minStddev,
+                        (float) Math.sqrt(m2[i] / (count - 1)));
+            }
+
+            return new NormalizationStats(means, stddevs);
+        }
+    }
+}
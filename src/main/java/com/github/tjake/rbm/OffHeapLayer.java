@@ -0,0 +1,199 @@
+package com.github.tjake.rbm;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A layer stored in a direct buffer, outside of the heap, so big models
+ * don't count against the heap or garbage collection pauses.
+ *
+ * The memory is freed by {@link #release()}, or by the garbage collector
+ * once the layer is unreachable if it's never released. A released layer
+ * must not be used again.
+ *
+ * get() returns a copy of the values, use {@link #assign(float[])} to
+ * write a whole layer.
+ */
+public class OffHeapLayer extends Layer
+{
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static
+    {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+
+            invokeCleaner = unsafeClass.getMethod(
+                    "invokeCleaner",
+                    ByteBuffer.class);
+            unsafe = theUnsafe.get(null);
+        }
+        catch (Exception e)
+        {
+            //Before Java 9, release() leaves the buffer to the collector
+            invokeCleaner = null;
+        }
+
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final int size;
+    private ByteBuffer bytes;
+    private FloatBuffer buffer;
+
+    public OffHeapLayer(int size)
+    {
+        super((float[]) null);
+        this.size = size;
+        this.bytes = ByteBuffer.allocateDirect(size * Float.BYTES)
+                .order(ByteOrder.nativeOrder());
+        this.buffer = bytes.asFloatBuffer();
+    }
+
+    public OffHeapLayer(float[] values)
+    {
+        this(values.length);
+        assign(values);
+    }
+
+    @Override
+    public void set(int i, float f)
+    {
+        buffer.put(i, f);
+    }
+
+    @Override
+    public float get(int i)
+    {
+        return buffer.get(i);
+    }
+
+    @Override
+    public void add(int i, float f)
+    {
+        buffer.put(i, buffer.get(i) + f);
+    }
+
+    @Override
+    public void div(int i, float f)
+    {
+        buffer.put(i, buffer.get(i) / f);
+    }
+
+    @Override
+    public void mult(int i, float f)
+    {
+        buffer.put(i, buffer.get(i) * f);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public Layer clone()
+    {
+        OffHeapLayer c = new OffHeapLayer(size);
+        c.buffer.put(buffer.duplicate());
+        c.buffer.clear();
+        return c;
+    }
+
+    @Override
+    public void clear()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            buffer.put(i, 0.0f);
+        }
+    }
+
+    @Override
+    public void copy(float[] src)
+    {
+        buffer.duplicate().get(src, 0, size);
+    }
+
+    @Override
+    public void assign(float[] values)
+    {
+        buffer.duplicate().put(values, 0, size);
+    }
+
+    @Override
+    public float dot(int from, float[] w, int wFrom, int length)
+    {
+        float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+
+        int k = 0;
+        for (; k + 3 < length; k += 4)
+        {
+            s0 += buffer.get(from + k) * w[wFrom + k];
+            s1 += buffer.get(from + k + 1) * w[wFrom + k + 1];
+            s2 += buffer.get(from + k + 2) * w[wFrom + k + 2];
+            s3 += buffer.get(from + k + 3) * w[wFrom + k + 3];
+        }
+
+        for (; k < length; k++)
+        {
+            s0 += buffer.get(from + k) * w[wFrom + k];
+        }
+
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public void copyTo(int from, float[] dest, int destFrom, int length)
+    {
+        FloatBuffer values = buffer.duplicate();
+        values.position(from);
+        values.get(dest, destFrom, length);
+    }
+
+    @Override
+    public boolean hasArray()
+    {
+        return false;
+    }
+
+    @Override
+    public void release()
+    {
+        ByteBuffer released = bytes;
+        bytes = null;
+        buffer = null;
+
+        if (released != null && INVOKE_CLEANER != null)
+        {
+            try
+            {
+                INVOKE_CLEANER.invoke(UNSAFE, released);
+            }
+            catch (Exception e)
+            {
+                //Left to the collector
+            }
+        }
+    }
+
+    @Override
+    public float[] get()
+    {
+        float[] copy = new float[size];
+        copy(copy);
+        return copy;
+    }
+}
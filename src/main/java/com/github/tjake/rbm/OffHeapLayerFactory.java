@@ -0,0 +1,50 @@
+package com.github.tjake.rbm;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Creates {@link OffHeapLayer}s, so the weights and biases of an RBM built
+ * or loaded with this factory live outside of the heap. Call release() on
+ * the RBM to free them. Layers of input data, from bytes, ints or images,
+ * are created on the heap like activations, nothing would release them.
+ */
+public class OffHeapLayerFactory extends LayerFactory
+{
+    private static final LayerFactory HEAP = new LayerFactory();
+
+    @Override
+    public Layer create(int size)
+    {
+        return new OffHeapLayer(size);
+    }
+
+    @Override
+    public Layer create(float[] start)
+    {
+        return new OffHeapLayer(start);
+    }
+
+    @Override
+    public Layer create(int[] data)
+    {
+        return HEAP.create(data);
+    }
+
+    @Override
+    public Layer create(byte[] data)
+    {
+        return HEAP.create(data);
+    }
+
+    @Override
+    public Layer create(BufferedImage img)
+    {
+        return HEAP.create(img);
+    }
+
+    @Override
+    public GaussianLayer createGaussian(byte[] data, NormalizationStats stats)
+    {
+        return HEAP.createGaussian(data, stats);
+    }
+}
@@ -0,0 +1,317 @@
+package com.github.tjake.rbm;
+
+/**
+ * Turns the gradients {@link SimpleRBMTrainer} computes into updates of the
+ * weights and biases of one RBM.
+ *
+ * Optimizers keep state (velocities, running averages) for every parameter,
+ * preallocated when the trainer first sees the shape of its RBM. The state
+ * belongs to a single RBM, so each trainer gets its own optimizer from
+ * {@link #create()} of a configured one.
+ *
+ * Parameters are addressed by slot: slots 0 to numHidden - 1 are the weight
+ * rows, then come the visible and the hidden biases. A weight row has
+ * numVisible weights, unless the RBM shares smaller rows (the filters of
+ * {@link ConvolutionalRBM}).
+ */
+public abstract class Optimizer
+{
+    int numVisible = -1;
+    int numHidden = -1;
+    int rowSize = -1;
+    long batch;
+
+    //Steps not written yet, by slot, only once a threshold is used
+    private float[][] residual;
+
+    //A new optimizer with the same settings and no state
+    public abstract Optimizer create();
+
+    //Allocates the state for numVisible and numHidden, see slots()
+    abstract void allocateState();
+
+    //Number of slots() arrays allocateState allocates
+    abstract int stateArrays();
+
+    //Adds the step for gradient[from, to) (already averaged over the batch,
+    //pointing uphill) to params[from, to). Steps are held back until the
+    //ones of a parameter add up to more than threshold, see write().
+    abstract void apply(
+            int slot,
+            float[] params,
+            float[] gradient,
+            int from,
+            int to,
+            float rate,
+            float threshold);
+
+    void allocate(int numVisible, int numHidden)
+    {
+        allocate(numVisible, numHidden, numVisible);
+    }
+
+    void allocate(int numVisible, int numHidden, int rowSize)
+    {
+        if (this.numVisible == numVisible
+                && this.numHidden == numHidden
+                && this.rowSize == rowSize)
+        {
+            return;
+        }
+
+        this.numVisible = numVisible;
+        this.numHidden = numHidden;
+        this.rowSize = rowSize;
+        this.batch = 0;
+        this.residual = null;
+        allocateState();
+    }
+
+    //Called once before the updates of every batch
+    void nextBatch()
+    {
+        batch++;
+    }
+
+    //One zeroed array per slot
+    float[][] slots()
+    {
+        float[][] slots = new float[numHidden + 2][];
+        for (int i = 0; i < numHidden; i++)
+        {
+            slots[i] = new float[rowSize];
+        }
+
+        slots[numHidden] = new float[numVisible];
+        slots[numHidden + 1] = new float[numHidden];
+        return slots;
+    }
+
+    //Adds step x to params[j] of slot. With a threshold, the steps of a
+    //parameter are summed and only written once the sum is bigger than it,
+    //so small steps are delayed but never lost.
+    final void write(int slot, float[] params, int j, float x, float threshold)
+    {
+        if (threshold <= 0.0f)
+        {
+            if (x != 0.0f)
+            {
+                params[j] += x;
+            }
+
+            return;
+        }
+
+        if (residual == null)
+        {
+            residual = slots();
+        }
+
+        final float[] r = residual[slot];
+        final float sum = r[j] + x;
+
+        if (sum > threshold || -sum > threshold)
+        {
+            params[j] += sum;
+            r[j] = 0.0f;
+        }
+        else
+        {
+            r[j] = sum;
+        }
+    }
+
+    public static Optimizer momentum(float momentum)
+    {
+        return new Momentum(momentum);
+    }
+
+    public static Optimizer rmsProp(float decay, float epsilon)
+    {
+        return new RMSProp(decay, epsilon);
+    }
+
+    public static Optimizer adam(float beta1, float beta2, float epsilon)
+    {
+        return new Adam(beta1, beta2, epsilon);
+    }
+
+    //v = momentum * v + (1 - momentum) * rate * g, p += v. The velocity is
+    //dampened so a step is about rate * g whatever the momentum, which
+    //keeps learning rates tuned without momentum working with it.
+    static final class Momentum extends Optimizer
+    {
+        private final float momentum;
+        private float[][] velocity;
+
+        Momentum(float momentum)
+        {
+            this.momentum = momentum;
+        }
+
+        @Override
+        public Optimizer create()
+        {
+            return new Momentum(momentum);
+        }
+
+        @Override
+        void allocateState()
+        {
+            velocity = slots();
+        }
+
+        @Override
+        int stateArrays()
+        {
+            return 1;
+        }
+
+        @Override
+        void apply(
+                int slot,
+                float[] params,
+                float[] gradient,
+                int from,
+                int to,
+                float rate,
+                float threshold)
+        {
+            final float[] v = velocity[slot];
+
+            for (int j = from; j < to; j++)
+            {
+                final float x = momentum * v[j]
+                        + (1 - momentum) * rate * gradient[j];
+                v[j] = x;
+
+                write(slot, params, j, x, threshold);
+            }
+        }
+    }
+
+    //Scales every step by a running average of the squared gradient
+    static final class RMSProp extends Optimizer
+    {
+        private final float decay;
+        private final float epsilon;
+        private float[][] meanSquare;
+
+        RMSProp(float decay, float epsilon)
+        {
+            this.decay = decay;
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        public Optimizer create()
+        {
+            return new RMSProp(decay, epsilon);
+        }
+
+        @Override
+        void allocateState()
+        {
+            meanSquare = slots();
+        }
+
+        @Override
+        int stateArrays()
+        {
+            return 1;
+        }
+
+        @Override
+        void apply(
+                int slot,
+                float[] params,
+                float[] gradient,
+                int from,
+                int to,
+                float rate,
+                float threshold)
+        {
+            final float[] s = meanSquare[slot];
+
+            for (int j = from; j < to; j++)
+            {
+                final float g = gradient[j];
+                s[j] = decay * s[j] + (1 - decay) * g * g;
+
+                final float x = rate * g / ((float) Math.sqrt(s[j]) + epsilon);
+                write(slot, params, j, x, threshold);
+            }
+        }
+    }
+
+    //Bias corrected running averages of the gradient and its square
+    static final class Adam extends Optimizer
+    {
+        private final float beta1;
+        private final float beta2;
+        private final float epsilon;
+        private float[][] mean;
+        private float[][] meanSquare;
+        private float correction1;
+        private float correction2;
+
+        Adam(float beta1, float beta2, float epsilon)
+        {
+            this.beta1 = beta1;
+            this.beta2 = beta2;
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        public Optimizer create()
+        {
+            return new Adam(beta1, beta2, epsilon);
+        }
+
+        @Override
+        void allocateState()
+        {
+            mean = slots();
+            meanSquare = slots();
+        }
+
+        @Override
+        int stateArrays()
+        {
+            return 2;
+        }
+
+        @Override
+        void nextBatch()
+        {
+            super.nextBatch();
+            correction1 = 1.0f / (1.0f - (float) Math.pow(beta1, batch));
+            correction2 = 1.0f / (1.0f - (float) Math.pow(beta2, batch));
+        }
+
+        @Override
+        void apply(
+                int slot,
+                float[] params,
+                float[] gradient,
+                int from,
+                int to,
+                float rate,
+                float threshold)
+        {
+            final float[] m = mean[slot];
+            final float[] s = meanSquare[slot];
+
+            for (int j = from; j < to; j++)
+            {
+                final float g = gradient[j];
+                m[j] = beta1 * m[j] + (1 - beta1) * g;
+                s[j] = beta2 * s[j] + (1 - beta2) * g * g;
+
+                final float x = rate * m[j] * correction1
+                        / ((float) Math.sqrt(s[j] * correction2) + epsilon);
+                write(slot, params, j, x, threshold);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.github.tjake.rbm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded LRU cache of classification results.
+ *
+ * Entries are keyed on a 128 bit hash of the input packed into bits plus the
+ * version of the model that produced them, so only binary (0/1) inputs can
+ * be cached and a newly published model never serves stale results.
+ */
+public class PredictionCache
+{
+    private final int maxEntries;
+    private final LinkedHashMap<Key, float[]> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PredictionCache(final int maxEntries)
+    {
+        if (maxEntries <= 0)
+        {
+            throw new IllegalArgumentException("Invalid maxEntries");
+        }
+
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, float[]>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, float[]> e)
+            {
+                if (size() > PredictionCache.this.maxEntries)
+                {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    // Returns null (and counts a bypass) when the input isn't binary
+    public Key key(Layer input, long version)
+    {
+        long h1 = 0x9e3779b97f4a7c15L ^ input.size();
+        long h2 = 0xc2b2ae3d27d4eb4fL ^ version;
+        long word = 0;
+
+        for (int i = 0; i < input.size(); i++)
+        {
+            float v = input.get(i);
+
+            if (v == 1.0f)
+            {
+                word |= 1L << (i & 63);
+            }
+            else if (v != 0.0f)
+            {
+                bypassed.incrementAndGet();
+                return null;
+            }
+
+            if ((i & 63) == 63 || i == input.size() - 1)
+            {
+                h1 = mix(h1 ^ word) * 0x9e3779b97f4a7c15L;
+                h2 = mix(h2 + word) * 0xff51afd7ed558ccdL;
+                word = 0;
+            }
+        }
+
+        return new Key(mix(h1), mix(h2), version);
+    }
+
+    public float[] get(Key key)
+    {
+        float[] labels;
+        synchronized (entries)
+        {
+            labels = entries.get(key);
+        }
+
+        (labels == null ? misses : hits).incrementAndGet();
+
+        return labels;
+    }
+
+    public void put(Key key, float[] labels)
+    {
+        synchronized (entries)
+        {
+            entries.put(key, labels.clone());
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getBypassed()
+    {
+        return bypassed.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public double getHitRate()
+    {
+        long h = hits.get();
+        long total = h + misses.get();
+
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PredictionCache{size=" + size()
+                + ", hits=" + getHits()
+                + ", misses=" + getMisses()
+                + ", bypassed=" + getBypassed()
+                + ", evictions=" + getEvictions()
+                + ", hitRate=" + getHitRate() + "}";
+    }
+
+    // MurmurHash3 finalizer
+    private static long mix(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    public static final class Key
+    {
+        private final long h1;
+        private final long h2;
+        private final long version;
+
+        Key(long h1, long h2, long version)
+        {
+            this.h1 = h1;
+            this.h2 = h2;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+
+            Key key = (Key) o;
+            return h1 == key.h1 && h2 == key.h2 && version == key.version;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (h1 ^ (h1 >>> 32));
+        }
+    }
+}
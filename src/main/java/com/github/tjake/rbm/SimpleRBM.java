@@ -20,9 +20,22 @@ public class SimpleRBM
 
     Random rand = new Random();
 
+    // Visible units summed at a time by activateVisible, 16KB of floats
+    private static final int VISIBLE_BLOCK = 4096;
+
+    // Samples scored together by the batched freeEnergy
+    private static final int FREE_ENERGY_BLOCK = 16;
+
     protected float scale = 0.001f;
     boolean gaussianVisibles = false;
 
+    // How raw inputs are normalized for gaussian visibles, if known
+    NormalizationStats normalization;
+
+    // Per thread copy of one weight row for weights that aren't heap
+    // layers, see rowScratch()
+    private final ThreadLocal<float[]> rowScratch = new ThreadLocal<>();
+
     public SimpleRBM()
     {
     }
@@ -68,7 +81,12 @@ public class SimpleRBM
     public void save(DataOutput dataOutput) throws IOException
     {
         dataOutput.write(LayerFactory.MAGIC);
+        saveFields(dataOutput);
+    }
 
+    // Everything save writes after the magic
+    void saveFields(DataOutput dataOutput) throws IOException
+    {
         dataOutput.writeBoolean(gaussianVisibles);
         lfactory.save(biasVisible, dataOutput);
         lfactory.save(biasHidden, dataOutput);
@@ -77,13 +95,21 @@ public class SimpleRBM
         {
             lfactory.save(weight, dataOutput);
         }
+
+        if (gaussianVisibles)
+        {
+            dataOutput.writeBoolean(normalization != null);
+
+            if (normalization != null)
+            {
+                normalization.save(dataOutput);
+            }
+        }
     }
 
     public void load(DataInput dataInput, LayerFactory lfactory)
             throws IOException
     {
-        this.lfactory = lfactory;
-
         byte[] magic = new byte[4];
         dataInput.readFully(magic);
 
@@ -92,6 +118,41 @@ public class SimpleRBM
             throw new IOException("Bad File Format");
         }
 
+        loadFields(dataInput, lfactory);
+    }
+
+    // Loads an RBM written by save, a SimpleRBM or a ConvolutionalRBM
+    // depending on the magic it starts with
+    public static SimpleRBM read(DataInput dataInput, LayerFactory lfactory)
+            throws IOException
+    {
+        byte[] magic = new byte[4];
+        dataInput.readFully(magic);
+
+        SimpleRBM rbm;
+        if (Arrays.equals(LayerFactory.MAGIC, magic))
+        {
+            rbm = new SimpleRBM();
+        }
+        else if (Arrays.equals(ConvolutionalRBM.MAGIC, magic))
+        {
+            rbm = new ConvolutionalRBM();
+        }
+        else
+        {
+            throw new IOException("Bad File Format");
+        }
+
+        rbm.loadFields(dataInput, lfactory);
+        return rbm;
+    }
+
+    // Everything load reads after the magic
+    void loadFields(DataInput dataInput, LayerFactory lfactory)
+            throws IOException
+    {
+        this.lfactory = lfactory;
+
         gaussianVisibles = dataInput.readBoolean();
 
         biasVisible = lfactory.load(dataInput);
@@ -102,13 +163,86 @@ public class SimpleRBM
         {
             weights[i] = lfactory.load(dataInput);
         }
+
+        normalization = gaussianVisibles && dataInput.readBoolean()
+                ? NormalizationStats.load(dataInput)
+                : null;
+    }
+
+    // Deep copy of the biases and weights, shares nothing mutable with this
+    public SimpleRBM copy()
+    {
+        SimpleRBM copy = blank();
+        copy.lfactory = lfactory;
+        copy.scale = scale;
+        copy.gaussianVisibles = gaussianVisibles;
+        copy.normalization = normalization;
+        copy.biasVisible = biasVisible.clone();
+        copy.biasHidden = biasHidden.clone();
+        copy.weights = new Layer[weights.length];
+
+        for (int i = 0; i < weights.length; i++)
+        {
+            copy.weights[i] = weights[i].clone();
+        }
+
+        return copy;
+    }
+
+    // Overwrites the biases and weights of target, a copy() of this, with
+    // the current ones instead of allocating a new copy
+    void copyInto(SimpleRBM target)
+    {
+        int width = Math.max(biasVisible.size(), biasHidden.size());
+        for (Layer weight : weights)
+        {
+            width = Math.max(width, weight.size());
+        }
+
+        final float[] scratch = new float[width];
+
+        copyInto(biasVisible, target.biasVisible, scratch);
+        copyInto(biasHidden, target.biasHidden, scratch);
+
+        for (int i = 0; i < weights.length; i++)
+        {
+            copyInto(weights[i], target.weights[i], scratch);
+        }
+    }
+
+    private static void copyInto(Layer from, Layer to, float[] scratch)
+    {
+        from.copyTo(0, scratch, 0, from.size());
+        to.assign(scratch);
+    }
+
+    // An RBM of the same kind and shape for copy() to fill in
+    SimpleRBM blank()
+    {
+        return new SimpleRBM();
+    }
+
+    // Units of the input of this RBM
+    public int getNumVisible()
+    {
+        return biasVisible.size();
+    }
+
+    // Units of the output of this RBM, what the next level of a stack sees
+    public int getNumHidden()
+    {
+        return biasHidden.size();
     }
 
     // Given visible data, return the expected hidden unit values.
     public Layer activateHidden(final Layer visible)
     {
-        Layer workingHidden = new Layer(biasHidden.size());
+        return activateHidden(visible, new Layer(getNumHidden()));
+    }
 
+    // Same as activateHidden(visible) but writes into (and returns) output
+    public Layer activateHidden(final Layer visible, final Layer workingHidden)
+    {
         if (visible.size() != biasVisible.size())
         {
             throw new IllegalArgumentException("Mismatched input "
@@ -117,25 +251,24 @@ public class SimpleRBM
                     + biasVisible.size());
         }
 
-        // dot product of weights and visible
+        final float[] out = workingHidden.hasArray()
+                ? workingHidden.get()
+                : new float[workingHidden.size()];
+        final int numVisible = visible.size();
+        final float[] scratch = rowScratch();
+
+        // dot product of weights and visible, plus hidden bias. The visible
+        // layer does the reading, so views over other layers aren't copied
         for (int i = 0; i < weights.length; i++)
         {
-            for (int k = 0; k < visible.size(); k++)
-            {
-                workingHidden.add(i, weights[i].get(k) * visible.get(k));
-            }
+            out[i] = Utilities.sigmoid(
+                    visible.dot(0, row(i, scratch), 0, numVisible)
+                            + biasHidden.get(i));
         }
 
-        //Add hidden bias
-        for (int i = 0; i < workingHidden.size(); i++)
+        if (!workingHidden.hasArray())
         {
-            float inputBias = 0.0f;
-
-            workingHidden.set(
-                    i,
-                    Utilities.sigmoid(workingHidden.get(i)
-                            + biasHidden.get(i)
-                            + inputBias));
+            workingHidden.assign(out);
         }
 
         return workingHidden;
@@ -144,29 +277,196 @@ public class SimpleRBM
     // Given hidden states, return the expected visible unit values.
     public Layer activateVisible(final Layer hidden)
     {
-        Layer workingVisible = lfactory.create(biasVisible.size());
+        return activateVisible(hidden, new Layer(getNumVisible()));
+    }
 
-        // dot product of weights and hidden
-        for (int k = 0; k < weights.length; k++)
+    // Same as activateVisible(hidden) but writes into (and returns) output.
+    // Only the first biasHidden.size() units of hidden are used.
+    //
+    // The weights are stored by hidden unit, so this is a sum of weight rows
+    // scaled by the hidden units. It's done one block of visible units at a
+    // time so the block being summed into stays in cache while every row
+    // streams through it once, and rows of inactive hidden units are skipped.
+    public Layer activateVisible(final Layer hidden, final Layer workingVisible)
+    {
+        final float[] out = workingVisible.hasArray()
+                ? workingVisible.get()
+                : new float[workingVisible.size()];
+        final int numVisible = workingVisible.size();
+        final float[] scratch = rowScratch();
+        final int block = scratch == null ? VISIBLE_BLOCK : numVisible;
+
+        Arrays.fill(out, 0, numVisible, 0.0f);
+
+        for (int from = 0; from < numVisible; from += block)
         {
-            for (int i = 0; i < workingVisible.size(); i++)
+            final int to = Math.min(numVisible, from + block);
+
+            for (int k = 0; k < weights.length; k++)
             {
-                workingVisible.add(i, weights[k].get(i) * hidden.get(k));
+                final float hk = hidden.get(k);
+                if (hk == 0.0f)
+                {
+                    continue;
+                }
+
+                final float[] w = row(k, scratch);
+                for (int i = from; i < to; i++)
+                {
+                    out[i] += w[i] * hk;
+                }
             }
         }
 
-        //Add visible bias
-        for (int i = 0; i < workingVisible.size(); i++)
+        addVisibleBias(out, numVisible);
+
+        if (!workingVisible.hasArray())
+        {
+            workingVisible.assign(out);
+        }
+
+        return workingVisible;
+    }
+
+    // Batched activateVisible for hidden[from, to), each block of a weight
+    // row is read once for the whole batch instead of once per sample.
+    // The output layers must be heap layers.
+    public void activateVisible(
+            final Layer[] hidden,
+            final Layer[] workingVisible,
+            int from,
+            int to)
+    {
+        final int numVisible = biasVisible.size();
+        final float[] scratch = rowScratch();
+        final int block = scratch == null ? VISIBLE_BLOCK : numVisible;
+
+        for (int n = from; n < to; n++)
+        {
+            Arrays.fill(workingVisible[n].get(), 0, numVisible, 0.0f);
+        }
+
+        for (int start = 0; start < numVisible; start += block)
+        {
+            final int end = Math.min(numVisible, start + block);
+
+            for (int k = 0; k < weights.length; k++)
+            {
+                final float[] w = row(k, scratch);
+
+                for (int n = from; n < to; n++)
+                {
+                    final float hk = hidden[n].get(k);
+                    if (hk == 0.0f)
+                    {
+                        continue;
+                    }
+
+                    final float[] out = workingVisible[n].get();
+                    for (int i = start; i < end; i++)
+                    {
+                        out[i] += w[i] * hk;
+                    }
+                }
+            }
+        }
+
+        for (int n = from; n < to; n++)
+        {
+            addVisibleBias(workingVisible[n].get(), numVisible);
+        }
+    }
+
+    // Null when the weights are heap layers, otherwise room for a copy of
+    // one weight row (see row()), allocated once per thread
+    private float[] rowScratch()
+    {
+        if (weights[0].hasArray())
+        {
+            return null;
+        }
+
+        float[] scratch = rowScratch.get();
+        if (scratch == null || scratch.length != biasVisible.size())
+        {
+            scratch = new float[biasVisible.size()];
+            rowScratch.set(scratch);
+        }
+
+        return scratch;
+    }
+
+    // The array backing weight row i, or a copy of it in scratch when the
+    // row doesn't live on the heap (see OffHeapLayer). The kernels then work
+    // on whole rows, since each copy costs a full pass over the row.
+    private float[] row(final int i, final float[] scratch)
+    {
+        if (scratch == null)
+        {
+            return weights[i].get();
+        }
+
+        weights[i].copy(scratch);
+        return scratch;
+    }
+
+    // a[aFrom...] . b[bFrom...] over length values. Four independent
+    // partial sums so the adds don't wait on each other
+    static float dot(
+            final float[] a,
+            final int aFrom,
+            final float[] b,
+            final int bFrom,
+            final int length)
+    {
+        float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+
+        int k = 0;
+        for (; k + 3 < length; k += 4)
         {
-            workingVisible.add(i, biasVisible.get(i));
+            s0 += a[aFrom + k] * b[bFrom + k];
+            s1 += a[aFrom + k + 1] * b[bFrom + k + 1];
+            s2 += a[aFrom + k + 2] * b[bFrom + k + 2];
+            s3 += a[aFrom + k + 3] * b[bFrom + k + 3];
+        }
+
+        for (; k < length; k++)
+        {
+            s0 += a[aFrom + k] * b[bFrom + k];
+        }
+
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    void addVisibleBias(final float[] out, final int numVisible)
+    {
+        for (int i = 0; i < numVisible; i++)
+        {
+            out[i] += biasVisible.get(i);
 
             if (!gaussianVisibles)
             {
-                workingVisible.set(i, Utilities.sigmoid(workingVisible.get(i)));
+                out[i] = Utilities.sigmoid(out[i]);
             }
         }
+    }
 
-        return workingVisible;
+    // Throws when the weights can't be trained or averaged, a SparseRBM
+    // has none to update
+    public void checkTrainable()
+    {
+    }
+
+    // Frees the weights and biases when they live outside of the heap
+    public void release()
+    {
+        biasVisible.release();
+        biasHidden.release();
+
+        for (Layer weight : weights)
+        {
+            weight.release();
+        }
     }
 
     public Iterator<Tuple> iterator(Layer visible)
@@ -244,17 +544,69 @@ public class SimpleRBM
         };
     }
 
-    public float freeEnergy()
+    // Free energy of a visible vector, F(v) = -log sum_h exp(-E(v, h)).
+    // Lower is more probable under the model.
+    public float freeEnergy(Layer visible)
+    {
+        float[] energy = new float[1];
+        freeEnergy(new Layer[] {visible}, energy, 0, 1);
+        return energy[0];
+    }
+
+    // Batched freeEnergy for visible[from, to) into energy[from, to). Samples
+    // are taken FREE_ENERGY_BLOCK at a time so each weight row is read once
+    // per block instead of once per sample.
+    public void freeEnergy(
+            final Layer[] visible,
+            final float[] energy,
+            final int from,
+            final int to)
+    {
+        final int numVisible = biasVisible.size();
+        final float[] scratch = rowScratch();
+
+        for (int start = from; start < to; start += FREE_ENERGY_BLOCK)
+        {
+            final int end = Math.min(to, start + FREE_ENERGY_BLOCK);
+
+            for (int n = start; n < end; n++)
+            {
+                energy[n] = visibleEnergy(visible[n], numVisible);
+            }
+
+            for (int k = 0; k < weights.length; k++)
+            {
+                final float[] w = row(k, scratch);
+                final float bias = biasHidden.get(k);
+
+                for (int n = start; n < end; n++)
+                {
+                    energy[n] -= Utilities.softplus(
+                            visible[n].dot(0, w, 0, numVisible) + bias);
+                }
+            }
+        }
+    }
+
+    // The part of the free energy that only depends on the visible units,
+    // -b.v for binary visibles and |v - b|^2 / 2 for unit variance gaussians
+    float visibleEnergy(final Layer visible, final int numVisible)
     {
         float energy = 0.0f;
 
-        for (int j = 0; j < biasHidden.size(); j++)
+        for (int i = 0; i < numVisible; i++)
         {
-            for (int i = 0; i < biasVisible.size(); i++)
+            final float b = biasVisible.get(i);
+            final float v = visible.get(i);
+
+            if (gaussianVisibles)
+            {
+                final float d = v - b;
+                energy += 0.5f * d * d;
+            }
+            else
             {
-                energy -= biasVisible.get(i)
-                        * biasHidden.get(j)
-                        * weights[j].get(i);
+                energy -= b * v;
             }
         }
 
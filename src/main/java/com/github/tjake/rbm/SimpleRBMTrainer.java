@@ -1,18 +1,42 @@
 package com.github.tjake.rbm;
 
-import java.util.Iterator;
+import com.github.tjake.util.Utilities;
+
+import java.util.Arrays;
 import java.util.List;
 
 public class SimpleRBMTrainer
 {
-    private final float momentum;
-    private final float l2;
-    private final Float targetSparsity;
-    private final float learningRate;
+    // Visible units per block of the fused update, sized so the block of
+    // every positive and negative visible sample of a batch stays in cache
+    private static final int VISIBLE_BLOCK = 512;
+
+    final float l2;
+    final Float targetSparsity;
+    final float learningRate;
+    float updateThreshold = 0.0f;
+    Optimizer optimizer;
+    LearningRateSchedule schedule = LearningRateSchedule.constant();
+    private AllocationTracker allocations;
+
+    // Positive (up) and negative (down) phase of every sample of the batch,
+    // one row per sample
+    private float[][] vPos;
+    private float[][] hPos;
+    private float[][] vNeg;
+    private float[][] hNeg;
 
-    private Layer[] gWeights;
-    private Layer gVisible;
-    private Layer gHidden;
+    private Layer[] vPosLayers;
+    private Layer[] hPosLayers;
+    private Layer[] vNegLayers;
+    private Layer[] hNegLayers;
+    private Layer hSample;
+
+    private float[] gWeight;
+    private float[] weightRow;
+    private float[] gVisible;
+    private float[] gHidden;
+    private float[] biasScratch;
 
     public SimpleRBMTrainer(
             float momentum,
@@ -20,10 +44,48 @@ public class SimpleRBMTrainer
             Float targetSparsity,
             Float learningRate)
     {
-        this.momentum = momentum;
         this.l2 = l2;
         this.targetSparsity = targetSparsity;
         this.learningRate = learningRate;
+        this.optimizer = Optimizer.momentum(momentum);
+    }
+
+    //Replaces the default momentum optimizer, the trainer gets a fresh copy
+    //of the given one so its state is never shared with another trainer
+    public SimpleRBMTrainer setOptimizer(Optimizer optimizer)
+    {
+        this.optimizer = optimizer.create();
+        return this;
+    }
+
+    public SimpleRBMTrainer setSchedule(LearningRateSchedule schedule)
+    {
+        this.schedule = schedule;
+        return this;
+    }
+
+    //Records the bytes every call to learn allocates, null to stop
+    public SimpleRBMTrainer setAllocationTracker(AllocationTracker allocations)
+    {
+        this.allocations = allocations;
+        return this;
+    }
+
+    //Batches trained since the shape of the rbm last changed
+    public long getBatches()
+    {
+        return optimizer.batch;
+    }
+
+    //Weight changes are held back until the ones of a weight add up to more
+    //than threshold, then written at once. When several trainers share one
+    //rbm (see HogwildRBMTrainer) this keeps each of them from writing the
+    //cache lines of weights it barely moves, at the cost of one more float
+    //per parameter.
+    public SimpleRBMTrainer setUpdateThreshold(float threshold)
+    {
+        this.updateThreshold = threshold;
+        return this;
     }
 
     public double learn(
@@ -31,122 +93,248 @@ public class SimpleRBMTrainer
             List<Layer> inputBatch,
             boolean reverse)
     {
-        final int batchSize = inputBatch.size();
+        final AllocationTracker allocations = this.allocations;
+        final long allocated = allocations == null ? -1 : allocations.begin();
 
-        if (gWeights == null
-                || gWeights.length != rbm.biasHidden.size()
-                || gWeights[0].size() != rbm.biasVisible.size())
+        try
         {
-            gWeights = new Layer[rbm.biasHidden.size()];
-            for (int i = 0; i < gWeights.length; i++)
-            {
-                gWeights[i] = new Layer(rbm.biasVisible.size());
-            }
-
-            gVisible = new Layer(rbm.biasVisible.size());
-            gHidden = new Layer(rbm.biasHidden.size());
+            return learnBatch(rbm, inputBatch, reverse);
         }
-        else
+        finally
         {
-            for (Layer aGw : gWeights)
+            if (allocations != null)
             {
-                aGw.clear();
+                allocations.end(allocated);
             }
-
-            gVisible.clear();
-            gHidden.clear();
         }
+    }
+
+    double learnBatch(
+            final SimpleRBM rbm,
+            List<Layer> inputBatch,
+            boolean reverse)
+    {
+        rbm.checkTrainable();
 
-        // Contrastive Divergance
-        for (Layer input : inputBatch)
+        final int batchSize = inputBatch.size();
+        final int numVisible = rbm.biasVisible.size();
+        final int numHidden = rbm.biasHidden.size();
+
+        allocate(batchSize, numVisible, numHidden);
+
+        // Contrastive Divergance, one up/down pass per sample
+        for (int b = 0; b < batchSize; b++)
         {
             try
             {
-                Iterator<Tuple> it = reverse
-                        ? rbm.reverseIterator(input)
-                        : rbm.iterator(input);
+                Layer input = inputBatch.get(b);
 
-                Tuple up = it.next();
-                Tuple down = it.next();
-
-                for (int i = 0; i < gWeights.length; i++)
+                if (input.size() != (reverse ? numHidden : numVisible))
                 {
-                    final Layer weight = gWeights[i];
-                    for (int j = 0; j < gWeights[i].size(); j++)
-                    {
-                        weight.add(
-                                j,
-                                (up.hidden.get(i) * up.visible.get(j))
-                                - (down.hidden.get(i) * down.visible.get(j)));
-                    }
+                    throw new IllegalArgumentException("Mismatched input "
+                            + input.size());
                 }
 
-                for (int i = 0; i < gVisible.size(); i++)
+                if (reverse)
                 {
-                    gVisible.add(i, up.visible.get(i) - down.visible.get(i));
+                    input.copy(hPos[b]);
+                    rbm.activateVisible(
+                            Utilities.bernoulli(hPosLayers[b], hSample),
+                            vPosLayers[b]);
                 }
-
-                for (int i = 0; i < gHidden.size(); i++)
+                else
                 {
-                    gHidden.add(
-                            i,
-                            targetSparsity == null
-                                    ? up.hidden.get(i) - down.hidden.get(i)
-                                    : targetSparsity - up.hidden.get(i));
+                    input.copy(vPos[b]);
+                    rbm.activateHidden(vPosLayers[b], hPosLayers[b]);
                 }
+
+                rbm.activateVisible(
+                        Utilities.bernoulli(hPosLayers[b], hSample),
+                        vNegLayers[b]);
+                rbm.activateHidden(vNegLayers[b], hNegLayers[b]);
             }
             catch (Throwable t)
             {
                 t.printStackTrace();
+
+                // Leave the sample out of the gradient
+                Arrays.fill(vPos[b], 0.0f);
+                Arrays.fill(hPos[b], 0.0f);
+                Arrays.fill(vNeg[b], 0.0f);
+                Arrays.fill(hNeg[b], 0.0f);
             }
         }
 
-        // Average
-        for (int i = 0; i < gWeights.length; i++)
+        optimizer.nextBatch();
+        final float rate = schedule.rate(learningRate, optimizer.batch - 1);
+
+        updateWeights(rbm, batchSize, numVisible, numHidden, rate);
+
+        Arrays.fill(gVisible, 0, numVisible, 0.0f);
+        Arrays.fill(gHidden, 0, numHidden, 0.0f);
+
+        for (int b = 0; b < batchSize; b++)
         {
-            for (int j = 0; j < gWeights[i].size(); j++)
+            for (int i = 0; i < numVisible; i++)
             {
-                float x = gWeights[i].get(j) / batchSize * (1 - momentum);
-                x = x + momentum * (x - l2 * rbm.weights[i].get(j));
+                gVisible[i] += vPos[b][i] - vNeg[b][i];
+            }
+
+            for (int i = 0; i < numHidden; i++)
+            {
+                gHidden[i] += hPos[b][i] - hNeg[b][i];
 
-                rbm.weights[i].add(j, learningRate * x);
+                // Pulls the mean activation of each hidden unit towards
+                // the target
+                if (targetSparsity != null)
+                {
+                    gHidden[i] += targetSparsity - hPos[b][i];
+                }
             }
         }
 
         double error = 0.0;
 
-        for (int i = 0; i < gVisible.size(); i++)
+        for (int i = 0; i < numVisible; i++)
         {
-            float x = gVisible.get(i) / batchSize;
+            gVisible[i] /= batchSize;
+            error += gVisible[i] * gVisible[i];
+        }
+
+        for (int i = 0; i < numHidden; i++)
+        {
+            gHidden[i] /= batchSize;
+        }
+
+        update(rbm.biasVisible, numHidden, gVisible, rate);
+        update(rbm.biasHidden, numHidden + 1, gHidden, rate);
 
-            error += x * x;
+        return Math.sqrt(error / numVisible);
+    }
 
-            x = x * (1 - momentum);
-            x = x + (momentum * (x * rbm.biasVisible.get(i)));
+    void update(Layer bias, int slot, float[] gradient, float rate)
+    {
+        final float[] params = bias.hasArray() ? bias.get() : biasScratch;
 
-            rbm.biasVisible.add(i, learningRate * x);
+        if (!bias.hasArray())
+        {
+            bias.copy(params);
         }
 
-        error = Math.sqrt(error / gVisible.size());
+        optimizer.apply(
+                slot,
+                params,
+                gradient,
+                0,
+                bias.size(),
+                rate,
+                updateThreshold);
 
-        if (targetSparsity != null)
+        if (!bias.hasArray())
         {
-            for (int i = 0; i < gHidden.size(); i++)
-            {
-                gHidden.set(i, targetSparsity - gHidden.get(i) / batchSize);
-            }
+            bias.assign(params);
         }
-        else
+    }
+
+    // The weight gradient is the batched outer product difference
+    // vPos^T * hPos - vNeg^T * hNeg. Each block of it is computed and applied
+    // (averaged, with l2, by the optimizer) right away, so the
+    // weights are read and written once per batch and the gradient never
+    // exists as a full matrix.
+    private void updateWeights(
+            final SimpleRBM rbm,
+            final int batchSize,
+            final int numVisible,
+            final int numHidden,
+            final float rate)
+    {
+        final float[] g = gWeight;
+
+        // Weights off the heap are copied in and out a whole row at a time
+        final boolean onHeap = rbm.weights[0].hasArray();
+        final int block = onHeap ? VISIBLE_BLOCK : numVisible;
+
+        for (int from = 0; from < numVisible; from += block)
         {
-            for (int i = 0; i < gHidden.size(); i++)
+            final int to = Math.min(numVisible, from + block);
+
+            for (int i = 0; i < numHidden; i++)
             {
-                float x = gHidden.get(i) / batchSize * (1 - momentum);
-                x = x + momentum * x * rbm.biasHidden.get(i);
+                Arrays.fill(g, from, to, 0.0f);
+
+                for (int b = 0; b < batchSize; b++)
+                {
+                    final float up = hPos[b][i];
+                    final float down = hNeg[b][i];
+                    final float[] vUp = vPos[b];
+                    final float[] vDown = vNeg[b];
+
+                    for (int j = from; j < to; j++)
+                    {
+                        g[j] += up * vUp[j] - down * vDown[j];
+                    }
+                }
 
-                rbm.biasHidden.add(i, learningRate * x);
+                final float[] weight = onHeap
+                        ? rbm.weights[i].get()
+                        : weightRow;
+
+                if (!onHeap)
+                {
+                    rbm.weights[i].copy(weight);
+                }
+
+                for (int j = from; j < to; j++)
+                {
+                    g[j] = g[j] / batchSize - l2 * weight[j];
+                }
+
+                optimizer.apply(i, weight, g, from, to, rate, updateThreshold);
+
+                if (!onHeap)
+                {
+                    rbm.weights[i].assign(weight);
+                }
             }
         }
+    }
+
+    private void allocate(int batchSize, int numVisible, int numHidden)
+    {
+        if (vPos == null
+                || vPos.length < batchSize
+                || vPos[0].length != numVisible
+                || hPos[0].length != numHidden)
+        {
+            vPos = new float[batchSize][numVisible];
+            hPos = new float[batchSize][numHidden];
+            vNeg = new float[batchSize][numVisible];
+            hNeg = new float[batchSize][numHidden];
+
+            vPosLayers = layers(vPos);
+            hPosLayers = layers(hPos);
+            vNegLayers = layers(vNeg);
+            hNegLayers = layers(hNeg);
+            hSample = new Layer(numHidden);
+
+            gWeight = new float[numVisible];
+            weightRow = new float[numVisible];
+            gVisible = new float[numVisible];
+            gHidden = new float[numHidden];
+            biasScratch = new float[Math.max(numVisible, numHidden)];
+        }
+
+        optimizer.allocate(numVisible, numHidden);
+    }
+
+    private static Layer[] layers(float[][] rows)
+    {
+        Layer[] layers = new Layer[rows.length];
+        for (int i = 0; i < rows.length; i++)
+        {
+            layers[i] = new Layer(rows[i]);
+        }
 
-        return error;
+        return layers;
     }
 }
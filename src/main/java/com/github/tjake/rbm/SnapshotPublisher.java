@@ -0,0 +1,46 @@
+package com.github.tjake.rbm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out the latest {@link StackedRBMSnapshot} of a model without
+ * locking.
+ *
+ * The thread that mutates the model (usually the trainer) calls
+ * {@link #publish(StackedRBM)} between batches, inference threads call
+ * {@link #get()} and keep using whatever snapshot they got for as long as
+ * they need it.
+ */
+public class SnapshotPublisher
+{
+    private final AtomicReference<StackedRBMSnapshot> current
+            = new AtomicReference<>();
+
+    private final AtomicLong nextVersion = new AtomicLong();
+
+    public SnapshotPublisher()
+    {
+    }
+
+    public SnapshotPublisher(StackedRBM rbm)
+    {
+        publish(rbm);
+    }
+
+    // Must be called from the thread that owns (mutates) the given rbm
+    public StackedRBMSnapshot publish(StackedRBM rbm)
+    {
+        StackedRBMSnapshot snapshot
+                = new StackedRBMSnapshot(rbm, nextVersion.getAndIncrement());
+        current.set(snapshot);
+
+        return snapshot;
+    }
+
+    // Returns null until something has been published
+    public StackedRBMSnapshot get()
+    {
+        return current.get();
+    }
+}
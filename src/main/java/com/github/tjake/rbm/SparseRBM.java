@@ -0,0 +1,402 @@
+package com.github.tjake.rbm;
+
+import com.github.tjake.util.Utilities;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A trained {@link SimpleRBM} with its smallest weights dropped (magnitude
+ * pruning) and the rest stored in compressed sparse row (CSR) form: the
+ * values of the weights left in a row, by hidden unit, the visible unit of
+ * each and where every row starts. The kernels only touch the weights
+ * left, so they get faster as the RBM gets sparser.
+ *
+ * For inference only, it has no dense weights for trainers to update or
+ * parameter averaging to read, see checkTrainable(). The biases are kept
+ * on the heap whatever the layer factory, and the sparse weights are never
+ * mutated, so copies share them. save() writes the dense form with the
+ * dropped weights as zeros, which loads as a plain SimpleRBM.
+ */
+public class SparseRBM extends SimpleRBM
+{
+    private final int numVisible;
+
+    // Read by InferencePlan, never mutated
+    final float[] values;
+    final int[] columns;
+    final int[] rowStarts;
+
+    // Per thread copy of inputs that aren't one array, see array()
+    private final ThreadLocal<float[]> inputScratch =
+            ThreadLocal.withInitial(() -> new float[getNumVisible()]);
+
+    private SparseRBM(
+            SimpleRBM dense,
+            Layer biasVisible,
+            Layer biasHidden,
+            float[] values,
+            int[] columns,
+            int[] rowStarts)
+    {
+        this.lfactory = dense.lfactory;
+        this.scale = dense.scale;
+        this.gaussianVisibles = dense.gaussianVisibles;
+        this.normalization = dense.normalization;
+        this.biasVisible = biasVisible;
+        this.biasHidden = biasHidden;
+        this.numVisible = biasVisible.size();
+        this.values = values;
+        this.columns = columns;
+        this.rowStarts = rowStarts;
+    }
+
+    // Keeps the weights of rbm bigger than threshold in magnitude
+    public static SparseRBM prune(SimpleRBM rbm, float threshold)
+    {
+        if (rbm instanceof ConvolutionalRBM || rbm instanceof SparseRBM)
+        {
+            throw new IllegalArgumentException("Only dense, fully connected "
+                    + "RBMs can be pruned");
+        }
+
+        final int numHidden = rbm.getNumHidden();
+        final int[] rowStarts = new int[numHidden + 1];
+
+        for (int i = 0; i < numHidden; i++)
+        {
+            final float[] w = rbm.weights[i].get();
+            int kept = 0;
+
+            for (float x : w)
+            {
+                if (Math.abs(x) > threshold)
+                {
+                    kept++;
+                }
+            }
+
+            rowStarts[i + 1] = rowStarts[i] + kept;
+        }
+
+        final float[] values = new float[rowStarts[numHidden]];
+        final int[] columns = new int[rowStarts[numHidden]];
+
+        for (int i = 0; i < numHidden; i++)
+        {
+            final float[] w = rbm.weights[i].get();
+
+            for (int j = 0, k = rowStarts[i]; j < w.length; j++)
+            {
+                if (Math.abs(w[j]) > threshold)
+                {
+                    values[k] = w[j];
+                    columns[k] = j;
+                    k++;
+                }
+            }
+        }
+
+        return new SparseRBM(
+                rbm,
+                new Layer(rbm.biasVisible.get().clone()),
+                new Layer(rbm.biasHidden.get().clone()),
+                values,
+                columns,
+                rowStarts);
+    }
+
+    // The magnitude under which a fraction sparsity of the weights of rbm
+    // are, so prune(rbm, threshold(rbm, sparsity)) drops that fraction
+    // (more with ties). Found with two radix passes over the bits of the
+    // magnitudes, which sort like the magnitudes since they're positive,
+    // so the weights are never copied or sorted.
+    public static float threshold(SimpleRBM rbm, float sparsity)
+    {
+        if (sparsity < 0.0f || sparsity > 1.0f)
+        {
+            throw new IllegalArgumentException("Invalid sparsity " + sparsity);
+        }
+
+        final long count = (long) rbm.getNumHidden() * rbm.getNumVisible();
+        final long drop = Math.round(sparsity * (double) count);
+
+        if (drop == 0)
+        {
+            return -1.0f;
+        }
+
+        // Rank of the biggest magnitude dropped among the smallest first
+        long rank = drop - 1;
+
+        final long[] high = new long[1 << 16];
+        for (Layer row : rbm.weights)
+        {
+            for (float x : row.get())
+            {
+                high[Float.floatToRawIntBits(Math.abs(x)) >>> 16]++;
+            }
+        }
+
+        int top = 0;
+        while (rank >= high[top])
+        {
+            rank -= high[top++];
+        }
+
+        final long[] low = new long[1 << 16];
+        for (Layer row : rbm.weights)
+        {
+            for (float x : row.get())
+            {
+                final int bits = Float.floatToRawIntBits(Math.abs(x));
+
+                if (bits >>> 16 == top)
+                {
+                    low[bits & 0xffff]++;
+                }
+            }
+        }
+
+        int bottom = 0;
+        while (rank >= low[bottom])
+        {
+            rank -= low[bottom++];
+        }
+
+        return Float.intBitsToFloat(top << 16 | bottom);
+    }
+
+    // Weights left
+    public int getNonZeros()
+    {
+        return values.length;
+    }
+
+    // Fraction of the weights left
+    public double getDensity()
+    {
+        return (double) values.length / ((long) getNumHidden() * numVisible);
+    }
+
+    // Bytes of the sparse weights: a value and a column per weight left and
+    // the start of every row
+    public long getWeightBytes()
+    {
+        return (long) values.length * (Float.BYTES + Integer.BYTES)
+                + (long) rowStarts.length * Integer.BYTES;
+    }
+
+    @Override
+    public Layer activateHidden(final Layer visible, final Layer workingHidden)
+    {
+        if (visible.size() != numVisible)
+        {
+            throw new IllegalArgumentException("Mismatched input "
+                    + visible.size()
+                    + " != "
+                    + numVisible);
+        }
+
+        final float[] out = workingHidden.hasArray()
+                ? workingHidden.get()
+                : new float[workingHidden.size()];
+        final float[] v = array(visible);
+        final float[] bias = biasHidden.get();
+
+        for (int i = 0; i < bias.length; i++)
+        {
+            out[i] = Utilities.sigmoid(dot(i, v) + bias[i]);
+        }
+
+        if (!workingHidden.hasArray())
+        {
+            workingHidden.assign(out);
+        }
+
+        return workingHidden;
+    }
+
+    @Override
+    public Layer activateVisible(final Layer hidden, final Layer workingVisible)
+    {
+        final float[] out = workingVisible.hasArray()
+                ? workingVisible.get()
+                : new float[workingVisible.size()];
+
+        Arrays.fill(out, 0, numVisible, 0.0f);
+
+        for (int k = 0; k < rowStarts.length - 1; k++)
+        {
+            scatter(k, hidden.get(k), out);
+        }
+
+        addVisibleBias(out, numVisible);
+
+        if (!workingVisible.hasArray())
+        {
+            workingVisible.assign(out);
+        }
+
+        return workingVisible;
+    }
+
+    @Override
+    public void activateVisible(
+            final Layer[] hidden,
+            final Layer[] workingVisible,
+            int from,
+            int to)
+    {
+        for (int n = from; n < to; n++)
+        {
+            final float[] out = workingVisible[n].get();
+            Arrays.fill(out, 0, numVisible, 0.0f);
+
+            for (int k = 0; k < rowStarts.length - 1; k++)
+            {
+                scatter(k, hidden[n].get(k), out);
+            }
+
+            addVisibleBias(out, numVisible);
+        }
+    }
+
+    @Override
+    public void freeEnergy(
+            final Layer[] visible,
+            final float[] energy,
+            final int from,
+            final int to)
+    {
+        final float[] bias = biasHidden.get();
+
+        for (int n = from; n < to; n++)
+        {
+            final float[] v = array(visible[n]);
+            float e = visibleEnergy(visible[n], numVisible);
+
+            for (int i = 0; i < bias.length; i++)
+            {
+                e -= Utilities.softplus(dot(i, v) + bias[i]);
+            }
+
+            energy[n] = e;
+        }
+    }
+
+    // The values of layer, in its own array when it has one
+    private float[] array(final Layer layer)
+    {
+        if (layer.hasArray() && layer.get().length == numVisible)
+        {
+            return layer.get();
+        }
+
+        final float[] buffer = inputScratch.get();
+        layer.copyTo(0, buffer, 0, numVisible);
+        return buffer;
+    }
+
+    // Row i of the weights . v
+    private float dot(final int i, final float[] v)
+    {
+        float s0 = 0.0f, s1 = 0.0f;
+
+        int k = rowStarts[i];
+        final int end = rowStarts[i + 1];
+
+        for (; k + 1 < end; k += 2)
+        {
+            s0 += values[k] * v[columns[k]];
+            s1 += values[k + 1] * v[columns[k + 1]];
+        }
+
+        if (k < end)
+        {
+            s0 += values[k] * v[columns[k]];
+        }
+
+        return s0 + s1;
+    }
+
+    // out += row k of the weights * hk
+    private void scatter(final int k, final float hk, final float[] out)
+    {
+        if (hk == 0.0f)
+        {
+            return;
+        }
+
+        for (int j = rowStarts[k]; j < rowStarts[k + 1]; j++)
+        {
+            out[columns[j]] += values[j] * hk;
+        }
+    }
+
+    // The dense RBM with the dropped weights as zeros, on the heap
+    public SimpleRBM toDense()
+    {
+        SimpleRBM dense = new SimpleRBM();
+        dense.lfactory = lfactory;
+        dense.scale = scale;
+        dense.gaussianVisibles = gaussianVisibles;
+        dense.normalization = normalization;
+        dense.biasVisible = biasVisible.clone();
+        dense.biasHidden = biasHidden.clone();
+        dense.weights = new Layer[getNumHidden()];
+
+        for (int i = 0; i < dense.weights.length; i++)
+        {
+            float[] w = new float[numVisible];
+
+            for (int j = rowStarts[i]; j < rowStarts[i + 1]; j++)
+            {
+                w[columns[j]] = values[j];
+            }
+
+            dense.weights[i] = new Layer(w);
+        }
+
+        return dense;
+    }
+
+    @Override
+    public void save(DataOutput dataOutput) throws IOException
+    {
+        toDense().save(dataOutput);
+    }
+
+    // The sparse weights are never mutated, only the biases are copied
+    @Override
+    public SimpleRBM copy()
+    {
+        return new SparseRBM(
+                this,
+                biasVisible.clone(),
+                biasHidden.clone(),
+                values,
+                columns,
+                rowStarts);
+    }
+
+    // Nothing lives outside of the heap
+    @Override
+    public void release()
+    {
+    }
+
+    @Override
+    public void checkTrainable()
+    {
+        throw new UnsupportedOperationException("A pruned RBM is inference "
+                + "only, train the dense RBM and prune it again");
+    }
+
+    @Override
+    void copyInto(SimpleRBM target)
+    {
+        checkTrainable();
+    }
+}
@@ -14,13 +14,21 @@ public class StackedRBM extends SimpleRBM
     private List<Integer> layerSizes;
     private List<Integer> customInputSizes;
     private List<Boolean> gaussianFlag;
+    private List<ConvolutionalRBM.Shape> convolutions;
     List<SimpleRBM> innerRBMs;
 
+    //Checked by build(), no check when negative
+    private long memoryBudget = -1;
+    private int budgetBatchSize;
+    private Optimizer budgetOptimizer;
+    private boolean budgetSnapshots;
+
     public StackedRBM()
     {
         layerSizes = new ArrayList<>();
         customInputSizes = new ArrayList<>();
         gaussianFlag = new ArrayList<>();
+        convolutions = new ArrayList<>();
         innerRBMs = new ArrayList<>();
     }
 
@@ -43,6 +51,46 @@ public class StackedRBM extends SimpleRBM
         return this;
     }
 
+    // Adds the pooling units of a convolutional RBM (see ConvolutionalRBM)
+    // over the last layer added, which must be a rows x cols image
+    public StackedRBM addConvolutionalLayer(
+            int rows,
+            int cols,
+            int filters,
+            int filterSize,
+            int poolSize)
+    {
+        if (!innerRBMs.isEmpty())
+        {
+            throw new RuntimeException(
+                    "Can't add new layers after already built");
+        }
+
+        if (layerSizes.isEmpty()
+                || layerSizes.get(layerSizes.size() - 1) != rows * cols)
+        {
+            throw new IllegalArgumentException(
+                    "Requires a " + rows + "x" + cols + " layer below");
+        }
+
+        ConvolutionalRBM.Shape shape = new ConvolutionalRBM.Shape(
+                rows,
+                cols,
+                filters,
+                filterSize,
+                poolSize);
+
+        while (convolutions.size() < layerSizes.size())
+        {
+            convolutions.add(null);
+        }
+
+        convolutions.add(shape);
+        layerSizes.add(shape.getNumHidden());
+        gaussianFlag.add(false);
+        return this;
+    }
+
     public StackedRBM withCustomInput(int numUnits)
     {
         while (customInputSizes.size() < layerSizes.size())
@@ -68,15 +116,26 @@ public class StackedRBM extends SimpleRBM
                     "Requires at least two layers to build");
         }
 
+        if (memoryBudget >= 0)
+        {
+            checkMemoryBudget();
+        }
+
         for (int i = 0; i < layerSizes.size() - 1; i++)
         {
-            int inputSize = layerSizes.get(i);
+            int inputSize = inputSize(i);
+            ConvolutionalRBM.Shape shape = convolution(i);
 
-            if (!customInputSizes.isEmpty()
-                    && customInputSizes.size() >= i
-                    && customInputSizes.get(i + 1) != null)
+            if (shape != null)
             {
-                inputSize = customInputSizes.get(i + 1);
+                innerRBMs.add(
+                        new ConvolutionalRBM(
+                            shape,
+                            gaussianFlag.get(i),
+                            layerFactory));
+
+                System.out.println("Added convolutional RBM " + shape);
+                continue;
             }
 
             innerRBMs.add(
@@ -93,6 +152,162 @@ public class StackedRBM extends SimpleRBM
         return this;
     }
 
+    //Visible units of level i, the size of the layer below unless
+    //withCustomInput changed it
+    private int inputSize(int i)
+    {
+        if (customInputSizes.size() > i + 1 && customInputSizes.get(i + 1) != null)
+        {
+            return customInputSizes.get(i + 1);
+        }
+
+        return layerSizes.get(i);
+    }
+
+    //Null unless level i is convolutional
+    private ConvolutionalRBM.Shape convolution(int i)
+    {
+        return i + 1 < convolutions.size() ? convolutions.get(i + 1) : null;
+    }
+
+    //Makes build() check the plan of the configured levels, trained on
+    //batches of batchSize with optimizer (null for the default momentum),
+    //against heapBytes. Over the budget, the weights are moved off the
+    //heap with an OffHeapLayerFactory if the layer factory is the plain
+    //heap one and that's enough, otherwise build() fails before allocating
+    //anything.
+    public StackedRBM withMemoryBudget(
+            long heapBytes,
+            int batchSize,
+            Optimizer optimizer)
+    {
+        return withMemoryBudget(heapBytes, batchSize, optimizer, false);
+    }
+
+    //Same, counting the copy of the level being trained a ValidationMonitor
+    //keeps when it checks the training
+    public StackedRBM withMemoryBudget(
+            long heapBytes,
+            int batchSize,
+            Optimizer optimizer,
+            boolean snapshots)
+    {
+        if (heapBytes < 0 || batchSize <= 0)
+        {
+            throw new IllegalArgumentException("Invalid budget or batchSize");
+        }
+
+        this.memoryBudget = heapBytes;
+        this.budgetBatchSize = batchSize;
+        this.budgetOptimizer = optimizer;
+        this.budgetSnapshots = snapshots;
+        return this;
+    }
+
+    //Estimate of the memory the levels configured so far need once built
+    //and trained on batches of batchSize with the default momentum optimizer
+    public MemoryPlan plan(int batchSize)
+    {
+        return plan(batchSize, null);
+    }
+
+    public MemoryPlan plan(int batchSize, Optimizer optimizer)
+    {
+        return plan(batchSize, optimizer, false);
+    }
+
+    //With snapshots, the plan also counts the copy of the level being
+    //trained a ValidationMonitor keeps
+    public MemoryPlan plan(int batchSize, Optimizer optimizer, boolean snapshots)
+    {
+        return plan(
+                batchSize,
+                optimizer,
+                snapshots,
+                layerFactory instanceof OffHeapLayerFactory);
+    }
+
+    private MemoryPlan plan(
+            int batchSize,
+            Optimizer optimizer,
+            boolean snapshots,
+            boolean offHeap)
+    {
+        if (layerSizes.size() <= 1)
+        {
+            throw new IllegalArgumentException(
+                    "Requires at least two layers to plan");
+        }
+
+        if (batchSize <= 0)
+        {
+            throw new IllegalArgumentException("Invalid batchSize");
+        }
+
+        final int optimizerArrays = optimizer == null
+                ? Optimizer.momentum(0.0f).stateArrays()
+                : optimizer.stateArrays();
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final List<MemoryPlan.Level> levels = new ArrayList<>();
+
+        for (int i = 0; i < layerSizes.size() - 1; i++)
+        {
+            final boolean top = i == layerSizes.size() - 2;
+            final ConvolutionalRBM.Shape shape = convolution(i);
+
+            levels.add(shape != null
+                    ? MemoryPlan.convolutional(
+                            shape,
+                            top,
+                            batchSize,
+                            threads,
+                            optimizerArrays,
+                            snapshots)
+                    : MemoryPlan.simple(
+                            inputSize(i),
+                            layerSizes.get(i + 1),
+                            top,
+                            batchSize,
+                            optimizerArrays,
+                            offHeap,
+                            snapshots));
+        }
+
+        return new MemoryPlan(levels, batchSize, threads);
+    }
+
+    private void checkMemoryBudget()
+    {
+        MemoryPlan plan = plan(budgetBatchSize, budgetOptimizer, budgetSnapshots);
+
+        if (plan.getHeapBytes() > memoryBudget
+                && layerFactory.getClass() == LayerFactory.class)
+        {
+            MemoryPlan offHeap = plan(
+                    budgetBatchSize,
+                    budgetOptimizer,
+                    budgetSnapshots,
+                    true);
+
+            if (offHeap.getHeapBytes() <= memoryBudget)
+            {
+                System.out.println("Moved the weights off heap to fit "
+                        + memoryBudget + " bytes");
+                layerFactory = new OffHeapLayerFactory();
+                plan = offHeap;
+            }
+        }
+
+        System.out.println(plan);
+
+        if (plan.getHeapBytes() > memoryBudget)
+        {
+            throw new IllegalStateException("Needs " + plan.getHeapBytes()
+                    + " bytes of heap, over the budget of " + memoryBudget
+                    + " bytes:\n" + plan);
+        }
+    }
+
     public Layer activateHidden(Layer visible, Layer bias)
     {
         throw new UnsupportedOperationException();
@@ -177,32 +392,129 @@ public class StackedRBM extends SimpleRBM
         {
             System.out.println("Loading rbm " + i);
 
-            SimpleRBM loaded = new SimpleRBM();
-            loaded.load(dataInput, layerFactory);
-            innerRBMs.add(loaded);
+            innerRBMs.add(SimpleRBM.read(dataInput, layerFactory));
         }
     }
 
+    // Dataset-wide statistics the raw input of a gaussian bottom level is
+    // normalized with, saved and loaded with the model
+    public StackedRBM setNormalization(NormalizationStats normalization)
+    {
+        SimpleRBM bottom = getLevel(0);
+
+        if (!bottom.gaussianVisibles)
+        {
+            throw new IllegalStateException(
+                    "Only gaussian visibles are normalized");
+        }
+
+        if (normalization.size() != bottom.biasVisible.size())
+        {
+            throw new IllegalArgumentException("Expected "
+                    + bottom.biasVisible.size() + " features");
+        }
+
+        bottom.normalization = normalization;
+        return this;
+    }
+
+    // Null unless the bottom level is gaussian and has statistics
+    public NormalizationStats getNormalization()
+    {
+        return innerRBMs.isEmpty() ? null : getLevel(0).normalization;
+    }
+
     public List<SimpleRBM> getInnerRBMs()
     {
         return innerRBMs;
     }
 
+    //Sum of the free energy of every level for its input: visible for the
+    //bottom level, the activations of the level below for the others. A
+    //level wider than the one below (see withCustomInput) has the units
+    //left padded with 0.1, as DBNClassifier does.
     @Override
-    public float freeEnergy()
+    public void freeEnergy(Layer[] visible, float[] energy, int from, int to)
     {
-        float energy = 0.0f;
+        final Layer[] inputs = visible.clone();
+        final float[] levelEnergy = new float[energy.length];
 
-        for (SimpleRBM rbm : innerRBMs)
+        Arrays.fill(energy, from, to, 0.0f);
+
+        for (int i = 0; i < innerRBMs.size(); i++)
+        {
+            SimpleRBM rbm = innerRBMs.get(i);
+
+            if (i > 0)
+            {
+                SimpleRBM below = innerRBMs.get(i - 1);
+                int extra = rbm.getNumVisible() - below.getNumHidden();
+                Layer padding = extra > 0 ? padding(extra) : null;
+
+                for (int n = from; n < to; n++)
+                {
+                    Layer hidden = below.activateHidden(inputs[n]);
+                    inputs[n] = padding != null
+                            ? new ConcatLayer(hidden, padding)
+                            : hidden;
+                }
+            }
+
+            rbm.freeEnergy(inputs, levelEnergy, from, to);
+
+            for (int n = from; n < to; n++)
+            {
+                energy[n] += levelEnergy[n];
+            }
+        }
+    }
+
+    private static Layer padding(int size)
+    {
+        Layer padding = new Layer(size);
+        for (int j = 0; j < size; j++)
         {
-            energy += rbm.freeEnergy();
+            padding.set(j, 0.1f);
         }
 
-        return energy;
+        return padding;
+    }
+
+    @Override
+    public void release()
+    {
+        for (SimpleRBM rbm : innerRBMs)
+        {
+            rbm.release();
+        }
     }
 
     public SimpleRBM getLevel(int i)
     {
         return innerRBMs.get(i);
     }
+
+    //A copy for inference with the smallest weights of every fully connected
+    //level dropped, a fraction sparsity of each, see SparseRBM. Other levels
+    //are copied as they are.
+    public StackedRBM prune(float sparsity)
+    {
+        StackedRBM pruned = new StackedRBM().setLayerFactory(layerFactory);
+
+        for (SimpleRBM rbm : innerRBMs)
+        {
+            pruned.innerRBMs.add(rbm.getClass() == SimpleRBM.class
+                    ? SparseRBM.prune(rbm, SparseRBM.threshold(rbm, sparsity))
+                    : rbm.copy());
+        }
+
+        return pruned;
+    }
+
+    //An immutable copy of the levels for single input inference, see
+    //InferencePlan
+    public InferencePlan compile()
+    {
+        return new InferencePlan(this);
+    }
 }
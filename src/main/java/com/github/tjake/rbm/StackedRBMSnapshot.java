@@ -0,0 +1,113 @@
+package com.github.tjake.rbm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An immutable copy of the weights and biases of a {@link StackedRBM} taken
+ * at a point in time. Only read operations are exposed, so any number of
+ * threads can use a snapshot while a trainer keeps mutating the original.
+ */
+public final class StackedRBMSnapshot
+{
+    private final long version;
+    private final List<SimpleRBM> levels;
+
+    StackedRBMSnapshot(StackedRBM rbm, long version)
+    {
+        this.version = version;
+
+        List<SimpleRBM> copies = new ArrayList<>(rbm.innerRBMs.size());
+        for (SimpleRBM level : rbm.innerRBMs)
+        {
+            copies.add(level.copy());
+        }
+
+        this.levels = Collections.unmodifiableList(copies);
+    }
+
+    // A one off snapshot of rbm, version 0, for models that are done
+    // training. Use a SnapshotPublisher to hand out the snapshots of a model
+    // that keeps changing.
+    public static StackedRBMSnapshot of(StackedRBM rbm)
+    {
+        return new StackedRBMSnapshot(rbm, 0);
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public int getNumLevels()
+    {
+        return levels.size();
+    }
+
+    public int getNumVisible(int level)
+    {
+        return levels.get(level).getNumVisible();
+    }
+
+    public int getNumHidden(int level)
+    {
+        return levels.get(level).getNumHidden();
+    }
+
+    public Layer activateHidden(int level, Layer visible)
+    {
+        return levels.get(level).activateHidden(visible);
+    }
+
+    public Layer activateVisible(int level, Layer hidden)
+    {
+        return levels.get(level).activateVisible(hidden);
+    }
+
+    public Layer activateHidden(int level, Layer visible, Layer output)
+    {
+        return levels.get(level).activateHidden(visible, output);
+    }
+
+    public Layer activateVisible(int level, Layer hidden, Layer output)
+    {
+        return levels.get(level).activateVisible(hidden, output);
+    }
+
+    public void activateVisible(
+            int level,
+            Layer[] hidden,
+            Layer[] output,
+            int from,
+            int to)
+    {
+        levels.get(level).activateVisible(hidden, output, from, to);
+    }
+
+    public void freeEnergy(
+            int level,
+            Layer[] visible,
+            float[] energy,
+            int from,
+            int to)
+    {
+        levels.get(level).freeEnergy(visible, energy, from, to);
+    }
+
+    // Same as StackedRBM.iterator: propagates the input up to the top level
+    // and starts the Gibbs chain there
+    public Iterator<Tuple> iterator(Layer visible)
+    {
+        Layer input = visible;
+
+        for (int i = 0; i < levels.size() - 1; i++)
+        {
+            visible = levels.get(i).activateHidden(visible);
+        }
+
+        return levels.get(levels.size() - 1)
+                .iterator(visible, new Tuple.Factory(input));
+    }
+}
@@ -1,15 +1,44 @@
 package com.github.tjake.rbm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 public class StackedRBMTrainer
 {
+    //Batches that can wait between two stages of learnPipelined
+    private static final int PIPELINE_DEPTH = 2;
+
     private final StackedRBM stackedRBM;
-    private final SimpleRBMTrainer inputTrainer;
+    //One trainer per level, so every level keeps its own buffers and
+    //optimizer state
+    private final List<SimpleRBMTrainer> levelTrainers = new ArrayList<>();
     final float momentum;
+    final float l2;
     final Float targetSparsity;
     float learningRate;
+    private Optimizer optimizer;
+    private LearningRateSchedule schedule = LearningRateSchedule.constant();
+
+    private SnapshotPublisher publisher;
+    private int publishEvery;
+    private int batchesSincePublish;
+
+    private ValidationMonitor monitor;
+    private int checkEvery;
+
+    private int allocationWarmup = -1;
+    private final List<AllocationTracker> allocations = new ArrayList<>();
 
     public StackedRBMTrainer(
             StackedRBM stackedRBM,
@@ -20,14 +49,76 @@ public class StackedRBMTrainer
     {
         this.stackedRBM = stackedRBM;
         this.momentum = momentum;
+        this.l2 = l2;
         this.targetSparsity = targetSparsity;
         this.learningRate = learningRate;
+    }
+
+    //Optimizer for every level, see SimpleRBMTrainer.setOptimizer. Starts
+    //every level over with fresh optimizer state.
+    public StackedRBMTrainer setOptimizer(Optimizer optimizer)
+    {
+        this.optimizer = optimizer;
+        levelTrainers.clear();
+        return this;
+    }
+
+    //Learning rate schedule of every level, each level starts it over
+    public StackedRBMTrainer setSchedule(LearningRateSchedule schedule)
+    {
+        this.schedule = schedule;
+        levelTrainers.clear();
+        return this;
+    }
+
+    //Publishes a new snapshot of the stacked RBM every publishEvery batches,
+    //from the training thread so the copy never sees a half applied update
+    public StackedRBMTrainer setPublisher(
+            SnapshotPublisher publisher,
+            int publishEvery)
+    {
+        if (publishEvery <= 0)
+        {
+            throw new IllegalArgumentException("Invalid publishEvery");
+        }
+
+        this.publisher = publisher;
+        this.publishEvery = publishEvery;
+        this.batchesSincePublish = 0;
+        return this;
+    }
+
+    //Checks the level being trained by learnPipelined with monitor every
+    //checkEvery batches and stops the level once the monitor reports it as
+    //converged. The monitor belongs to one level, pass null to remove it.
+    public StackedRBMTrainer setValidationMonitor(
+            ValidationMonitor monitor,
+            int checkEvery)
+    {
+        if (monitor != null && checkEvery <= 0)
+        {
+            throw new IllegalArgumentException("Invalid checkEvery");
+        }
 
-        inputTrainer = new SimpleRBMTrainer(
-                momentum,
-                l2,
-                targetSparsity,
-                learningRate);
+        this.monitor = monitor;
+        this.checkEvery = checkEvery;
+        return this;
+    }
+
+    //Counts the bytes every stage of learnPipelined allocates per batch,
+    //leaving the first warmup batches out. A negative warmup turns the
+    //tracking off.
+    public StackedRBMTrainer setAllocationTracking(int warmup)
+    {
+        this.allocationWarmup = warmup;
+        return this;
+    }
+
+    //The trackers of the last call to learnPipelined, one for the source,
+    //one for every frozen level and one for the level being trained
+    public List<AllocationTracker> getAllocationTrackers()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(allocations));
     }
 
     //Starts at the bottom of the DBN and uses the output of one RBM as the input of
@@ -41,60 +132,478 @@ public class StackedRBMTrainer
             List<Layer> topBatch,
             int stopAt)
     {
-        if (topBatch != null
-                && !topBatch.isEmpty()
-                && topBatch.size() != bottomBatch.size())
+        validate(bottomBatch, topBatch, stopAt);
+
+        List<Layer> nextInputs = new ArrayList<>(bottomBatch);
+
+        //Use the hidden of each layer as the inputs of the next layer
+        for (int i = 0; i < stopAt - 1; i++)
         {
-            throw new IllegalArgumentException("TopBatch != BottomBatch");
+            for (int j = 0; j < nextInputs.size(); j++)
+            {
+                Layer next = stackedRBM
+                        .getLevel(i)
+                        .activateHidden(nextInputs.get(j));
+
+                if (appendTop(topBatch, i, stopAt))
+                {
+                    next = new ConcatLayer(next, topBatch.get(j));
+                }
+
+                nextInputs.set(j, next);
+            }
+        }
+
+        //At stopping point do actual learning
+        return train(stopAt - 1, nextInputs);
+    }
+
+    //Same as learnPipelined below with monitor set for the level (see
+    //setValidationMonitor), which is removed and closed once it's done
+    public void learnPipelined(
+            final Supplier<Batch> source,
+            final int iterations,
+            final int stopAt,
+            final ValidationMonitor monitor,
+            final int checkEvery,
+            final BatchListener listener)
+    {
+        setValidationMonitor(monitor, checkEvery);
+
+        try
+        {
+            learnPipelined(source, iterations, stopAt, listener);
         }
+        finally
+        {
+            setValidationMonitor(null, 0);
+            monitor.close();
+        }
+    }
 
-        if (stopAt < 0 || stopAt > stackedRBM.innerRBMs.size())
+    //Same as calling learn(batch.bottom, batch.top, stopAt) for iterations
+    //batches from source, but every level below stopAt - 1 runs on its own
+    //thread. The stages are connected by bounded queues, so the lower levels
+    //work on the next batches while the level being trained is busy with the
+    //current one. The source is called from its own thread as well, a
+    //BatchSource gets every batch back once the bottom level is done with it.
+    //
+    //The listener is called from the calling thread after every batch and
+    //can stop the training early by returning false. So can the validation
+    //monitor, if one is set. The first failure of any stage stops the
+    //pipeline and is rethrown.
+    public void learnPipelined(
+            final Supplier<Batch> source,
+            final int iterations,
+            final int stopAt,
+            final BatchListener listener)
+    {
+        if (stopAt <= 0 || stopAt > stackedRBM.innerRBMs.size())
         {
             throw new IllegalArgumentException("Invalid stopAt");
         }
 
-        List<Layer> nextInputs = new ArrayList<>(bottomBatch);
+        final int numStages = stopAt;  //the source plus every frozen level
+        final List<BlockingQueue<Batch>> queues = new ArrayList<>();
+        final List<BlockingQueue<Batch>> recycled = new ArrayList<>();
 
-        for (int i = 0; i < stopAt; i++)
+        for (int i = 0; i < numStages; i++)
         {
-            //At stopping point do actual learning
-            if (i == stopAt - 1)
+            queues.add(new ArrayBlockingQueue<>(PIPELINE_DEPTH));
+            recycled.add(new ArrayBlockingQueue<>(PIPELINE_DEPTH + 2));
+        }
+
+        final AllocationTracker[] trackers = trackers(stopAt);
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final ExecutorService stages = Executors.newFixedThreadPool(numStages);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        futures.add(stages.submit(() -> {
+            try
+            {
+                for (int p = 0;
+                        p < iterations && !stopped.get() && failure.get() == null;
+                        p++)
+                {
+                    long allocated = begin(trackers[0]);
+                    Batch batch = source.get();
+                    end(trackers[0], allocated);
+
+                    validate(batch.bottom, batch.top, stopAt);
+                    queues.get(0).put(batch);
+                }
+            }
+            catch (Throwable t)
             {
-                return inputTrainer.learn(
-                        stackedRBM.innerRBMs.get(i),
-                        nextInputs,
-                        false);
+                failure.compareAndSet(null, t);
             }
+            finally
+            {
+                finish(queues.get(0), failure);
+            }
+            return null;
+        }));
 
-            //Use the hidden of this layer as the inputs of the next layer
-            for (int j = 0; j < nextInputs.size(); j++)
+        for (int level = 0; level < stopAt - 1; level++)
+        {
+            final int i = level;
+            futures.add(stages.submit(() -> {
+                BlockingQueue<Batch> in = queues.get(i);
+                BlockingQueue<Batch> out = queues.get(i + 1);
+                try
+                {
+                    Batch batch;
+                    while (failure.get() == null && (batch = in.take()) != Batch.END)
+                    {
+                        long allocated = begin(trackers[i + 1]);
+                        Batch next = propagate(i, batch, stopAt, recycled.get(i + 1));
+                        end(trackers[i + 1], allocated);
+
+                        if (i > 0)
+                        {
+                            recycled.get(i).offer(batch);
+                        }
+                        else
+                        {
+                            recycle(source, batch);
+                        }
+
+                        out.put(next);
+                    }
+                }
+                catch (Throwable t)
+                {
+                    failure.compareAndSet(null, t);
+                }
+                finally
+                {
+                    finish(out, failure);
+                }
+                return null;
+            }));
+        }
+
+        try
+        {
+            BlockingQueue<Batch> in = queues.get(numStages - 1);
+            int p = 0;
+            Batch batch;
+            while (failure.get() == null && (batch = in.take()) != Batch.END)
             {
-                Layer next = stackedRBM
-                        .getLevel(i)
-                        .activateHidden(nextInputs.get(j));
+                double error = train(stopAt - 1, batch.bottom);
 
-                if (topBatch != null && !topBatch.isEmpty() && i == stopAt - 2)
+                if (numStages > 1)
                 {
-                    float[] nextConcat = new float[next.size() + topBatch.get(j).size()];
-                    System.arraycopy(next.get(), 0, nextConcat, 0, next.size());
-                    System.arraycopy(
-                            topBatch.get(j).get(), 0,
-                            nextConcat, next.size(),
-                            topBatch.get(j).size());
-
-                    next = new Layer(nextConcat);
+                    recycled.get(numStages - 1).offer(batch);
                 }
                 else
                 {
-                    next = stackedRBM
-                        .getLevel(i)
-                        .activateHidden(nextInputs.get(j));
+                    recycle(source, batch);
                 }
 
-                nextInputs.set(j, next);
+                if (monitor != null && p % checkEvery == 0)
+                {
+                    monitor.check(stackedRBM, stopAt, p);
+                }
+
+                if (!stopped.get()
+                        && (!listener.onBatch(p++, error) || converged()))
+                {
+                    //Let the batches already in flight drain
+                    stopped.set(true);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            //Wakes up any stage still blocked on a queue
+            stopped.set(true);
+            stages.shutdownNow();
+            trainer(stopAt - 1).setAllocationTracker(null);
+        }
+
+        for (Future<?> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e)
+            {
+                //Only finish() throws, when it's interrupted
+                failure.compareAndSet(null, e.getCause());
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException)
+        {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error)
+        {
+            throw (Error) t;
+        }
+        if (t != null)
+        {
+            throw new RuntimeException(t);
+        }
+    }
+
+    //Ends a stage's output. Once a stage failed nothing may be left to take
+    //from a full queue, so the end is only offered and the stages and the
+    //caller check for the failure after every batch instead.
+    private static void finish(
+            BlockingQueue<Batch> out,
+            AtomicReference<Throwable> failure) throws InterruptedException
+    {
+        if (failure.get() != null)
+        {
+            out.offer(Batch.END);
+        }
+        else
+        {
+            out.put(Batch.END);
+        }
+    }
+
+    //The source's batches belong to the caller, unless it takes them back
+    private static void recycle(Supplier<Batch> source, Batch batch)
+    {
+        if (source instanceof BatchSource)
+        {
+            ((BatchSource) source).recycle(batch);
+        }
+    }
+
+    //Null trackers unless allocation tracking is on
+    private AllocationTracker[] trackers(int stopAt)
+    {
+        AllocationTracker[] trackers = new AllocationTracker[stopAt + 1];
+        allocations.clear();
+
+        if (allocationWarmup < 0)
+        {
+            return trackers;
+        }
+
+        trackers[0] = new AllocationTracker("source", allocationWarmup);
+        for (int i = 0; i < stopAt - 1; i++)
+        {
+            trackers[i + 1] = new AllocationTracker(
+                    "level " + (i + 1),
+                    allocationWarmup);
+        }
+
+        trackers[stopAt] = new AllocationTracker(
+                "training level " + stopAt,
+                allocationWarmup);
+        trainer(stopAt - 1).setAllocationTracker(trackers[stopAt]);
+
+        allocations.addAll(Arrays.asList(trackers));
+        return trackers;
+    }
+
+    private static long begin(AllocationTracker tracker)
+    {
+        return tracker == null ? -1 : tracker.begin();
+    }
+
+    private static void end(AllocationTracker tracker, long begin)
+    {
+        if (tracker != null)
+        {
+            tracker.end(begin);
+        }
+    }
+
+    private boolean converged()
+    {
+        if (monitor == null || !monitor.isConverged())
+        {
+            return false;
+        }
+
+        System.out.println("Validation error stopped improving after "
+                + monitor.getChecks() + " checks, error = " + monitor.getError()
+                + ", gap = " + monitor.getGap());
+        return true;
+    }
+
+    //Activates level on every sample of the batch, reusing the buffers of a
+    //recycled batch when one is available
+    private Batch propagate(
+            int level,
+            Batch batch,
+            int stopAt,
+            BlockingQueue<Batch> recycled)
+    {
+        SimpleRBM rbm = stackedRBM.getLevel(level);
+        boolean appendTop = appendTop(batch.top, level, stopAt);
+        int size = rbm.getNumHidden()
+                + (appendTop ? batch.top.get(0).size() : 0);
+
+        Batch next = recycled.poll();
+        if (next == null
+                || next.bottom.size() != batch.bottom.size()
+                || next.bottom.get(0).size() != size)
+        {
+            List<Layer> bottom = new ArrayList<>(batch.bottom.size());
+            for (int j = 0; j < batch.bottom.size(); j++)
+            {
+                bottom.add(new Layer(size));
+            }
+
+            next = new Batch(bottom, null);
+        }
+
+        for (int j = 0; j < batch.bottom.size(); j++)
+        {
+            Layer out = next.bottom.get(j);
+            rbm.activateHidden(batch.bottom.get(j), out);
+
+            if (appendTop)
+            {
+                concat(out, batch.top.get(j), out);
+            }
+        }
+
+        //The top batch is only needed until it has been appended
+        List<Layer> top = appendTop ? null : batch.top;
+        return next.top == top ? next : new Batch(next.bottom, top);
+    }
+
+    private double train(int level, List<Layer> inputs)
+    {
+        double error = trainer(level).learn(
+                stackedRBM.innerRBMs.get(level),
+                inputs,
+                false);
+
+        if (publisher != null && ++batchesSincePublish >= publishEvery)
+        {
+            publisher.publish(stackedRBM);
+            batchesSincePublish = 0;
+        }
+
+        return error;
+    }
+
+    private SimpleRBMTrainer trainer(int level)
+    {
+        while (levelTrainers.size() <= level)
+        {
+            levelTrainers.add(null);
+        }
+
+        SimpleRBMTrainer trainer = levelTrainers.get(level);
+        if (trainer == null)
+        {
+            trainer = stackedRBM.getLevel(level) instanceof ConvolutionalRBM
+                    ? new ConvolutionalRBMTrainer(
+                            momentum,
+                            l2,
+                            targetSparsity,
+                            learningRate)
+                    : new SimpleRBMTrainer(
+                            momentum,
+                            l2,
+                            targetSparsity,
+                            learningRate);
+            trainer.setSchedule(schedule);
+
+            if (optimizer != null)
+            {
+                trainer.setOptimizer(optimizer);
             }
+
+            levelTrainers.set(level, trainer);
+        }
+
+        return trainer;
+    }
+
+    private void validate(
+            List<Layer> bottomBatch,
+            List<Layer> topBatch,
+            int stopAt)
+    {
+        if (topBatch != null
+                && !topBatch.isEmpty()
+                && topBatch.size() != bottomBatch.size())
+        {
+            throw new IllegalArgumentException("TopBatch != BottomBatch");
+        }
+
+        if (stopAt <= 0 || stopAt > stackedRBM.innerRBMs.size())
+        {
+            throw new IllegalArgumentException("Invalid stopAt");
+        }
+    }
+
+    //The top batch is appended to the output of the last level below stopAt
+    static boolean appendTop(List<Layer> topBatch, int level, int stopAt)
+    {
+        return topBatch != null && !topBatch.isEmpty() && level == stopAt - 2;
+    }
+
+    //Writes hidden followed by top into the heap layer output, which may
+    //be hidden itself. Where output isn't reused, a ConcatLayer view of the
+    //two does the same without copying.
+    static Layer concat(Layer hidden, Layer top, Layer output)
+    {
+        int size = output.size() - top.size();
+
+        if (output != hidden)
+        {
+            hidden.copyTo(0, output.get(), 0, size);
         }
 
-        throw new IllegalStateException("Didn't find a level top stop at");
+        top.copyTo(0, output.get(), size, top.size());
+
+        return output;
+    }
+
+    //A bottom batch and its (optional) top batch
+    public static class Batch
+    {
+        static final Batch END = new Batch(
+                Collections.<Layer>emptyList(),
+                null);
+
+        public final List<Layer> bottom;
+        public final List<Layer> top;
+
+        public Batch(List<Layer> bottom, List<Layer> top)
+        {
+            this.bottom = bottom;
+            this.top = top;
+        }
+    }
+
+    //A source of batches for learnPipelined that reuses their buffers
+    public interface BatchSource extends Supplier<Batch>
+    {
+        //The bottom batch of batch is no longer used and can be refilled.
+        //Its top batch may still be, until it's been appended further up.
+        //Called from the stage that consumed batch.
+        void recycle(Batch batch);
+    }
+
+    public interface BatchListener
+    {
+        //Return false to stop training
+        boolean onBatch(int iteration, double error);
     }
 }
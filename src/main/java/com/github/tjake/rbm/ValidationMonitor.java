@@ -0,0 +1,318 @@
+package com.github.tjake.rbm;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tells when one level of a {@link StackedRBM} is done training.
+ *
+ * A fixed sample of the training data and a held out sample are propagated
+ * to the level being trained. Each check reconstructs the held out sample
+ * with the level, and once the reconstruction error hasn't fallen by more
+ * than minDelta below its best for patience checks in a row, after at least
+ * minBatches batches, the monitor reports the level as converged. A patience
+ * of zero only reports and never stops the training.
+ *
+ * Each check also scores both samples with the free energy of the level.
+ * While the model generalizes both average about the same, once it starts
+ * to overfit the validation energy rises above the training energy. The
+ * difference is the gap, reported for information only.
+ *
+ * Each check copies the level being trained on the training thread, into
+ * the same copy every time, and scores it on a background thread, checks
+ * made while one is still running are skipped. The levels below are frozen
+ * while it trains, so they're read in place.
+ *
+ * A monitor is meant for a single level, close it when the level is done.
+ */
+public class ValidationMonitor implements AutoCloseable
+{
+    private final StackedRBMTrainer.Batch training;
+    private final StackedRBMTrainer.Batch validation;
+    private final int minBatches;
+    private final int patience;
+    private final float minDelta;
+
+    private final ExecutorService scorer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "validation-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    //Written by the training thread and read by the scoring thread, never
+    //both at once, see running
+    private SimpleRBM copy;
+    private int copyOf = -1;
+
+    //Only touched by the scoring thread
+    private int inputsFor = -1;
+    private Layer[] trainingInputs;
+    private Layer[] validationInputs;
+    private Layer[] hidden;
+    private Layer[] reconstructed;
+    private float[] energies;
+    private float bestError = Float.POSITIVE_INFINITY;
+    private int checksWithoutImprovement;
+
+    private volatile long checks;
+    private volatile float trainingEnergy = Float.NaN;
+    private volatile float validationEnergy = Float.NaN;
+    private volatile float gap = Float.NaN;
+    private volatile float error = Float.NaN;
+    private volatile boolean converged;
+
+    //The top of either batch is appended the same way the trainer appends
+    //the top of its input batches, leave it null or empty if it isn't used
+    public ValidationMonitor(
+            StackedRBMTrainer.Batch training,
+            StackedRBMTrainer.Batch validation,
+            int minBatches,
+            int patience,
+            float minDelta)
+    {
+        if (training.bottom.isEmpty() || validation.bottom.isEmpty())
+        {
+            throw new IllegalArgumentException("Empty sample");
+        }
+
+        if (minBatches < 0 || patience < 0 || minDelta < 0.0f)
+        {
+            throw new IllegalArgumentException(
+                    "Invalid minBatches, patience or minDelta");
+        }
+
+        this.training = training;
+        this.validation = validation;
+        this.minBatches = minBatches;
+        this.patience = patience;
+        this.minDelta = minDelta;
+    }
+
+    //Called from the training thread after batches batches, scores the
+    //current weights of level stopAt - 1 unless the previous check is still
+    //being scored
+    public void check(final StackedRBM rbm, final int stopAt, final long batches)
+    {
+        if (!running.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        try
+        {
+            SimpleRBM level = rbm.getLevel(stopAt - 1);
+
+            if (copyOf != stopAt)
+            {
+                if (copy != null)
+                {
+                    copy.release();
+                }
+
+                copy = level.copy();
+                copyOf = stopAt;
+            }
+            else
+            {
+                level.copyInto(copy);
+            }
+        }
+        catch (RuntimeException | Error e)
+        {
+            running.set(false);
+            throw e;
+        }
+
+        scorer.execute(() -> {
+            try
+            {
+                score(rbm, stopAt, batches);
+            }
+            catch (Throwable t)
+            {
+                t.printStackTrace();
+            }
+            finally
+            {
+                running.set(false);
+            }
+        });
+    }
+
+    private void score(StackedRBM rbm, int stopAt, long batches)
+    {
+        //The levels below the one being trained don't change, so the
+        //samples only need to be propagated once
+        if (inputsFor != stopAt)
+        {
+            trainingInputs = propagate(rbm, training, stopAt);
+            validationInputs = propagate(rbm, validation, stopAt);
+
+            final int size = Math.max(
+                    trainingInputs.length,
+                    validationInputs.length);
+            energies = new float[size];
+            hidden = new Layer[validationInputs.length];
+            reconstructed = new Layer[validationInputs.length];
+
+            for (int n = 0; n < validationInputs.length; n++)
+            {
+                hidden[n] = new Layer(copy.getNumHidden());
+                reconstructed[n] = new Layer(copy.getNumVisible());
+            }
+
+            inputsFor = stopAt;
+        }
+
+        float t = meanFreeEnergy(trainingInputs);
+        float v = meanFreeEnergy(validationInputs);
+        float e = reconstructionError(validationInputs);
+
+        if (e < bestError - minDelta)
+        {
+            bestError = e;
+            checksWithoutImprovement = 0;
+        }
+        else
+        {
+            checksWithoutImprovement++;
+        }
+
+        trainingEnergy = t;
+        validationEnergy = v;
+        gap = v - t;
+        error = e;
+        checks++;
+        converged = patience > 0
+                && batches >= minBatches
+                && checksWithoutImprovement >= patience;
+    }
+
+    private float meanFreeEnergy(Layer[] inputs)
+    {
+        copy.freeEnergy(inputs, energies, 0, inputs.length);
+
+        double sum = 0.0;
+        for (int n = 0; n < inputs.length; n++)
+        {
+            sum += energies[n];
+        }
+
+        return (float) (sum / inputs.length);
+    }
+
+    //Root mean square difference between the inputs and their
+    //reconstruction from the expected hidden units
+    private float reconstructionError(Layer[] inputs)
+    {
+        for (int n = 0; n < inputs.length; n++)
+        {
+            copy.activateHidden(inputs[n], hidden[n]);
+        }
+
+        copy.activateVisible(hidden, reconstructed, 0, inputs.length);
+
+        double sum = 0.0;
+        for (int n = 0; n < inputs.length; n++)
+        {
+            for (int j = 0; j < inputs[n].size(); j++)
+            {
+                final double d = inputs[n].get(j) - reconstructed[n].get(j);
+                sum += d * d;
+            }
+        }
+
+        return (float) Math.sqrt(
+                sum / ((long) inputs.length * copy.getNumVisible()));
+    }
+
+    //Same propagation as StackedRBMTrainer.learn
+    private static Layer[] propagate(
+            StackedRBM rbm,
+            StackedRBMTrainer.Batch batch,
+            int stopAt)
+    {
+        List<Layer> top = batch.top;
+        Layer[] inputs = batch.bottom.toArray(new Layer[batch.bottom.size()]);
+
+        for (int i = 0; i < stopAt - 1; i++)
+        {
+            for (int j = 0; j < inputs.length; j++)
+            {
+                Layer next = rbm.getLevel(i).activateHidden(inputs[j]);
+
+                if (StackedRBMTrainer.appendTop(top, i, stopAt))
+                {
+                    next = new ConcatLayer(next, top.get(j));
+                }
+
+                inputs[j] = next;
+            }
+        }
+
+        return inputs;
+    }
+
+    //Whether the validation error stopped falling for patience checks in a
+    //row, after at least minBatches batches
+    public boolean isConverged()
+    {
+        return converged;
+    }
+
+    public long getChecks()
+    {
+        return checks;
+    }
+
+    //Reconstruction error of the validation sample at the last check, NaN
+    //before
+    public float getError()
+    {
+        return error;
+    }
+
+    //Mean free energy of the training sample at the last check, NaN before
+    public float getTrainingEnergy()
+    {
+        return trainingEnergy;
+    }
+
+    //Mean free energy of the validation sample at the last check, NaN before
+    public float getValidationEnergy()
+    {
+        return validationEnergy;
+    }
+
+    //Validation minus training energy at the last check, NaN before
+    public float getGap()
+    {
+        return gap;
+    }
+
+    @Override
+    public void close()
+    {
+        scorer.shutdownNow();
+
+        try
+        {
+            //The copy can only be freed once no check reads it, otherwise
+            //it's left to the collector
+            if (scorer.awaitTermination(1, TimeUnit.MINUTES) && copy != null)
+            {
+                copy.release();
+                copy = null;
+                copyOf = -1;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
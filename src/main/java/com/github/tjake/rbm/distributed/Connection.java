@@ -0,0 +1,115 @@
+package com.github.tjake.rbm.distributed;
+
+import com.github.tjake.rbm.LayerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A deflate compressed, message oriented socket shared by the coordinator
+ * and its workers. Every message is a level (or END) followed by its
+ * parameter deltas.
+ */
+final class Connection implements Closeable
+{
+    static final int END = -1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    Connection(Socket socket) throws IOException
+    {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+
+        // Sync flushing lets every message through as soon as it's written
+        out = new DataOutputStream(
+                new DeflaterOutputStream(
+                        new BufferedOutputStream(
+                                socket.getOutputStream(),
+                                BUFFER_SIZE),
+                        new Deflater(Deflater.BEST_SPEED),
+                        BUFFER_SIZE,
+                        true));
+
+        out.write(LayerFactory.MAGIC);
+        out.flush();
+
+        in = new DataInputStream(
+                new BufferedInputStream(
+                        new InflaterInputStream(
+                                socket.getInputStream(),
+                                new Inflater(),
+                                BUFFER_SIZE),
+                        BUFFER_SIZE));
+
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+
+        if (!Arrays.equals(LayerFactory.MAGIC, magic))
+        {
+            throw new IOException("Bad Handshake");
+        }
+    }
+
+    void send(int level, float[][] deltas) throws IOException
+    {
+        out.writeInt(level);
+        out.writeInt(deltas.length);
+
+        for (float[] delta : deltas)
+        {
+            DeltaCodec.write(out, delta);
+        }
+
+        out.flush();
+    }
+
+    void sendEnd() throws IOException
+    {
+        out.writeInt(END);
+        out.flush();
+    }
+
+    // Returns the level of the next message, END once the peer is done
+    int receiveLevel() throws IOException
+    {
+        return in.readInt();
+    }
+
+    float[][] receiveDeltas() throws IOException
+    {
+        int numArrays = in.readInt();
+        if (numArrays < 0)
+        {
+            throw new IOException("Invalid number of arrays");
+        }
+
+        float[][] deltas = new float[numArrays][];
+        for (int i = 0; i < numArrays; i++)
+        {
+            deltas[i] = DeltaCodec.read(in);
+        }
+
+        return deltas;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.tjake.rbm.distributed;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Wire format of parameter deltas: each array is sent as its length, a
+ * scale, and every value quantized to a 16 bit multiple of that scale.
+ * Deltas between two syncs are small and mostly close to zero, so this
+ * halves the size of a float and compresses well on top of that.
+ */
+final class DeltaCodec
+{
+    private static final float LEVELS = Short.MAX_VALUE;
+
+    private DeltaCodec()
+    {
+    }
+
+    static void write(DataOutput out, float[] delta) throws IOException
+    {
+        float max = 0.0f;
+        for (float d : delta)
+        {
+            max = Math.max(max, Math.abs(d));
+        }
+
+        out.writeInt(delta.length);
+        out.writeFloat(max);
+
+        if (max == 0.0f)
+        {
+            return;
+        }
+
+        float scale = LEVELS / max;
+        for (float d : delta)
+        {
+            out.writeShort(Math.round(d * scale));
+        }
+    }
+
+    static float[] read(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            throw new IOException("Invalid length");
+        }
+
+        float max = in.readFloat();
+        float[] delta = new float[length];
+
+        if (max == 0.0f)
+        {
+            return delta;
+        }
+
+        float scale = max / LEVELS;
+        for (int i = 0; i < length; i++)
+        {
+            delta[i] = in.readShort() * scale;
+        }
+
+        return delta;
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.tjake.rbm.distributed;
+
+import com.github.tjake.rbm.Layer;
+import com.github.tjake.rbm.SimpleRBM;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The worker side of {@link ParameterAveragingCoordinator}.
+ *
+ * For every level it remembers the parameters all workers agreed on at the
+ * last sync. A sync sends the difference between those and the current
+ * parameters, and replaces both with the agreed parameters plus the average
+ * difference of all workers, i.e. the average of every worker's parameters.
+ * The agreed parameters start out as zeros, so the first sync also averages
+ * away the different random initializations.
+ */
+public class ParameterAveragingClient implements Closeable
+{
+    private final Connection connection;
+    private final Map<Integer, float[][]> agreed = new HashMap<>();
+
+    public ParameterAveragingClient(String host, int port) throws IOException
+    {
+        this.connection = new Connection(new Socket(host, port));
+    }
+
+    // Every worker has to sync the same levels in the same order
+    public void sync(int level, SimpleRBM rbm) throws IOException
+    {
+        rbm.checkTrainable();
+
+        Layer[] layers = layers(rbm);
+        float[][] params = new float[layers.length][];
+
+        for (int a = 0; a < layers.length; a++)
+        {
+            params[a] = layers[a].get();
+        }
+
+        float[][] base = agreed.get(level);
+
+        if (base == null)
+        {
+            base = new float[params.length][];
+            for (int a = 0; a < params.length; a++)
+            {
+                base[a] = new float[params[a].length];
+            }
+
+            agreed.put(level, base);
+        }
+
+        float[][] deltas = new float[params.length][];
+        for (int a = 0; a < params.length; a++)
+        {
+            deltas[a] = new float[params[a].length];
+            for (int i = 0; i < params[a].length; i++)
+            {
+                deltas[a][i] = params[a][i] - base[a][i];
+            }
+        }
+
+        connection.send(level, deltas);
+
+        if (connection.receiveLevel() != level)
+        {
+            throw new IOException("Coordinator out of step");
+        }
+
+        float[][] average = connection.receiveDeltas();
+
+        if (average.length != params.length)
+        {
+            throw new IOException("Mismatched number of arrays");
+        }
+
+        for (int a = 0; a < params.length; a++)
+        {
+            if (average[a].length != params[a].length)
+            {
+                throw new IOException("Mismatched array length");
+            }
+
+            for (int i = 0; i < params[a].length; i++)
+            {
+                base[a][i] += average[a][i];
+                params[a][i] = base[a][i];
+            }
+
+            // get() only returned a copy of layers off the heap
+            if (!layers[a].hasArray())
+            {
+                layers[a].assign(params[a]);
+            }
+        }
+    }
+
+    // Tells the coordinator this worker is done
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            connection.sendEnd();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    private static Layer[] layers(SimpleRBM rbm)
+    {
+        Layer[] layers = new Layer[2 + rbm.weights.length];
+        layers[0] = rbm.biasVisible;
+        layers[1] = rbm.biasHidden;
+
+        System.arraycopy(rbm.weights, 0, layers, 2, rbm.weights.length);
+
+        return layers;
+    }
+}
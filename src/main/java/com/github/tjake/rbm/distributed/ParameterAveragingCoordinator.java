@@ -0,0 +1,118 @@
+package com.github.tjake.rbm.distributed;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Averages the parameters of a fixed number of workers that train copies of
+ * the same model (see {@link ParameterAveragingClient}).
+ *
+ * In every round each worker sends how much its parameters moved since the
+ * last round, and gets the average of all of those moves back. The
+ * coordinator never holds the model itself.
+ */
+public class ParameterAveragingCoordinator
+{
+    private final int port;
+    private final int numWorkers;
+
+    public ParameterAveragingCoordinator(int port, int numWorkers)
+    {
+        if (numWorkers <= 0)
+        {
+            throw new IllegalArgumentException("Invalid numWorkers");
+        }
+
+        this.port = port;
+        this.numWorkers = numWorkers;
+    }
+
+    // Blocks until every worker is done
+    public void run() throws IOException
+    {
+        List<Connection> workers = new ArrayList<>(numWorkers);
+
+        try (ServerSocket server = new ServerSocket(port))
+        {
+            System.out.println("Waiting for " + numWorkers
+                    + " workers on port " + port);
+
+            while (workers.size() < numWorkers)
+            {
+                workers.add(new Connection(server.accept()));
+                System.out.println("Worker " + workers.size() + " connected");
+            }
+
+            for (int round = 0; ; round++)
+            {
+                int level = workers.get(0).receiveLevel();
+
+                for (int w = 1; w < numWorkers; w++)
+                {
+                    if (workers.get(w).receiveLevel() != level)
+                    {
+                        throw new IOException("Workers out of step in round "
+                                + round);
+                    }
+                }
+
+                if (level == Connection.END)
+                {
+                    System.out.println("All workers done after "
+                            + round + " rounds");
+                    return;
+                }
+
+                float[][] average = workers.get(0).receiveDeltas();
+
+                for (int w = 1; w < numWorkers; w++)
+                {
+                    add(average, workers.get(w).receiveDeltas());
+                }
+
+                for (float[] delta : average)
+                {
+                    for (int i = 0; i < delta.length; i++)
+                    {
+                        delta[i] /= numWorkers;
+                    }
+                }
+
+                for (Connection worker : workers)
+                {
+                    worker.send(level, average);
+                }
+            }
+        }
+        finally
+        {
+            for (Connection worker : workers)
+            {
+                worker.close();
+            }
+        }
+    }
+
+    private static void add(float[][] sum, float[][] deltas) throws IOException
+    {
+        if (sum.length != deltas.length)
+        {
+            throw new IOException("Mismatched number of arrays");
+        }
+
+        for (int a = 0; a < sum.length; a++)
+        {
+            if (sum[a].length != deltas[a].length)
+            {
+                throw new IOException("Mismatched array length");
+            }
+
+            for (int i = 0; i < sum[a].length; i++)
+            {
+                sum[a][i] += deltas[a][i];
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.tjake.rbm.distributed;
+
+import com.github.tjake.rbm.DataItem;
+import com.github.tjake.rbm.DataSetReader;
+import com.github.tjake.rbm.LabelVocabulary;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Only hands out the training items of one shard of a data set. Items are
+ * assigned to shards by the hash of their data, so processes whose readers
+ * have the same training set agree on the shards without talking to the
+ * others. That takes a deterministic train/test split, see the seeded
+ * MinstDatasetReader. Test items are not sharded.
+ */
+public class ShardedDataSetReader implements DataSetReader
+{
+    private final DataSetReader delegate;
+    private final int shard;
+    private final int numShards;
+
+    public ShardedDataSetReader(DataSetReader delegate, int shard, int numShards)
+    {
+        if (numShards <= 0 || shard < 0 || shard >= numShards)
+        {
+            throw new IllegalArgumentException("Invalid shard " + shard
+                    + " of " + numShards);
+        }
+
+        this.delegate = delegate;
+        this.shard = shard;
+        this.numShards = numShards;
+
+        //Random items would be drawn forever from an empty shard
+        final long[] size = new long[1];
+        forEachTrainingItem(item -> size[0]++);
+
+        if (size[0] == 0)
+        {
+            throw new IllegalStateException("Shard " + shard + " of "
+                    + numShards + " has no training items");
+        }
+    }
+
+    @Override
+    public DataItem getRandomTrainingItem()
+    {
+        while (true)
+        {
+            DataItem item = delegate.getRandomTrainingItem();
+
+            if (inShard(item))
+            {
+                return item;
+            }
+        }
+    }
+
+    @Override
+    public void forEachTrainingItem(Consumer<? super DataItem> action)
+    {
+        delegate.forEachTrainingItem(item -> {
+            if (inShard(item))
+            {
+                action.accept(item);
+            }
+        });
+    }
+
+    private boolean inShard(DataItem item)
+    {
+        return Math.floorMod(Arrays.hashCode(item.getData()), numShards)
+                == shard;
+    }
+
+    @Override
+    public DataItem getRandomTestItem()
+    {
+        return delegate.getRandomTestItem();
+    }
+
+    @Override
+    public LabelVocabulary getLabelVocabulary()
+    {
+        return delegate.getLabelVocabulary();
+    }
+
+    @Override
+    public List<String> getLabels()
+    {
+        return delegate.getLabels();
+    }
+
+    @Override
+    public int getRows()
+    {
+        return delegate.getRows();
+    }
+
+    @Override
+    public int getCols()
+    {
+        return delegate.getCols();
+    }
+}
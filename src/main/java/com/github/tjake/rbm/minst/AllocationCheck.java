@@ -0,0 +1,81 @@
+package com.github.tjake.rbm.minst;
+
+import com.github.tjake.rbm.AllocationTracker;
+import com.github.tjake.rbm.BinarizedDataSet;
+import com.github.tjake.rbm.LayerFactory;
+import com.github.tjake.rbm.StackedRBM;
+import com.github.tjake.rbm.StackedRBMTrainer;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Trains the first two levels of a small DBN with allocation tracking and
+ * fails when a steady state batch of any stage (the source unpacking the
+ * binarized training set, the frozen level or the level being trained)
+ * allocates more than the budget. Run it after touching the training hot
+ * path to keep it from allocating again.
+ */
+public class AllocationCheck
+{
+    private static final int BATCH_SIZE = 30;
+    private static final int WARMUP = 20;
+
+    //Returns whether every stage stayed within budget
+    public static boolean start(
+            File labels,
+            File images,
+            long budget,
+            int batches)
+    {
+        MinstDatasetReader dr = new MinstDatasetReader(labels, images);
+        BinarizedDataSet trainingSet = BinarizedDataSet.fromTrainingItems(dr);
+        LayerFactory layerFactory = new LayerFactory();
+
+        StackedRBM rbm = new StackedRBM();
+        rbm.setLayerFactory(layerFactory)
+                .addLayer(dr.getRows() * dr.getCols(), false)
+                .addLayer(500, false)
+                .addLayer(500, false)
+                .build();
+
+        StackedRBMTrainer trainer = new StackedRBMTrainer(rbm, 0.5f, 0.001f, 0.2f, 0.2f)
+                .setAllocationTracking(WARMUP);
+
+        boolean withinBudget = true;
+
+        for (int stopAt = 1; stopAt <= 2; stopAt++)
+        {
+            trainer.learnPipelined(
+                    trainingSet.batches(BATCH_SIZE, false),
+                    WARMUP + batches,
+                    stopAt,
+                    (p, error) -> true);
+
+            List<AllocationTracker> trackers = trainer.getAllocationTrackers();
+
+            for (int i = 0; i < trackers.size(); i++)
+            {
+                AllocationTracker tracker = trackers.get(i);
+                System.out.println(tracker);
+
+                try
+                {
+                    tracker.checkBudget(budget);
+                }
+                catch (IllegalStateException e)
+                {
+                    System.out.println(e.getMessage());
+                    withinBudget = false;
+                }
+            }
+        }
+
+        if (!AllocationTracker.isSupported())
+        {
+            System.out.println("Allocation counters are not supported by this JVM");
+        }
+
+        return withinBudget;
+    }
+}
@@ -1,13 +1,19 @@
 package com.github.tjake.rbm.minst;
 
 
+import com.github.tjake.rbm.AllocationTracker;
+import com.github.tjake.rbm.BinarizedDataSet;
 import com.github.tjake.rbm.BinaryLayer;
-import com.github.tjake.rbm.Layer;
+import com.github.tjake.rbm.DBNClassifier;
+import com.github.tjake.rbm.DataItem;
+import com.github.tjake.rbm.DataSetReader;
 import com.github.tjake.rbm.LayerFactory;
-import com.github.tjake.rbm.SimpleRBM;
+import com.github.tjake.rbm.PredictionCache;
+import com.github.tjake.rbm.SnapshotPublisher;
 import com.github.tjake.rbm.StackedRBM;
 import com.github.tjake.rbm.StackedRBMTrainer;
-import com.github.tjake.rbm.Tuple;
+import com.github.tjake.rbm.ValidationMonitor;
+import com.github.tjake.rbm.distributed.ParameterAveragingClient;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -17,103 +23,123 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.io.UncheckedIOException;
+import java.util.Random;
 
 public class BinaryMinstDBN
 {
-    private final MinstDatasetReader dr;
+    //Items held out to validate each level with, see ValidationMonitor
+    private static final int HELD_OUT = 500;
+    private static final int CHECK_EVERY = 50;
+    private static final int MIN_BATCHES = 400;
+    private static final int PATIENCE = 5;
+    private static final float MIN_DELTA = 0.001f;
+
+    //Batches left out of the allocation counts, see AllocationTracker
+    private static final int ALLOCATION_WARMUP = 10;
+
+    private final DataSetReader dr;
     private final StackedRBM rbm;
     private final StackedRBMTrainer trainer;
     private final LayerFactory layerFactory = new LayerFactory();
+    private final Random random = new Random();
+    private BinarizedDataSet trainingSet;
+    private PredictionCache predictionCache;
+    private ParameterAveragingClient parameterAveraging;
+    private int syncEvery;
 
     public BinaryMinstDBN(File labels, File images)
     {
-        dr = new MinstDatasetReader(labels, images);
-        rbm = new StackedRBM();
-        trainer = new StackedRBMTrainer(rbm, 0.5f, 0.001f, 0.2f, 0.2f);
+        this(new MinstDatasetReader(labels, images));
     }
 
-    private void learn(int iterations, boolean addLabels, int stopAt)
+    public BinaryMinstDBN(DataSetReader dr)
     {
-        final int learnSize = 30;
-        // Get random input
-        final List<Layer> inputBatch = new ArrayList<>(learnSize);
-        final List<Layer> labelBatch = addLabels
-                ? new ArrayList<>(learnSize)
-                : Collections.<Layer>emptyList();
+        this.dr = dr;
+        rbm = new StackedRBM();
+        trainer = new StackedRBMTrainer(rbm, 0.5f, 0.001f, 0.2f, 0.2f)
+                .setAllocationTracking(ALLOCATION_WARMUP);
+    }
 
-        for (int p = 0; p < iterations; p++)
-        {
-            inputBatch.clear();
-            labelBatch.clear();
+    //Optional, caches the classification of repeated (binarized) test inputs
+    public void setPredictionCache(PredictionCache predictionCache)
+    {
+        this.predictionCache = predictionCache;
+    }
 
-            for (int j = 0; j < learnSize; j++)
-            {
-                MinstItem trainItem = dr.getRandomTrainingItem();
-                inputBatch.add(
-                        new BinaryLayer(
-                                layerFactory.create(trainItem.data)));
+    //Optional, averages the level being trained with other processes every
+    //syncEvery batches and at the end of every level
+    public void setParameterAveraging(
+            ParameterAveragingClient parameterAveraging,
+            int syncEvery)
+    {
+        this.parameterAveraging = parameterAveraging;
+        this.syncEvery = syncEvery;
+    }
 
-                if (addLabels)
-                {
-                    float[] labelInput = new float[MinstItem.NUMBER_OF_LABELS];
-                    labelInput[Integer.valueOf(trainItem.label)] = 1.0f;
-                    labelBatch.add(layerFactory.create(labelInput));
-                }
-            }
+    private void learn(int iterations, final boolean addLabels, final int stopAt)
+    {
+        final int learnSize = 30;
 
-            double error = trainer.learn(inputBatch, labelBatch, stopAt);
+        // Each level stops early once the reconstruction error of held out
+        // test items stops falling. Not when the level is averaged with
+        // other processes, they all have to train it for the same number of
+        // batches
+        final ValidationMonitor monitor = new ValidationMonitor(
+                trainingSet.sample(HELD_OUT, addLabels, random),
+                BinarizedDataSet.heldOut(dr, HELD_OUT, addLabels),
+                MIN_BATCHES,
+                parameterAveraging == null ? PATIENCE : 0,
+                MIN_DELTA);
+
+        // Random input batches are unpacked from the binarized training set
+        // on their own thread while the levels below stopAt work through
+        // the previous ones
+        trainer.learnPipelined(
+                trainingSet.batches(learnSize, addLabels),
+                iterations,
+                stopAt,
+                monitor,
+                CHECK_EVERY,
+                (p, error) -> {
+                    if (p % 100 == 0)
+                    {
+                        System.out.println(
+                                "Iteration " + p
+                                        + ", Error = " + error
+                                        + ", Validation error = "
+                                        + monitor.getError());
+                    }
+
+                    if (parameterAveraging != null && (p + 1) % syncEvery == 0)
+                    {
+                        sync(stopAt - 1);
+                    }
+
+                    return true;
+                });
+
+        for (AllocationTracker allocations : trainer.getAllocationTrackers())
+        {
+            System.out.println(allocations);
+        }
 
-            if (p % 100 == 0)
-            {
-                System.out.println(
-                        "Iteration " + p
-                                + ", Error = " + error
-                                + ", Energy = " + rbm.freeEnergy());
-            }
+        if (parameterAveraging != null)
+        {
+            sync(stopAt - 1);
         }
     }
 
-    private Iterator<Tuple> evaluate(MinstItem test)
+    private void sync(int level)
     {
-        Layer input = new BinaryLayer(layerFactory.create(test.data));
-
-        int stackNum = rbm.getInnerRBMs().size();
-
-        for (int i = 0; i < stackNum; i++)
+        try
         {
-            SimpleRBM iRBM = rbm.getInnerRBMs().get(i);
-
-            if (iRBM.biasVisible.size() > input.size())
-            {
-                Layer newInput = new Layer(iRBM.biasVisible.size());
-
-                System.arraycopy(
-                        input.get(), 0,
-                        newInput.get(), 0,
-                        input.size());
-
-                for (int j = input.size(); j < newInput.size(); j++)
-                {
-                    newInput.set(j, 0.1f);
-                }
-
-                input = newInput;
-            }
-
-            if (i == (stackNum - 1))
-            {
-                return iRBM.iterator(input);
-            }
-
-            input = iRBM.activateHidden(input);
+            parameterAveraging.sync(level, rbm.getLevel(level));
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
         }
-
-        throw new IllegalStateException(
-                "Should have returned before reaching here...");
     }
 
     public void start(File saveto)
@@ -143,13 +169,16 @@ public class BinaryMinstDBN
             int numIterations = 1000;
 
             rbm.setLayerFactory(layerFactory)
-                    .addLayer(dr.rows * dr.cols, false)
+                    .addLayer(dr.getRows() * dr.getCols(), false)
                     .addLayer(500, false)
                     .addLayer(500, false)
                     .addLayer(2000, false)
                     .withCustomInput(510)
                     .build();
 
+            trainingSet = BinarizedDataSet.fromTrainingItems(dr);
+            System.out.println(trainingSet);
+
             System.out.println("Training level 1");
             learn(numIterations, false, 1);
             System.out.println("Training level 2");
@@ -173,6 +202,11 @@ public class BinaryMinstDBN
             }
         }
 
+        DBNClassifier classifier = new DBNClassifier(
+                new SnapshotPublisher(rbm),
+                MinstItem.NUMBER_OF_LABELS)
+                .withCache(predictionCache);
+
         double numCorrect = 0;
         double numWrong = 0;
         double numAlmost = 0.0;
@@ -180,23 +214,10 @@ public class BinaryMinstDBN
         final int toTest = 1000;
         for (int count = 0; count < toTest; count++)
         {
-            MinstItem testCase = dr.getRandomTestItem();
-
-            Iterator<Tuple> it = evaluate(testCase);
-
-            float[] labeld = new float[10];
-
-            for (int i = 0; i < 2; i++)
-            {
-                Tuple t = it.next();
+            DataItem testCase = dr.getRandomTestItem();
 
-                for (int j = (t.visible.size() - 10), k = 0;
-                     j < t.visible.size() && k < 10;
-                     j++, k++)
-                {
-                    labeld[k] += t.visible.get(j);
-                }
-            }
+            float[] labeld = classifier.classify(
+                    new BinaryLayer(layerFactory.create(testCase.getData())));
 
             float max1 = 0.0f;
             int p1 = -1;
@@ -204,7 +225,6 @@ public class BinaryMinstDBN
 
             for (int i = 0; i < labeld.length; i++)
             {
-                labeld[i] /= 2;
                 if (labeld[i] > max1)
                 {
                     max1 = labeld[i];
@@ -213,11 +233,11 @@ public class BinaryMinstDBN
                 }
             }
 
-            if (p1 == Integer.valueOf(testCase.label))
+            if (p1 == testCase.getLabelId())
             {
                 numCorrect++;
             }
-            else if (p2 == Integer.valueOf(testCase.label))
+            else if (p2 == testCase.getLabelId())
             {
                 numAlmost++;
             }
@@ -229,5 +249,10 @@ public class BinaryMinstDBN
 
         System.out.println("Error Rate = "
                 + ((numWrong / (numAlmost + numCorrect + numWrong)) * 100));
+
+        if (predictionCache != null)
+        {
+            System.out.println(predictionCache);
+        }
     }
 }
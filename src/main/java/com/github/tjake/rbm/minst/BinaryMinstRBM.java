@@ -51,8 +51,16 @@ public class BinaryMinstRBM extends Canvas {
         double error = trainer.learn(rbm, inputBatch, false); //up down
 
 
-        if (count % 100 == 0)
-            System.err.println("Error = " + error + ", Energy = " + rbm.freeEnergy());
+        if (count % 100 == 0) {
+            float[] energy = new float[inputBatch.size()];
+            rbm.freeEnergy(inputBatch.toArray(new Layer[0]), energy, 0, energy.length);
+
+            float mean = 0.0f;
+            for (float e : energy)
+                mean += e;
+
+            System.err.println("Error = " + error + ", Energy = " + mean / energy.length);
+        }
 
         return inputBatch.get(inputBatch.size() - 1).get();
     }
@@ -1,11 +1,21 @@
 package com.github.tjake.rbm.minst;
 
 
+import com.github.tjake.rbm.PredictionCache;
+import com.github.tjake.rbm.distributed.ParameterAveragingClient;
+import com.github.tjake.rbm.distributed.ParameterAveragingCoordinator;
+import com.github.tjake.rbm.distributed.ShardedDataSetReader;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 public class Demo
 {
+    //Every worker splits the training and test items the same way, so the
+    //shards partition one training set
+    private static final long WORKER_SEED = 0x6d6e697374L;
+
     public static void main(String[] args)
     {
         if (args.length < 2)
@@ -36,7 +46,74 @@ public class Demo
                 usage("invalid minst images file: "+args[2]);
 
             BinaryMinstDBN dbn = new BinaryMinstDBN(labels, images);
+
+            if (args.length > 4)
+                dbn.setPredictionCache(new PredictionCache(Integer.parseInt(args[4])));
+
             dbn.start(saveto);
+        } else if (args[0].equalsIgnoreCase("hogwild")) {
+            File labels = new File(args[1]);
+            File images = new File(args[2]);
+
+            if (!labels.isFile())
+                usage("invalid minst labels file: "+args[1]);
+
+            if (!images.isFile())
+                usage("invalid minst images file: "+args[2]);
+
+            int workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+
+            HogwildMinstRBM.start(labels, images, workers, seconds);
+        } else if (args[0].equalsIgnoreCase("coordinator")) {
+            int port = Integer.parseInt(args[1]);
+            int workers = Integer.parseInt(args[2]);
+
+            try {
+                new ParameterAveragingCoordinator(port, workers).run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else if (args[0].equalsIgnoreCase("worker")) {
+            String host = args[1];
+            int port = Integer.parseInt(args[2]);
+            int shard = Integer.parseInt(args[3]);
+            int numShards = Integer.parseInt(args[4]);
+            File labels = new File(args[5]);
+            File images = new File(args[6]);
+            File saveto = new File(args[7]);
+            int syncEvery = args.length > 8 ? Integer.parseInt(args[8]) : 50;
+
+            if (!labels.isFile())
+                usage("invalid minst labels file: "+args[5]);
+
+            if (!images.isFile())
+                usage("invalid minst images file: "+args[6]);
+
+            BinaryMinstDBN dbn = new BinaryMinstDBN(
+                    new ShardedDataSetReader(new MinstDatasetReader(labels, images, WORKER_SEED), shard, numShards));
+
+            try (ParameterAveragingClient client = new ParameterAveragingClient(host, port)) {
+                dbn.setParameterAveraging(client, syncEvery);
+                dbn.start(saveto);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else if (args[0].equalsIgnoreCase("allocations")) {
+            File labels = new File(args[1]);
+            File images = new File(args[2]);
+
+            if (!labels.isFile())
+                usage("invalid minst labels file: "+args[1]);
+
+            if (!images.isFile())
+                usage("invalid minst images file: "+args[2]);
+
+            long budget = args.length > 3 ? Long.parseLong(args[3]) : 1024;
+            int batches = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+
+            if (!AllocationCheck.start(labels, images, budget, batches))
+                System.exit(1);
         } else if (args[0].equalsIgnoreCase("gen")) {
             File load = new File(args[1]);
 
@@ -44,12 +121,29 @@ public class Demo
                 usage("invalid dbn file: "+args[1]);
 
              GenerativeMinstDBN.start(load);
+        } else if (args[0].equalsIgnoreCase("prune")) {
+            File labels = new File(args[1]);
+            File images = new File(args[2]);
+            File load = new File(args[3]);
+
+            if (!labels.isFile())
+                usage("invalid minst labels file: "+args[1]);
+
+            if (!images.isFile())
+                usage("invalid minst images file: "+args[2]);
+
+            if (!load.isFile())
+                usage("invalid dbn file: "+args[3]);
+
+            int items = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+
+            PruningReport.start(labels, images, load, items);
         }
 
     }
 
     private static void usage(String err) {
-        System.err.println("Usage: \t[rbm minst-labels.gz minst-images.gz]\n\t [dbn minst-images.gz minst-labels.gz dbn.bin]\n\t [gen dbn.bin]");
+        System.err.println("Usage: \t[rbm minst-labels.gz minst-images.gz]\n\t [dbn minst-images.gz minst-labels.gz dbn.bin [prediction-cache-size]]\n\t [gen dbn.bin]\n\t [hogwild minst-labels.gz minst-images.gz [workers] [seconds]]\n\t [coordinator port workers]\n\t [worker host port shard shards minst-labels.gz minst-images.gz dbn.bin [sync-every]]\n\t [allocations minst-labels.gz minst-images.gz [budget-bytes] [batches]]\n\t [prune minst-labels.gz minst-images.gz dbn.bin [items]]");
         if (err != null && err.length() > 0)
             System.err.println(err);
 
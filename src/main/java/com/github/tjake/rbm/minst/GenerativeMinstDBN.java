@@ -8,93 +8,93 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
 import java.io.*;
-import java.util.Iterator;
 
 public class GenerativeMinstDBN extends Canvas {
 
-    final StackedRBM rbm;
+    //Samples drawn per repaint, as a GRID x GRID square
+    static final int GRID = 4;
+    static final int BURN_IN = 10;
 
-    int count = 0;
-    Layer input;
-    String label;
-
-    public GenerativeMinstDBN(StackedRBM rbm) {
-        this.rbm = rbm;
-    }
-
-    public void update() {
+    final SnapshotPublisher models;
+    final GenerativeSampler sampler;
 
-        synchronized (rbm) {
-
-            int current = count++ % 10;
-            label = String.valueOf(current);
-
-            SimpleRBM r = rbm.getInnerRBMs().get(rbm.getInnerRBMs().size() - 1);
-
-            input = new Layer(r.biasVisible.size());
-
-            //setup input
-            for (int i = 0; i < input.size()-10; i++)
-                input.set(i, 0.0f);
+    int count = 0;
+    volatile Frame frame;
 
-            //Position == Digit
-            input.set(input.size() - 10 + current, 100000.0f);
+    //What paint() draws, replaced as a whole so it never sees a mixed state
+    static class Frame {
+        final int[][] draw;
+        final String label;
 
+        Frame(int[][] draw, String label) {
+            this.draw = draw;
+            this.label = label;
+        }
+    }
 
-            Iterator<Tuple> it = r.iterator(input);
+    public GenerativeMinstDBN(StackedRBM rbm) {
+        this(new SnapshotPublisher(rbm));
+    }
 
-            for (int i = 0; i < 1; i++)
-                it.next();
+    //A trainer can keep publishing newer models while this one draws
+    public GenerativeMinstDBN(SnapshotPublisher models) {
+        this.models = models;
+        this.sampler = new GenerativeSampler(MinstItem.NUMBER_OF_LABELS, GRID * GRID, BURN_IN);
+    }
 
-            input = it.next().visible;
+    public void update() {
 
-            for (int i = rbm.getInnerRBMs().size() - 2; i >= 0; i--) {
-                SimpleRBM prevRbm = rbm.getInnerRBMs().get(i);
+        int current = count++ % 10;
 
-                if (input.size() > prevRbm.biasHidden.size()) {
-                    float[] newInput = new float[prevRbm.biasHidden.size()];
-                    System.arraycopy(input.get(), 0, newInput, 0, newInput.length);
-                    input = new Layer(newInput);
-                }
+        //Position == Digit
+        Layer[] samples = sampler.sample(models.get(), current);
 
-                input = prevRbm.activateVisible(input);
-            }
+        //The sampler reuses its buffers, copy out what we draw
+        int[][] draw = new int[samples.length][];
+        for (int n = 0; n < samples.length; n++) {
+            draw[n] = new int[samples[n].size()];
+            for (int i = 0; i < samples[n].size(); i++)
+                draw[n][i] = Math.round(samples[n].get(i) * 255f);
         }
+
+        frame = new Frame(draw, String.valueOf(current));
         repaint();
     }
 
 
     public void paint(Graphics g) {
 
-        synchronized (rbm) {
+        Frame frame = this.frame;
 
-            BufferedImage in = new BufferedImage(28, 28, BufferedImage.TYPE_INT_RGB);
+        if (frame == null)
+            return;
 
-            int draw[] = new int[input.size()];
-            for (int i = 0; i < input.size(); i++)
-                draw[i] = Math.round(input.get(i) * 255f);
+        //Resize
+        BufferedImage newImage = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
 
-            WritableRaster r = in.getRaster();
-            r.setDataElements(0, 0, 28, 28, draw);
+        Graphics2D g2 = newImage.createGraphics();
+        try {
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g2.clearRect(0, 0, 256, 256);
 
-            //Resize
-            BufferedImage newImage = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+            int cell = 256 / GRID;
+            for (int n = 0; n < frame.draw.length; n++) {
+                BufferedImage in = new BufferedImage(28, 28, BufferedImage.TYPE_INT_RGB);
 
-            Graphics2D g2 = newImage.createGraphics();
-            try {
-                g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                        RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-                g2.clearRect(0, 0, 256, 256);
-                g2.drawImage(in, 0, 0, 256, 256, null);
-            } finally {
-                g2.dispose();
+                WritableRaster r = in.getRaster();
+                r.setDataElements(0, 0, 28, 28, frame.draw[n]);
+
+                g2.drawImage(in, (n % GRID) * cell, (n / GRID) * cell, cell, cell, null);
             }
+        } finally {
+            g2.dispose();
+        }
 
-            g.drawImage(newImage, 10, 10, null);
+        g.drawImage(newImage, 10, 10, null);
 
 
-            g.drawString("Generative version of: "+label, 10, 300);
-        }
+        g.drawString("Generative version of: "+frame.label, 10, 300);
     }
 
 
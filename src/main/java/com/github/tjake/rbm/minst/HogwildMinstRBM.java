@@ -0,0 +1,87 @@
+package com.github.tjake.rbm.minst;
+
+import com.github.tjake.rbm.BinaryLayer;
+import com.github.tjake.rbm.ConvergenceLog;
+import com.github.tjake.rbm.HogwildRBMTrainer;
+import com.github.tjake.rbm.Layer;
+import com.github.tjake.rbm.LayerFactory;
+import com.github.tjake.rbm.SimpleRBM;
+import com.github.tjake.rbm.SimpleRBMTrainer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trains the same RBM synchronously and then asynchronously (Hogwild) for
+ * the same amount of time and prints the error of both against time.
+ */
+public class HogwildMinstRBM
+{
+    private static final int NUM_HIDDEN = 500;
+    private static final int BATCH_SIZE = 30;
+
+    private static final float MOMENTUM = 0.2f;
+    private static final float L2 = 0.001f;
+    private static final float TARGET_SPARSITY = 0.2f;
+    private static final float LEARNING_RATE = 0.1f;
+    private static final float UPDATE_THRESHOLD = 1e-6f;
+
+    public static void start(File labels, File images, int workers, int seconds)
+    {
+        MinstDatasetReader dr = new MinstDatasetReader(labels, images);
+        LayerFactory layerFactory = new LayerFactory();
+        long durationMillis = seconds * 1000L;
+
+        SimpleRBM syncRBM = new SimpleRBM(
+                dr.rows * dr.cols,
+                NUM_HIDDEN,
+                false,
+                layerFactory);
+        SimpleRBMTrainer trainer = new SimpleRBMTrainer(
+                MOMENTUM,
+                L2,
+                TARGET_SPARSITY,
+                LEARNING_RATE);
+
+        ConvergenceLog syncLog = new ConvergenceLog("sync");
+        List<Layer> batch = new ArrayList<>(BATCH_SIZE);
+        long deadline = System.nanoTime() + durationMillis * 1000000;
+
+        for (long p = 1; System.nanoTime() < deadline; p++)
+        {
+            batch.clear();
+            for (int j = 0; j < BATCH_SIZE; j++)
+            {
+                batch.add(new BinaryLayer(layerFactory.create(
+                        dr.getRandomTrainingItem().data)));
+            }
+
+            double error = trainer.learn(syncRBM, batch, false);
+
+            if (p % 50 == 0)
+            {
+                syncLog.record(p, error);
+            }
+        }
+
+        SimpleRBM hogwildRBM = new SimpleRBM(
+                dr.rows * dr.cols,
+                NUM_HIDDEN,
+                false,
+                layerFactory);
+
+        ConvergenceLog hogwildLog = new HogwildRBMTrainer(
+                workers,
+                BATCH_SIZE,
+                MOMENTUM,
+                L2,
+                TARGET_SPARSITY,
+                LEARNING_RATE,
+                UPDATE_THRESHOLD)
+                .train(hogwildRBM, dr, layerFactory, durationMillis);
+
+        syncLog.print(System.out);
+        hogwildLog.print(System.out);
+    }
+}
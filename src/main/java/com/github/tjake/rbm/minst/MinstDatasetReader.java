@@ -1,6 +1,8 @@
 package com.github.tjake.rbm.minst;
 
+import com.github.tjake.rbm.DataItem;
 import com.github.tjake.rbm.DataSetReader;
+import com.github.tjake.rbm.LabelVocabulary;
 
 import java.io.DataInputStream;
 import java.io.File;
@@ -14,6 +16,7 @@ import java.util.Map;
 import java.util.Random;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -26,8 +29,11 @@ public class MinstDatasetReader implements Enumeration<MinstItem>, DataSetReader
 
     Random r = new Random();
 
-    final SortedMap<String, List<MinstItem>> trainingSet = new TreeMap<>();
-    final SortedMap<String, List<MinstItem>> testSet = new TreeMap<>();
+    //Splits the items into the training and test sets
+    final Random split;
+
+    final SortedMap<Integer, List<MinstItem>> trainingSet = new TreeMap<>();
+    final SortedMap<Integer, List<MinstItem>> testSet = new TreeMap<>();
 
     int rows = 0;
     int cols = 0;
@@ -36,6 +42,20 @@ public class MinstDatasetReader implements Enumeration<MinstItem>, DataSetReader
 
     public MinstDatasetReader(File labelsFile, File imagesFile)
     {
+        this(labelsFile, imagesFile, new Random());
+    }
+
+    //Readers of the same files with the same seed have the same training and
+    //test sets, e.g. every process of a distributed training
+    public MinstDatasetReader(File labelsFile, File imagesFile, long seed)
+    {
+        this(labelsFile, imagesFile, new Random(seed));
+    }
+
+    private MinstDatasetReader(File labelsFile, File imagesFile, Random split)
+    {
+        this.split = split;
+
         try
         {
             labelsBuf = new DataInputStream(new GZIPInputStream(new FileInputStream(labelsFile)));
@@ -56,30 +76,27 @@ public class MinstDatasetReader implements Enumeration<MinstItem>, DataSetReader
         while (!done || !hasMoreElements()) {
             MinstItem i = nextElement();
 
-            if (r.nextDouble() > 0.3)
+            if (split.nextDouble() > 0.3)
             {
                 List<MinstItem> l = testSet.computeIfAbsent(
-                        i.label,
+                        i.labelId,
                         s -> new ArrayList<>());
                 l.add(i);
-                testSet.put(i.label, l);
             }
             else
             {
                 List<MinstItem> l = trainingSet.computeIfAbsent(
-                        i.label,
+                        i.labelId,
                         s -> new ArrayList<>());
 
                 l.add(i);
-
-                trainingSet.put(i.label, l);
             }
 
             if (trainingSet.isEmpty())
                 continue;
 
             boolean isDone = true;
-            for (Map.Entry<String, List<MinstItem>> entry : trainingSet.entrySet()) {
+            for (Map.Entry<Integer, List<MinstItem>> entry : trainingSet.entrySet()) {
                 if (entry.getValue().size() < 100) {
                     isDone = false;
                     break;
@@ -93,17 +110,26 @@ public class MinstDatasetReader implements Enumeration<MinstItem>, DataSetReader
     @Override
     public MinstItem getRandomTestItem()
     {
-        List<MinstItem> list = testSet.get(String.valueOf(r.nextInt(MinstItem.NUMBER_OF_LABELS)));
+        List<MinstItem> list = testSet.get(r.nextInt(MinstItem.NUMBER_OF_LABELS));
         return list.get(r.nextInt(list.size()));
     }
 
     @Override
     public MinstItem getRandomTrainingItem()
     {
-        List<MinstItem> list = trainingSet.get(String.valueOf(r.nextInt(MinstItem.NUMBER_OF_LABELS)));
+        List<MinstItem> list = trainingSet.get(r.nextInt(MinstItem.NUMBER_OF_LABELS));
         return list.get(r.nextInt(list.size()));
     }
 
+    @Override
+    public void forEachTrainingItem(Consumer<? super DataItem> action)
+    {
+        for (List<MinstItem> items : trainingSet.values())
+        {
+            items.forEach(action);
+        }
+    }
+
     private void verify() throws IOException
     {
         int magic = labelsBuf.readInt();
@@ -140,9 +166,7 @@ public class MinstDatasetReader implements Enumeration<MinstItem>, DataSetReader
                 data[i] = saturatedCast(imagesBuf.readUnsignedByte());
             }
 
-            return new MinstItem(
-                    Integer.toString(labelsBuf.readUnsignedByte()),
-                    data);
+            return new MinstItem(labelsBuf.readUnsignedByte(), data);
         }
         catch (IOException e)
         {
@@ -155,10 +179,16 @@ public class MinstDatasetReader implements Enumeration<MinstItem>, DataSetReader
         }
     }
 
+    @Override
+    public LabelVocabulary getLabelVocabulary()
+    {
+        return MinstItem.LABELS;
+    }
+
     @Override
     public List<String> getLabels()
     {
-        return new ArrayList<>(trainingSet.keySet());
+        return MinstItem.LABELS.getLabels();
     }
 
     @Override
@@ -1,6 +1,10 @@
 package com.github.tjake.rbm.minst;
 
 import com.github.tjake.rbm.DataItem;
+import com.github.tjake.rbm.LabelVocabulary;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Container class that represents a Minst image and it's label
@@ -8,15 +12,33 @@ import com.github.tjake.rbm.DataItem;
 public class MinstItem implements DataItem
 {
     public static final int NUMBER_OF_LABELS = 10;
+
+    //The digits, with each digit's value as its id
+    public static final LabelVocabulary LABELS = digits();
+
     public final String label;
+    public final int labelId;
     public final byte[] data;
 
-    public MinstItem(String label, byte[] data)
+    public MinstItem(int digit, byte[] data)
     {
-        this.label = label;
+        this.label = LABELS.getLabel(digit);
+        this.labelId = digit;
         this.data = data;
     }
 
+    private static LabelVocabulary digits()
+    {
+        List<String> digits = new ArrayList<>(NUMBER_OF_LABELS);
+
+        for (int i = 0; i < NUMBER_OF_LABELS; i++)
+        {
+            digits.add(Integer.toString(i));
+        }
+
+        return new LabelVocabulary(digits);
+    }
+
     @Override
     public byte[] getData()
     {
@@ -28,4 +50,10 @@ public class MinstItem implements DataItem
     {
         return label;
     }
+
+    @Override
+    public int getLabelId()
+    {
+        return labelId;
+    }
 }
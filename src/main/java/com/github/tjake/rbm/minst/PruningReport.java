@@ -0,0 +1,164 @@
+package com.github.tjake.rbm.minst;
+
+import com.github.tjake.rbm.BinaryLayer;
+import com.github.tjake.rbm.DBNClassifier;
+import com.github.tjake.rbm.DataItem;
+import com.github.tjake.rbm.InferencePlan;
+import com.github.tjake.rbm.Layer;
+import com.github.tjake.rbm.LayerFactory;
+import com.github.tjake.rbm.SimpleRBM;
+import com.github.tjake.rbm.SnapshotPublisher;
+import com.github.tjake.rbm.SparseRBM;
+import com.github.tjake.rbm.StackedRBM;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads a DBN trained by {@link BinaryMinstDBN}, prunes it to a range of
+ * sparsities (see {@link StackedRBM#prune}) and prints the accuracy, the
+ * classification latency through a DBNClassifier and through the compiled
+ * {@link InferencePlan}, and the size of the fully connected weights of
+ * each, all classifying the same test items.
+ */
+public class PruningReport
+{
+    private static final float[] SPARSITIES = {0.5f, 0.75f, 0.9f, 0.95f, 0.98f, 0.99f};
+
+    //Passes over the items before timing, so every model is compiled
+    private static final int WARMUP = 2;
+
+    public static void start(File labels, File images, File load, int items)
+    {
+        MinstDatasetReader dr = new MinstDatasetReader(labels, images);
+        LayerFactory layerFactory = new LayerFactory();
+
+        StackedRBM dense = new StackedRBM();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(load))))
+        {
+            dense.load(in, layerFactory);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        List<Layer> inputs = new ArrayList<>(items);
+        int[] labelIds = new int[items];
+
+        for (int i = 0; i < items; i++)
+        {
+            DataItem item = dr.getRandomTestItem();
+            inputs.add(new BinaryLayer(layerFactory.create(item.getData())));
+            labelIds[i] = item.getLabelId();
+        }
+
+        System.out.println(String.format("%-8s %8s %8s %12s %12s %10s",
+                "sparsity", "density", "error", "us/classify", "us/compiled",
+                "weightsKB"));
+
+        report("dense", dense, inputs, labelIds);
+
+        for (float sparsity : SPARSITIES)
+        {
+            StackedRBM pruned = dense.prune(sparsity);
+            report(String.valueOf(sparsity), pruned, inputs, labelIds);
+            pruned.release();
+        }
+    }
+
+    private static void report(
+            String name,
+            StackedRBM rbm,
+            List<Layer> inputs,
+            int[] labelIds)
+    {
+        DBNClassifier classifier = new DBNClassifier(
+                new SnapshotPublisher(rbm),
+                MinstItem.NUMBER_OF_LABELS);
+
+        InferencePlan plan = rbm.compile();
+        float[] compiled = new float[MinstItem.NUMBER_OF_LABELS];
+
+        for (int pass = 0; pass < WARMUP; pass++)
+        {
+            for (Layer input : inputs)
+            {
+                classifier.classify(input);
+                plan.classify(input.get(), compiled);
+            }
+        }
+
+        int wrong = 0;
+        long nanos = 0;
+        long compiledNanos = 0;
+
+        for (int i = 0; i < inputs.size(); i++)
+        {
+            long start = System.nanoTime();
+            float[] labeld = classifier.classify(inputs.get(i));
+            nanos += System.nanoTime() - start;
+
+            float[] input = inputs.get(i).get();
+            start = System.nanoTime();
+            plan.classify(input, compiled);
+            compiledNanos += System.nanoTime() - start;
+
+            if (best(labeld) != labelIds[i])
+            {
+                wrong++;
+            }
+        }
+
+        long weights = 0;
+        long kept = 0;
+        long total = 0;
+
+        for (SimpleRBM level : rbm.getInnerRBMs())
+        {
+            long count = (long) level.getNumHidden() * level.getNumVisible();
+
+            if (level instanceof SparseRBM)
+            {
+                weights += ((SparseRBM) level).getWeightBytes();
+                kept += ((SparseRBM) level).getNonZeros();
+                total += count;
+            }
+            else if (level.getClass() == SimpleRBM.class)
+            {
+                weights += count * Float.BYTES;
+                kept += count;
+                total += count;
+            }
+        }
+
+        System.out.println(String.format("%-8s %8.3f %7.2f%% %12.1f %12.1f %10d",
+                name,
+                total == 0 ? 1.0 : (double) kept / total,
+                100.0 * wrong / inputs.size(),
+                nanos / 1000.0 / inputs.size(),
+                compiledNanos / 1000.0 / inputs.size(),
+                weights / 1024));
+    }
+
+    private static int best(float[] labels)
+    {
+        int best = 0;
+        for (int j = 1; j < labels.length; j++)
+        {
+            if (labels[j] > labels[best])
+            {
+                best = j;
+            }
+        }
+
+        return best;
+    }
+}
@@ -1,14 +1,17 @@
 package com.github.tjake.rbm.music;
 
+import com.github.tjake.rbm.AllocationTracker;
+import com.github.tjake.rbm.BinarizedDataSet;
 import com.github.tjake.rbm.BinaryLayer;
+import com.github.tjake.rbm.DBNClassifier;
 import com.github.tjake.rbm.DataItem;
 import com.github.tjake.rbm.DataSetReader;
-import com.github.tjake.rbm.Layer;
 import com.github.tjake.rbm.LayerFactory;
-import com.github.tjake.rbm.SimpleRBM;
+import com.github.tjake.rbm.PredictionCache;
+import com.github.tjake.rbm.SnapshotPublisher;
 import com.github.tjake.rbm.StackedRBM;
 import com.github.tjake.rbm.StackedRBMTrainer;
-import com.github.tjake.rbm.Tuple;
+import com.github.tjake.rbm.ValidationMonitor;
 import com.github.tjake.rbm.minst.MinstItem;
 
 import java.io.BufferedInputStream;
@@ -20,106 +23,87 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.time.LocalTime;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Random;
 
 /**
  *
  */
 public class BinaryMusicDBN
 {
+    //Items held out to validate each level with, see ValidationMonitor
+    private static final int HELD_OUT = 500;
+    private static final int CHECK_EVERY = 50;
+    private static final int MIN_BATCHES = 200;
+    private static final int PATIENCE = 5;
+    private static final float MIN_DELTA = 0.001f;
+
+    //Batches left out of the allocation counts, see AllocationTracker
+    private static final int ALLOCATION_WARMUP = 10;
+
+    private static final int LEARN_SIZE = 30;
+
+    //Heap the built model may plan to use, the rest is left for the data
+    private static final double HEAP_BUDGET = 0.5;
+
     private final DataSetReader dr;
     private final StackedRBM rbm;
     private final StackedRBMTrainer trainer;
     private final LayerFactory layerFactory = new LayerFactory();
+    private final Random random = new Random();
+    private BinarizedDataSet trainingSet;
+    private PredictionCache predictionCache;
 
     public BinaryMusicDBN(DataSetReader dr)
     {
         this.dr = dr;
         rbm = new StackedRBM();
-        trainer = new StackedRBMTrainer(rbm, 0.5f, 0.001f, 0.2f, 0.2f);
+        trainer = new StackedRBMTrainer(rbm, 0.5f, 0.001f, 0.2f, 0.2f)
+                .setAllocationTracking(ALLOCATION_WARMUP);
     }
 
-    private void learn(int iterations, boolean addLabels, int stopAt)
+    //Optional, caches the classification of repeated (binarized) test inputs
+    public void setPredictionCache(PredictionCache predictionCache)
     {
-        final int learnSize = 30;
-        // Get random input
-        final List<Layer> inputBatch = new ArrayList<>(learnSize);
-        final List<Layer> labelBatch = addLabels
-                ? new ArrayList<>(learnSize)
-                : Collections.<Layer>emptyList();
-
-        for (int p = 0; p < iterations; p++)
-        {
-            inputBatch.clear();
-            labelBatch.clear();
-
-            for (int j = 0; j < learnSize; j++)
-            {
-                DataItem trainItem = dr.getRandomTrainingItem();
-                inputBatch.add(
-                        new BinaryLayer(
-                                layerFactory.create(trainItem.getData())));
-
-                if (addLabels)
-                {
-                    float[] labelInput = new float[dr.getLabels().size()];
-                    labelInput[dr.getLabels().indexOf(trainItem.getLabel())] = 1.0f;
-                    labelBatch.add(layerFactory.create(labelInput));
-                }
-            }
-
-            double error = trainer.learn(inputBatch, labelBatch, stopAt);
-
-            if (p % 100 == 0)
-            {
-                System.out.println(
-                        "Iteration " + p
-                                + ", Error = " + error
-                                + ", Energy = " + rbm.freeEnergy());
-            }
-        }
+        this.predictionCache = predictionCache;
     }
 
-    private Iterator<Tuple> evaluate(DataItem test)
+    private void learn(int iterations, final boolean addLabels, int stopAt)
     {
-        Layer input = new BinaryLayer(layerFactory.create(test.getData()));
-
-        int stackNum = rbm.getInnerRBMs().size();
-
-        for (int i = 0; i < stackNum; i++)
+        // Each level stops early once the reconstruction error of held out
+        // test items stops falling
+        final ValidationMonitor monitor = new ValidationMonitor(
+                trainingSet.sample(HELD_OUT, addLabels, random),
+                BinarizedDataSet.heldOut(dr, HELD_OUT, addLabels),
+                MIN_BATCHES,
+                PATIENCE,
+                MIN_DELTA);
+
+        // Random input batches are unpacked from the binarized training set
+        // on their own thread while the levels below stopAt work through
+        // the previous ones
+        trainer.learnPipelined(
+                trainingSet.batches(LEARN_SIZE, addLabels),
+                iterations,
+                stopAt,
+                monitor,
+                CHECK_EVERY,
+                (p, error) -> {
+                    if (p % 100 == 0)
+                    {
+                        System.out.println(
+                                "Iteration " + p
+                                        + ", Error = " + error
+                                        + ", Validation error = "
+                                        + monitor.getError());
+                    }
+
+                    return true;
+                });
+
+        for (AllocationTracker allocations : trainer.getAllocationTrackers())
         {
-            SimpleRBM iRBM = rbm.getInnerRBMs().get(i);
-
-            if (iRBM.biasVisible.size() > input.size())
-            {
-                Layer newInput = new Layer(iRBM.biasVisible.size());
-
-                System.arraycopy(
-                        input.get(), 0,
-                        newInput.get(), 0,
-                        input.size());
-
-                for (int j = input.size(); j < newInput.size(); j++)
-                {
-                    newInput.set(j, 0.1f);
-                }
-
-                input = newInput;
-            }
-
-            if (i == (stackNum - 1))
-            {
-                return iRBM.iterator(input);
-            }
-
-            input = iRBM.activateHidden(input);
+            System.out.println(allocations);
         }
-
-        throw new IllegalStateException(
-                "Should have returned before reaching here...");
     }
 
     public void start(File saveto)
@@ -148,6 +132,11 @@ public class BinaryMusicDBN
         if (!prevStateLoaded)
         {
             rbm.setLayerFactory(layerFactory)
+                    .withMemoryBudget(
+                            (long) (Runtime.getRuntime().maxMemory() * HEAP_BUDGET),
+                            LEARN_SIZE,
+                            null,
+                            true)
                     .addLayer(dr.getRows() * dr.getCols(), false)
                     .addLayer(500, false)
                     .addLayer(500, false)
@@ -156,6 +145,9 @@ public class BinaryMusicDBN
                     .build();
         }
 
+        trainingSet = BinarizedDataSet.fromTrainingItems(dr);
+        System.out.println(trainingSet);
+
         final int numIterations = 400;
         System.out.println("Training level 1 " + LocalTime.now());
         learn(numIterations, false, 1);
@@ -179,6 +171,11 @@ public class BinaryMusicDBN
             e.printStackTrace();
         }
 
+        DBNClassifier classifier = new DBNClassifier(
+                new SnapshotPublisher(rbm),
+                dr.getLabels().size())
+                .withCache(predictionCache);
+
         double numCorrect = 0;
         double numWrong = 0;
         double numAlmost = 0.0;
@@ -188,21 +185,8 @@ public class BinaryMusicDBN
         {
             DataItem testCase = dr.getRandomTestItem();
 
-            Iterator<Tuple> it = evaluate(testCase);
-
-            float[] labeld = new float[dr.getLabels().size()];
-
-            for (int i = 0; i < 2; i++)
-            {
-                Tuple t = it.next();
-
-                for (int j = (t.visible.size() - dr.getLabels().size()), k = 0;
-                     j < t.visible.size() && k < dr.getLabels().size();
-                     j++, k++)
-                {
-                    labeld[k] += t.visible.get(j);
-                }
-            }
+            float[] labeld = classifier.classify(
+                    new BinaryLayer(layerFactory.create(testCase.getData())));
 
             float max1 = 0.0f;
             int p1 = -1;
@@ -210,7 +194,6 @@ public class BinaryMusicDBN
 
             for (int i = 0; i < labeld.length; i++)
             {
-                labeld[i] /= 2;
                 if (labeld[i] > max1)
                 {
                     max1 = labeld[i];
@@ -219,11 +202,11 @@ public class BinaryMusicDBN
                 }
             }
 
-            if (p1 == dr.getLabels().indexOf(testCase.getLabel()))
+            if (p1 == testCase.getLabelId())
             {
                 numCorrect++;
             }
-            else if (p2 == dr.getLabels().indexOf(testCase.getLabel()))
+            else if (p2 == testCase.getLabelId())
             {
                 numAlmost++;
             }
@@ -235,5 +218,10 @@ public class BinaryMusicDBN
 
         System.out.println("Error Rate = "
                 + ((numWrong / (numAlmost + numCorrect + numWrong)) * 100));
+
+        if (predictionCache != null)
+        {
+            System.out.println(predictionCache);
+        }
     }
 }
\ No newline at end of file
@@ -1,10 +1,12 @@
 package com.github.tjake.rbm.music;
 
 import com.github.tjake.rbm.DataSetReader;
+import com.github.tjake.rbm.GenerativeSampler;
+import com.github.tjake.rbm.LabelVocabulary;
 import com.github.tjake.rbm.Layer;
 import com.github.tjake.rbm.LayerFactory;
-import com.github.tjake.rbm.SimpleRBM;
 import com.github.tjake.rbm.StackedRBM;
+import com.github.tjake.rbm.StackedRBMSnapshot;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -21,72 +23,63 @@ import java.nio.file.Path;
  */
 public class GenerativeMusicDBN
 {
-    private final StackedRBM dbn;
+    private static final int BURN_IN = 10;
+
+    private final StackedRBMSnapshot dbn;
     private final DataSetReader dataSetReader;
+    private final GenerativeSampler sampler;
 
     public GenerativeMusicDBN(Path state, DataSetReader dataSetReader)
             throws IOException
+    {
+        this(state, dataSetReader, 1);
+    }
+
+    public GenerativeMusicDBN(
+            Path state,
+            DataSetReader dataSetReader,
+            int samplesPerLabel)
+            throws IOException
     {
         this.dataSetReader = dataSetReader;
 
-        this.dbn = new StackedRBM();
-        dbn.load(
+        StackedRBM loaded = new StackedRBM();
+        loaded.load(
                 new DataInputStream(
                     new BufferedInputStream(
                             new FileInputStream(state.toFile()))),
                 new LayerFactory());
+
+        this.dbn = StackedRBMSnapshot.of(loaded);
+        this.sampler = new GenerativeSampler(
+                dataSetReader.getLabels().size(),
+                samplesPerLabel,
+                BURN_IN);
     }
 
     public void drawImages(Path saveTo) throws IOException
     {
-        for (String label : dataSetReader.getLabels())
+        final LabelVocabulary labels = dataSetReader.getLabelVocabulary();
+
+        for (int id = 0; id < labels.size(); id++)
         {
-            final Path toSave = saveTo.resolve(label + "_generated.png");
+            final String label = labels.getLabel(id);
+            Layer[] samples = sampler.sample(dbn, id);
 
-            if (!Files.exists(toSave))
+            for (int n = 0; n < samples.length; n++)
             {
-                Files.createFile(toSave);
-            }
+                final Path toSave = saveTo.resolve(label + "_generated"
+                        + (samples.length > 1 ? "_" + n : "")
+                        + ".png");
 
-            ImageIO.write(getImage(label), "png", toSave.toFile());
-        }
-    }
+                if (!Files.exists(toSave))
+                {
+                    Files.createFile(toSave);
+                }
 
-    private BufferedImage getImage(String label)
-    {
-        SimpleRBM r = dbn.getInnerRBMs().get(dbn.getInnerRBMs().size() - 1);
-
-        Layer input = new Layer(r.biasVisible.size());
-
-        //setup input
-
-        input.set(
-                input.size() - dataSetReader.getLabels().size()
-                        + dataSetReader.getLabels().indexOf(label),
-                // TODO What value to set it to? 100_000 seems weirdly big...
-                10_000.0f);
-
-        input = r.activateHidden(input);
-        input = r.activateVisible(input);
-
-        for (int i = dbn.getInnerRBMs().size() - 2; i >= 0; i--)
-        {
-            SimpleRBM prevRbm = dbn.getInnerRBMs().get(i);
-
-            if (input.size() > prevRbm.biasHidden.size())
-            {
-                float[] newInput = new float[prevRbm.biasHidden.size()];
-                System.arraycopy(
-                        input.get(), 0,
-                        newInput, 0,
-                        newInput.length);
-                input = new Layer(newInput);
+                ImageIO.write(drawImage(samples[n]), "png", toSave.toFile());
             }
-
-            input = prevRbm.activateVisible(input);
         }
-
-        return drawImage(input);
     }
 
     private BufferedImage drawImage(Layer input)
@@ -0,0 +1,279 @@
+package com.github.tjake.rbm.music;
+
+import com.github.tjake.rbm.LabelVocabulary;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Music items of image files that are only decoded when they're asked for,
+ * through a size bounded LRU cache, so the heap needed doesn't grow with the
+ * number of files.
+ *
+ * With a store file every image is decoded once into it, the pixels of one
+ * item after the other, and later reads are copies from the mapped file.
+ * The store is rebuilt when the files it was built from change.
+ */
+final class LazyMusicItems extends AbstractList<MusicItem>
+{
+    private static final int MAGIC = 0xa7d1057e;
+    private static final int HEADER_SIZE = 24;
+
+    private final List<Path> files;
+    private final String[] labels;
+    private final int[] labelIds;
+    private final int rows;
+    private final int cols;
+    private final int itemSize;
+
+    private final int maxEntries;
+    private final LinkedHashMap<Integer, MusicItem> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Items [c * itemsPerChunk, (c + 1) * itemsPerChunk) of the store are
+    // mapped by store[c], null without a store
+    private final MappedByteBuffer[] store;
+    private final int itemsPerChunk;
+
+    LazyMusicItems(
+            List<Path> files,
+            LabelVocabulary vocabulary,
+            int rows,
+            int cols,
+            long cacheBytes,
+            Path storeFile) throws IOException
+    {
+        if (cacheBytes < 0)
+        {
+            throw new IllegalArgumentException("Invalid cacheBytes");
+        }
+
+        this.files = files;
+        this.labels = new String[files.size()];
+        this.labelIds = new int[files.size()];
+        this.rows = rows;
+        this.cols = cols;
+        this.itemSize = rows * cols;
+
+        for (int i = 0; i < labels.length; i++)
+        {
+            labels[i] = MusicDataSetReader.label(files.get(i));
+            labelIds[i] = vocabulary.getId(labels[i]);
+        }
+
+        this.maxEntries = (int) Math.min(Integer.MAX_VALUE, cacheBytes / itemSize);
+        this.cache = new LinkedHashMap<Integer, MusicItem>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, MusicItem> e)
+            {
+                return size() > LazyMusicItems.this.maxEntries;
+            }
+        };
+
+        this.itemsPerChunk = Integer.MAX_VALUE / itemSize;
+        this.store = storeFile == null ? null : map(storeFile);
+    }
+
+    @Override
+    public MusicItem get(int i)
+    {
+        if (i < 0 || i >= labels.length)
+        {
+            throw new IndexOutOfBoundsException("Index " + i + ", size "
+                    + labels.length);
+        }
+
+        MusicItem item;
+        synchronized (cache)
+        {
+            item = cache.get(i);
+        }
+
+        if (item != null)
+        {
+            hits.incrementAndGet();
+            return item;
+        }
+
+        misses.incrementAndGet();
+
+        // Decoded outside the lock, two threads may both decode an item
+        item = new MusicItem(
+                store == null ? decode(files.get(i)) : read(i),
+                labels[i],
+                labelIds[i]);
+
+        if (maxEntries > 0)
+        {
+            synchronized (cache)
+            {
+                cache.put(i, item);
+            }
+        }
+
+        return item;
+    }
+
+    @Override
+    public int size()
+    {
+        return labels.length;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LazyMusicItems{size=" + size()
+                + ", maxEntries=" + maxEntries
+                + ", hits=" + hits.get()
+                + ", misses=" + misses.get()
+                + ", store=" + (store != null) + "}";
+    }
+
+    private byte[] decode(Path file)
+    {
+        try
+        {
+            final BufferedImage image = ImageIO.read(file.toFile());
+
+            if (image == null)
+            {
+                throw new IOException("Bad File Format " + file);
+            }
+
+            if (image.getHeight() != rows || image.getWidth() != cols)
+            {
+                throw new IllegalStateException("Expected " + cols + "x" + rows
+                        + " images, got " + image.getWidth() + "x"
+                        + image.getHeight() + " in " + file);
+            }
+
+            return MusicDataSetReader.pixels(image);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] read(int i)
+    {
+        final byte[] data = new byte[itemSize];
+
+        // A view, the mapped buffer's own position is shared by all threads
+        final ByteBuffer view = store[i / itemsPerChunk].duplicate();
+        view.position((i % itemsPerChunk) * itemSize);
+        view.get(data);
+
+        return data;
+    }
+
+    private MappedByteBuffer[] map(Path storeFile) throws IOException
+    {
+        final long fingerprint = fingerprint();
+
+        if (!matches(storeFile, fingerprint))
+        {
+            build(storeFile, fingerprint);
+        }
+
+        final int chunks = (labels.length + itemsPerChunk - 1) / itemsPerChunk;
+        final MappedByteBuffer[] mapped = new MappedByteBuffer[chunks];
+
+        try (FileChannel channel = FileChannel.open(storeFile, StandardOpenOption.READ))
+        {
+            for (int c = 0; c < chunks; c++)
+            {
+                final int items = Math.min(
+                        itemsPerChunk,
+                        labels.length - c * itemsPerChunk);
+
+                mapped[c] = channel.map(
+                        FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + (long) c * itemsPerChunk * itemSize,
+                        (long) items * itemSize);
+            }
+        }
+
+        return mapped;
+    }
+
+    private boolean matches(Path storeFile, long fingerprint) throws IOException
+    {
+        if (!Files.exists(storeFile)
+                || Files.size(storeFile)
+                != HEADER_SIZE + (long) labels.length * itemSize)
+        {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                Files.newInputStream(storeFile)))
+        {
+            return in.readInt() == MAGIC
+                    && in.readInt() == labels.length
+                    && in.readInt() == rows
+                    && in.readInt() == cols
+                    && in.readLong() == fingerprint;
+        }
+    }
+
+    // Decodes every file into a temporary store that replaces storeFile
+    // once it's complete
+    private void build(Path storeFile, long fingerprint) throws IOException
+    {
+        final Path partFile = storeFile.resolveSibling(storeFile.getFileName()
+                + ".part");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(partFile), 1 << 16)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(labels.length);
+            out.writeInt(rows);
+            out.writeInt(cols);
+            out.writeLong(fingerprint);
+
+            for (Path file : files)
+            {
+                out.write(decode(file));
+            }
+        }
+
+        Files.move(partFile, storeFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Changes with the names, sizes and modification times of the files
+    private long fingerprint() throws IOException
+    {
+        long h = 0x9e3779b97f4a7c15L;
+
+        for (Path file : files)
+        {
+            h = h * 31 + file.getFileName().toString().hashCode();
+            h = h * 31 + Files.size(file);
+            h = h * 31 + Files.getLastModifiedTime(file).toMillis();
+        }
+
+        return h;
+    }
+}
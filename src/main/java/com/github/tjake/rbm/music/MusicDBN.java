@@ -1,14 +1,17 @@
 package com.github.tjake.rbm.music;
 
+import com.github.tjake.rbm.AllocationTracker;
+import com.github.tjake.rbm.BinarizedDataSet;
 import com.github.tjake.rbm.BinaryLayer;
+import com.github.tjake.rbm.DBNClassifier;
 import com.github.tjake.rbm.DataItem;
 import com.github.tjake.rbm.DataSetReader;
-import com.github.tjake.rbm.Layer;
 import com.github.tjake.rbm.LayerFactory;
-import com.github.tjake.rbm.SimpleRBM;
+import com.github.tjake.rbm.PredictionCache;
+import com.github.tjake.rbm.SnapshotPublisher;
 import com.github.tjake.rbm.StackedRBM;
 import com.github.tjake.rbm.StackedRBMTrainer;
-import com.github.tjake.rbm.Tuple;
+import com.github.tjake.rbm.ValidationMonitor;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -19,102 +22,90 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Random;
 
 public class MusicDBN
 {
+    //Items held out to validate each level with, see ValidationMonitor
+    private static final int HELD_OUT = 500;
+    private static final int CHECK_EVERY = 50;
+    private static final int MIN_BATCHES = 200;
+    private static final int PATIENCE = 5;
+    private static final float MIN_DELTA = 0.001f;
+
+    //Batches left out of the allocation counts, see AllocationTracker
+    private static final int ALLOCATION_WARMUP = 10;
+
+    private static final int LEARN_SIZE = 30;
+
+    //Heap the built model may plan to use, the rest is left for the data
+    private static final double HEAP_BUDGET = 0.5;
+
+    //The first level shares FILTERS small filters over the spectrogram,
+    //see ConvolutionalRBM
+    private static final int FILTERS = 8;
+    private static final int FILTER_SIZE = 5;
+    private static final int POOL_SIZE = 4;
+
     private final DataSetReader dataSetReader;
     private final StackedRBM rbm;
     private final StackedRBMTrainer trainer;
     private final LayerFactory layerFactory = new LayerFactory();
+    private final Random random = new Random();
+    private BinarizedDataSet trainingSet;
+    private PredictionCache predictionCache;
 
     public MusicDBN(DataSetReader dataSetReader)
     {
         this.dataSetReader = dataSetReader;
         rbm = new StackedRBM();
-        trainer = new StackedRBMTrainer(rbm, 0.5f, 0.001f, 0.2f, 0.2f);
+        trainer = new StackedRBMTrainer(rbm, 0.5f, 0.001f, 0.2f, 0.2f)
+                .setAllocationTracking(ALLOCATION_WARMUP);
     }
 
-    private void learn(int iterations, boolean addLabels, int stopAt)
+    //Optional, caches the classification of repeated (binarized) test inputs
+    public void setPredictionCache(PredictionCache predictionCache)
     {
-        final int learnSize = 30;
-        // Get random input
-        final List<Layer> inputBatch = new ArrayList<>(learnSize);
-        final List<Layer> labelBatch = addLabels
-                ? new ArrayList<>(learnSize)
-                : Collections.<Layer>emptyList();
-
-        for (int p = 0; p < iterations; p++)
-        {
-            inputBatch.clear();
-            labelBatch.clear();
-
-            for (int j = 0; j < learnSize; j++)
-            {
-                DataItem trainItem = dataSetReader.getRandomTrainingItem();
-                // TODO Why binary layer?
-                inputBatch.add(new BinaryLayer(new Layer(trainItem.getData())));
-
-                if (addLabels)
-                {
-                    float[] labelInput = new float[dataSetReader.getLabels().size()];
-                    labelInput[dataSetReader.getLabels().indexOf(trainItem.getLabel())] = 1.0f;
-                    labelBatch.add(new Layer(labelInput));
-                }
-            }
-
-            double error = trainer.learn(inputBatch, labelBatch, stopAt);
-
-            if (p % 100 == 0)
-            {
-                System.out.println(
-                        "Iteration " + p
-                                + ", Error = " + error
-                                + ", Energy = " + rbm.freeEnergy());
-            }
-        }
+        this.predictionCache = predictionCache;
     }
 
-    private Iterator<Tuple> evaluate(DataItem test)
+    private void learn(int iterations, final boolean addLabels, int stopAt)
     {
-        Layer input = new BinaryLayer(new Layer(test.getData()));
-
-        int stackNum = rbm.getInnerRBMs().size();
-
-        for (int i = 0; i < stackNum; i++)
+        // Each level stops early once the reconstruction error of held out
+        // test items stops falling
+        final ValidationMonitor monitor = new ValidationMonitor(
+                trainingSet.sample(HELD_OUT, addLabels, random),
+                BinarizedDataSet.heldOut(dataSetReader, HELD_OUT, addLabels),
+                MIN_BATCHES,
+                PATIENCE,
+                MIN_DELTA);
+
+        // Random input batches are unpacked from the binarized training set
+        // on their own thread while the levels below stopAt work through
+        // the previous ones
+        trainer.learnPipelined(
+                trainingSet.batches(LEARN_SIZE, addLabels),
+                iterations,
+                stopAt,
+                monitor,
+                CHECK_EVERY,
+                (p, error) -> {
+                    if (p % 100 == 0)
+                    {
+                        System.out.println(
+                                "Iteration " + p
+                                        + ", Error = " + error
+                                        + ", Validation error = "
+                                        + monitor.getError());
+                    }
+
+                    return true;
+                });
+
+        for (AllocationTracker allocations : trainer.getAllocationTrackers())
         {
-            SimpleRBM iRBM = rbm.getInnerRBMs().get(i);
-
-            if (iRBM.biasVisible.size() > input.size())
-            {
-                Layer newInput = new Layer(iRBM.biasVisible.size());
-
-                System.arraycopy(
-                        input.get(), 0,
-                        newInput.get(), 0,
-                        input.size());
-
-                for (int j = input.size(); j < newInput.size(); j++)
-                {
-                    newInput.set(j, 0.1f);
-                }
-
-                input = newInput;
-            }
-
-            if (i == (stackNum - 1))
-            {
-                return iRBM.iterator(input);
-            }
-
-            input = iRBM.activateHidden(input);
+            System.out.println(allocations);
         }
-
-        throw new IllegalStateException(
-                "Should have returned before reaching here...");
     }
 
     public void start(Path saveto)
@@ -143,9 +134,19 @@ public class MusicDBN
         int numIterations = 500;
 
         rbm.setLayerFactory(layerFactory)
+                .withMemoryBudget(
+                        (long) (Runtime.getRuntime().maxMemory() * HEAP_BUDGET),
+                        LEARN_SIZE,
+                        null,
+                        true)
                 // second parameter 'false' means the layer is not Gaussian.
                 .addLayer(dataSetReader.getRows() * dataSetReader.getCols(), false)
-                .addLayer(2000, false)
+                .addConvolutionalLayer(
+                        dataSetReader.getRows(),
+                        dataSetReader.getCols(),
+                        FILTERS,
+                        FILTER_SIZE,
+                        POOL_SIZE)
                 .addLayer(500, false)
                 .addLayer(200, false)
                 .withCustomInput(500 + dataSetReader.getLabels().size())
@@ -153,6 +154,9 @@ public class MusicDBN
 
         // Second parameter 'false'/'true' is 'include labels', which only
         // applies to the third level.
+        trainingSet = BinarizedDataSet.fromTrainingItems(dataSetReader);
+        System.out.println(trainingSet);
+
         System.out.println("Training level 1");
         learn(numIterations, false, 1);
         System.out.println("Training level 2");
@@ -175,6 +179,11 @@ public class MusicDBN
             e.printStackTrace();
         }
 
+        DBNClassifier classifier = new DBNClassifier(
+                new SnapshotPublisher(rbm),
+                dataSetReader.getLabels().size())
+                .withCache(predictionCache);
+
         double numCorrect = 0;
         double numWrong = 0;
         double numAlmost = 0.0;
@@ -184,21 +193,8 @@ public class MusicDBN
         {
             DataItem testCase = dataSetReader.getRandomTestItem();
 
-            Iterator<Tuple> it = evaluate(testCase);
-
-            float[] labeled = new float[10];
-
-            for (int i = 0; i < 2; i++)
-            {
-                Tuple t = it.next();
-
-                for (int j = (t.visible.size() - 10), k = 0;
-                     j < t.visible.size() && k < 10;
-                     j++, k++)
-                {
-                    labeled[k] += t.visible.get(j);
-                }
-            }
+            float[] labeled = classifier.classify(
+                    new BinaryLayer(layerFactory.create(testCase.getData())));
 
             float max1 = 0.0f;
             int p1 = -1;
@@ -206,7 +202,6 @@ public class MusicDBN
 
             for (int i = 0; i < labeled.length; i++)
             {
-                labeled[i] /= 2;
                 if (labeled[i] > max1)
                 {
                     max1 = labeled[i];
@@ -215,11 +210,11 @@ public class MusicDBN
                 }
             }
 
-            if (p1 == dataSetReader.getLabels().indexOf(testCase.getLabel()))
+            if (p1 == testCase.getLabelId())
             {
                 numCorrect++;
             }
-            else if (p2 == dataSetReader.getLabels().indexOf(testCase.getLabel()))
+            else if (p2 == testCase.getLabelId())
             {
                 numAlmost++;
             }
@@ -231,5 +226,10 @@ public class MusicDBN
 
         System.out.println("Error Rate = "
                 + ((numWrong / (numAlmost + numCorrect + numWrong)) * 100));
+
+        if (predictionCache != null)
+        {
+            System.out.println(predictionCache);
+        }
     }
 }
@@ -1,9 +1,14 @@
 package com.github.tjake.rbm.music;
 
+import com.github.tjake.rbm.DataItem;
 import com.github.tjake.rbm.DataSetReader;
-import org.javatuples.Quartet;
+import com.github.tjake.rbm.LabelVocabulary;
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.io.IOException;
@@ -12,11 +17,13 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
-import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  *
@@ -28,68 +35,309 @@ public class MusicDataSetReader implements DataSetReader
     private final int rows;
     private final int cols;
 
-    private final List<String> labels;
+    private final LabelVocabulary labels;
+    // LazyMusicItems in a lazy reader
     private final List<MusicItem> trainingItems;
     private final List<MusicItem> testItems;
 
     public MusicDataSetReader(Path trainingImagesDir, Path testImagesDir)
     {
-        final Set<String> labels = new HashSet<>();
-        final Quartet<List<MusicItem>, List<String>, Integer, Integer>
-                training = parse(trainingImagesDir);
+        // labels should be the same from training and test data sets...
+        // sorted, so every process reading the same files agrees on the ids
+        final SortedSet<String> labels = new TreeSet<>();
+        labels.addAll(labels(trainingImagesDir));
+        labels.addAll(labels(testImagesDir));
+        this.labels = new LabelVocabulary(labels);
+
+        final Triplet<List<MusicItem>, Integer, Integer>
+                training = parse(trainingImagesDir, this.labels);
         this.trainingItems = training.getValue0();
-        labels.addAll(training.getValue1());
-        rows = training.getValue2();
-        cols = training.getValue3();
+        rows = training.getValue1();
+        cols = training.getValue2();
 
-        final Quartet<List<MusicItem>, List<String>, Integer, Integer>
-                test = parse(testImagesDir);
-        this.testItems = test.getValue0();
-        // labels should be the same from training and test data sets...
-        labels.addAll(test.getValue1());
+        this.testItems = parse(testImagesDir, this.labels).getValue0();
+    }
+
+    // Items straight from memory, a label and an image for each, like the
+    // spectrogram partitions of a pipeline that never writes them as files.
+    // Every image must have the same size.
+    public MusicDataSetReader(
+            Stream<Pair<String, BufferedImage>> trainingImages,
+            Stream<Pair<String, BufferedImage>> testImages)
+    {
+        final List<Pair<String, byte[]>> training = new ArrayList<>();
+        final List<Pair<String, byte[]>> test = new ArrayList<>();
+        final int[] size = {-1, -1};
+
+        trainingImages.forEach(image -> training.add(pixels(image, size)));
+        testImages.forEach(image -> test.add(pixels(image, size)));
+
+        if (training.isEmpty())
+        {
+            throw new IllegalArgumentException("No training images");
+        }
+
+        final SortedSet<String> labels = new TreeSet<>();
+        training.forEach(item -> labels.add(item.getValue0()));
+        test.forEach(item -> labels.add(item.getValue0()));
+        this.labels = new LabelVocabulary(labels);
+
+        this.trainingItems = items(training, this.labels);
+        this.testItems = items(test, this.labels);
+        rows = size[0];
+        cols = size[1];
+    }
+
+    private MusicDataSetReader(
+            LabelVocabulary labels,
+            List<MusicItem> trainingItems,
+            List<MusicItem> testItems,
+            int rows,
+            int cols)
+    {
+        this.labels = labels;
+        this.trainingItems = trainingItems;
+        this.testItems = testItems;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    // A reader that only lists the image files, and decodes them when
+    // they're used through an LRU cache of at most cacheBytes of pixels
+    public static MusicDataSetReader lazy(
+            Path trainingImagesDir,
+            Path testImagesDir,
+            long cacheBytes)
+    {
+        return lazy(trainingImagesDir, testImagesDir, cacheBytes, null);
+    }
 
-        this.labels = Collections.unmodifiableList(new ArrayList<>(labels));
+    // Like lazy(trainingImagesDir, testImagesDir, cacheBytes), the images
+    // decoded once into stores in storeDir and read from them mapped, null
+    // for no stores
+    public static MusicDataSetReader lazy(
+            Path trainingImagesDir,
+            Path testImagesDir,
+            long cacheBytes,
+            Path storeDir)
+    {
+        final List<Path> training = files(trainingImagesDir);
+        final List<Path> test = files(testImagesDir);
+
+        if (training.isEmpty())
+        {
+            throw new IllegalArgumentException("No training images in "
+                    + trainingImagesDir);
+        }
+
+        final SortedSet<String> labels = new TreeSet<>();
+        training.forEach(file -> labels.add(label(file)));
+        test.forEach(file -> labels.add(label(file)));
+        final LabelVocabulary vocabulary = new LabelVocabulary(labels);
+
+        // The cache is shared out by the number of items
+        final long trainingCacheBytes = (long) ((double) cacheBytes
+                * training.size() / (training.size() + test.size()));
+
+        try
+        {
+            final int[] size = size(training.get(0));
+
+            return new MusicDataSetReader(
+                    vocabulary,
+                    new LazyMusicItems(
+                            training,
+                            vocabulary,
+                            size[0],
+                            size[1],
+                            trainingCacheBytes,
+                            storeDir == null ? null : storeDir.resolve("training.items")),
+                    new LazyMusicItems(
+                            test,
+                            vocabulary,
+                            size[0],
+                            size[1],
+                            cacheBytes - trainingCacheBytes,
+                            storeDir == null ? null : storeDir.resolve("test.items")),
+                    size[0],
+                    size[1]);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    private static Quartet<List<MusicItem>, List<String>, Integer, Integer>
-    parse(Path imagesDir)
+    // Files of imagesDir, sorted so the stores are always in the same order
+    private static List<Path> files(Path imagesDir)
+    {
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(imagesDir))
+        {
+            final List<Path> files = new ArrayList<>();
+            paths.forEach(files::add);
+            files.sort(null);
+            return files;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Rows and columns of an image, from its header without decoding it
+    private static int[] size(Path imageFile) throws IOException
+    {
+        try (ImageInputStream in = ImageIO.createImageInputStream(imageFile.toFile()))
+        {
+            final Iterator<ImageReader> readers = in == null
+                    ? null
+                    : ImageIO.getImageReaders(in);
+
+            if (readers == null || !readers.hasNext())
+            {
+                throw new IOException("Bad File Format " + imageFile);
+            }
+
+            final ImageReader reader = readers.next();
+
+            try
+            {
+                reader.setInput(in);
+                return new int[] {reader.getHeight(0), reader.getWidth(0)};
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static Pair<String, byte[]> pixels(
+            Pair<String, BufferedImage> labeled,
+            int[] size)
+    {
+        final BufferedImage image = labeled.getValue1();
+
+        if (size[0] < 0)
+        {
+            size[0] = image.getHeight();
+            size[1] = image.getWidth();
+        }
+        else if (size[0] != image.getHeight() || size[1] != image.getWidth())
+        {
+            throw new IllegalArgumentException("Expected "
+                    + size[1] + "x" + size[0] + " images, got "
+                    + image.getWidth() + "x" + image.getHeight());
+        }
+
+        return Pair.with(labeled.getValue0(), pixels(image));
+    }
+
+    private static List<MusicItem> items(
+            List<Pair<String, byte[]>> images,
+            LabelVocabulary vocabulary)
+    {
+        final List<MusicItem> items = new ArrayList<>(images.size());
+
+        for (Pair<String, byte[]> image : images)
+        {
+            items.add(new MusicItem(
+                    image.getValue1(),
+                    image.getValue0(),
+                    vocabulary.getId(image.getValue0())));
+        }
+
+        return items;
+    }
+
+    // The blue channel of every pixel, row by row, as the PNG spectrograms
+    // are read. Works for sub-images that share a bigger image's raster.
+    public static byte[] pixels(BufferedImage image)
+    {
+        final int height = image.getHeight();
+        final int width = image.getWidth();
+        final byte[] imageData = new byte[height * width];
+
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR
+                && image.getRaster().getParent() == null)
+        {
+            final byte[] data = ((DataBufferByte) image
+                    .getRaster()
+                    .getDataBuffer())
+                    .getData();
+
+            for (int i = 0, j = 0; i < imageData.length; i++, j += 3)
+            {
+                imageData[i] = data[j];
+            }
+
+            return imageData;
+        }
+
+        final int[] row = new int[width];
+        for (int y = 0; y < height; y++)
+        {
+            image.getRGB(0, y, width, 1, row, 0, width);
+
+            for (int x = 0; x < width; x++)
+            {
+                imageData[y * width + x] = (byte) row[x];
+            }
+        }
+
+        return imageData;
+    }
+
+    static String label(Path imageFilePath)
+    {
+        final String fileName = imageFilePath.getFileName().toString();
+        return fileName.substring(0, fileName.indexOf('_'));
+    }
+
+    private static List<String> labels(Path imagesDir)
     {
         try (DirectoryStream<Path> paths = Files.newDirectoryStream(imagesDir))
         {
-            List<MusicItem> musicItems = new ArrayList<>();
             List<String> labels = new ArrayList<>();
+
+            for (Path imageFilePath : paths)
+            {
+                labels.add(label(imageFilePath));
+            }
+
+            return labels;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Triplet<List<MusicItem>, Integer, Integer>
+    parse(Path imagesDir, LabelVocabulary vocabulary)
+    {
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(imagesDir))
+        {
+            List<MusicItem> musicItems = new ArrayList<>();
             int rows = 0;
             int cols = 0;
 
             for (Path imageFilePath : paths)
             {
-                final String fileName = imageFilePath.getFileName().toString();
-                final String label = fileName.substring(0, fileName.indexOf('_'));
+                final String label = label(imageFilePath);
 
                 final BufferedImage image = ImageIO.read(imageFilePath.toFile());
-                final int height = image.getHeight();
-                final int width = image.getWidth();
-                final byte[] imageData = new byte[height * width];
-
-                final byte[] data = ((DataBufferByte) image
-                        .getRaster()
-                        .getDataBuffer())
-                        .getData();
-
-                for (int i = 0, j = 0; j < data.length; i++, j += 3)
-                {
-                    imageData[i] = data[j];
-                }
-
-                labels.add(label);
-                musicItems.add(new MusicItem(imageData, label));
-                rows = height;
-                cols = width;
+
+                musicItems.add(new MusicItem(
+                        pixels(image),
+                        label,
+                        vocabulary.getId(label)));
+                rows = image.getHeight();
+                cols = image.getWidth();
             }
 
-            return Quartet.with(
+            return Triplet.with(
                     musicItems,
-                    labels,
                     rows,
                     cols);
         }
@@ -104,16 +352,26 @@ public class MusicDataSetReader implements DataSetReader
         return trainingItems.get(RANDOM.nextInt(trainingItems.size()));
     }
 
+    public void forEachTrainingItem(Consumer<? super DataItem> action)
+    {
+        trainingItems.forEach(action);
+    }
+
     public MusicItem getRandomTestItem()
     {
         return testItems.get(RANDOM.nextInt(testItems.size()));
     }
 
-    public List<String> getLabels()
+    public LabelVocabulary getLabelVocabulary()
     {
         return labels;
     }
 
+    public List<String> getLabels()
+    {
+        return labels.getLabels();
+    }
+
     public int getRows()
     {
         return rows;
@@ -11,11 +11,13 @@ public class MusicItem implements DataItem
 {
     private final byte[] data;
     private final String label;
+    private final int labelId;
 
-    public MusicItem(byte[] data, String label)
+    public MusicItem(byte[] data, String label, int labelId)
     {
         this.data = Objects.requireNonNull(data);
         this.label = label;
+        this.labelId = labelId;
     }
 
     public byte[] getData()
@@ -27,4 +29,9 @@ public class MusicItem implements DataItem
     {
         return label;
     }
+
+    public int getLabelId()
+    {
+        return labelId;
+    }
 }
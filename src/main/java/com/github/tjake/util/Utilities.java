@@ -3,6 +3,7 @@ package com.github.tjake.util;
 
 import com.github.tjake.rbm.Layer;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Utilities {
 
@@ -21,7 +22,10 @@ public class Utilities {
     {
         double sum = 0.0f;
         for (int i=0; i<input.size(); i++)
-            sum += Math.pow(input.get(i) - mean, 2);
+        {
+            float d = input.get(i) - mean;
+            sum += d * d;
+        }
 
         return (float)Math.sqrt(sum/(input.size() - 1));
     }
@@ -31,6 +35,15 @@ public class Utilities {
         return (float) (1.0f / (1.0f + Math.exp(-x)));
     }
 
+    //log(1 + e^x) without overflowing for large x
+    public static float softplus(float x)
+    {
+        if (x > 0.0f)
+            return x + (float) Math.log1p(Math.exp(-x));
+
+        return (float) Math.log1p(Math.exp(x));
+    }
+
     public static Layer bernoulli(Layer input)
     {
         Layer output = input.clone();
@@ -42,4 +55,15 @@ public class Utilities {
         return output;
     }
 
+    //Same as bernoulli(input) but samples into output, safe to call from
+    //many threads at once
+    public static Layer bernoulli(Layer input, Layer output)
+    {
+        Random rand = ThreadLocalRandom.current();
+        for (int i=0; i<input.size(); i++)
+            output.set(i, rand.nextFloat() < input.get(i) ? 1.0f : 0.0f);
+
+        return output;
+    }
+
 }
@@ -1,62 +1,415 @@
 package com.implementsblog.utilities;
 
-import javazoom.jl.converter.Converter;
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.Obuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Converts every MP3 in a directory to a WAV file next to it, skipping the
+ * ones that already have one.
  *
+ * Decoding is CPU bound, so files are decoded in parallel, each worker into
+ * its own reused, fixed size PCM buffer that's written out whenever it's
+ * full, so memory doesn't grow with the length of the files. Only a few
+ * buffers are written at once, to a temporary file whose header is filled
+ * in and that's moved into place when it's complete; a WAV file left by a
+ * failed run is never half written.
+ *
+ * Usage: ConvertAllMp3ToWav dir [threads] [writers]
  */
 public class ConvertAllMp3ToWav
 {
     private static final Logger log
             = LoggerFactory.getLogger(ConvertAllMp3ToWav.class);
 
+    private static final int WAV_HEADER_SIZE = 44;
+    private static final int BYTES_PER_SAMPLE = 2;
+    private static final String PART = ".part";
+
+    // Biggest data chunk of a WAV file, its size is an unsigned int
+    private static final long MAX_DATA_SIZE = 0xffffffffL - (WAV_HEADER_SIZE - 8);
+
+    // PCM data a worker decoded and hasn't written yet
+    private static final ThreadLocal<ByteBuffer> pcm = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN));
+
     public static void main(String[] args)
     {
-        Converter converter = new Converter();
+        final Path dir = Paths.get(args[0]);
+        final int threads = args.length > 1
+                ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        final int writers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        try
+        {
+            run(dir, threads, writers);
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to convert files.", e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted", e);
+        }
+    }
+
+    // Converts every MP3 of dir without a WAV file, returns the number
+    // that failed
+    public static int run(Path dir, int threads, int writers)
+            throws IOException, InterruptedException
+    {
+        if (threads <= 0 || writers <= 0)
+        {
+            throw new IllegalArgumentException("Invalid threads or writers");
+        }
+
+        final List<Path> files = new ArrayList<>();
 
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(
-                Paths.get(args[0]),
+                dir,
                 file -> file.getFileName().toString().endsWith(".mp3")))
         {
             for (Path file : stream)
             {
-                final String mp3FileName = file.toString();
-                final Path wavFile = Paths.get(
-                        mp3FileName.substring(0, mp3FileName.indexOf('.'))
-                                + ".wav");
-
-                if (!Files.exists(wavFile))
+                if (!Files.exists(wavFile(file)))
                 {
+                    files.add(file);
+                }
+            }
+        }
+
+        final long start = System.nanoTime();
+        final Semaphore disk = new Semaphore(writers, true);
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final AtomicInteger converted = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final LongAdder mp3Bytes = new LongAdder();
+        final LongAdder audioMillis = new LongAdder();
+
+        try
+        {
+            for (Path file : files)
+            {
+                workers.execute(() -> {
+                    final long fileStart = System.nanoTime();
+
                     try
                     {
-                        log.info("Start converstion of {} ...", mp3FileName);
+                        final long millis = convert(file, wavFile(file), disk);
 
-                        final String wavFileName = wavFile.toString();
-                        converter.convert(mp3FileName, wavFileName);
+                        mp3Bytes.add(Files.size(file));
+                        audioMillis.add(millis);
 
                         log.info(
-                                "Converted {} to {}",
-                                mp3FileName,
-                                wavFileName);
+                                "Converted {} ({}s of audio) in {}ms ({}/{})",
+                                file,
+                                millis / 1000,
+                                TimeUnit.NANOSECONDS.toMillis(
+                                        System.nanoTime() - fileStart),
+                                converted.incrementAndGet(),
+                                files.size());
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
                     }
                     catch (Exception e)
                     {
-                        log.warn("Failed to convert " + mp3FileName, e);
+                        failed.incrementAndGet();
+                        log.warn("Failed to convert " + file, e);
                     }
+                });
+            }
+
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
+
+        final double seconds = Math.max(
+                (System.nanoTime() - start) / 1e9,
+                1e-3);
+
+        log.info(
+                "Converted {} files, {} failed, in {}s: {} MB/s of MP3, {}x real time",
+                converted.get(),
+                failed.get(),
+                String.format("%.1f", seconds),
+                String.format("%.1f", mp3Bytes.sum() / seconds / (1024 * 1024)),
+                String.format("%.1f", audioMillis.sum() / 1000.0 / seconds));
+
+        return failed.get();
+    }
+
+    // Same name as the MP3 with the .wav extension
+    private static Path wavFile(Path mp3File)
+    {
+        final String mp3FileName = mp3File.getFileName().toString();
+        return mp3File.resolveSibling(
+                mp3FileName.substring(0, mp3FileName.lastIndexOf('.')) + ".wav");
+    }
+
+    // Decodes mp3File, writes it to wavFile with at most as many other
+    // writers as disk has permits and returns its length in milliseconds
+    private static long convert(Path mp3File, Path wavFile, Semaphore disk)
+            throws Exception
+    {
+        final Path partFile = wavFile.resolveSibling(wavFile.getFileName() + PART);
+        final PcmBuffer output;
+
+        try (FileChannel out = FileChannel.open(
+                partFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            // The header is written once the size of the data is known
+            out.position(WAV_HEADER_SIZE);
+            output = decode(mp3File, out, disk);
+            output.flush();
+
+            write(out, wavHeader(output.channels, output.frequency, output.size), 0);
+        }
+        catch (UncheckedIOException e)
+        {
+            Files.deleteIfExists(partFile);
+            throw e.getCause();
+        }
+        catch (Exception e)
+        {
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
+
+        Files.move(partFile, wavFile, StandardCopyOption.ATOMIC_MOVE);
+
+        final long bytesPerSecond
+                = (long) output.frequency * output.channels * BYTES_PER_SAMPLE;
+        return output.size * 1000L / bytesPerSecond;
+    }
+
+    // Decodes every frame of mp3File into a PcmBuffer writing to out
+    private static PcmBuffer decode(Path mp3File, FileChannel out, Semaphore disk)
+            throws Exception
+    {
+        PcmBuffer output = null;
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(mp3File)))
+        {
+            final Bitstream bitstream = new Bitstream(in);
+            final Decoder decoder = new Decoder();
+
+            try
+            {
+                Header header;
+
+                while ((header = bitstream.readFrame()) != null)
+                {
+                    // Same output format as JLayer's Converter
+                    if (output == null)
+                    {
+                        output = new PcmBuffer(
+                                header.mode() == Header.SINGLE_CHANNEL ? 1 : 2,
+                                header.frequency(),
+                                out,
+                                disk);
+                        decoder.setOutputBuffer(output);
+                    }
+
+                    decoder.decodeFrame(header, bitstream);
+                    bitstream.closeFrame();
+                }
+            }
+            finally
+            {
+                bitstream.close();
+            }
+        }
+
+        if (output == null)
+        {
+            throw new IOException("No MP3 frames in " + mp3File);
+        }
+
+        return output;
+    }
+
+    private static void write(FileChannel out, ByteBuffer data, long position)
+            throws IOException
+    {
+        while (data.hasRemaining())
+        {
+            position += out.write(data, position);
+        }
+    }
+
+    // Decoded samples of one file, interleaved like JLayer's WaveFileObuffer
+    // into the PCM buffer of the worker, which is appended to the file
+    // whenever it's full
+    private static final class PcmBuffer extends Obuffer
+    {
+        private final int channels;
+        private final int frequency;
+        private final short[] buffer = new short[OBUFFERSIZE];
+        private final int[] bufferp;
+        private final ByteBuffer data;
+        private final FileChannel out;
+        private final Semaphore disk;
+        private long size;
+
+        PcmBuffer(int channels, int frequency, FileChannel out, Semaphore disk)
+        {
+            this.channels = channels;
+            this.frequency = frequency;
+            this.bufferp = new int[channels];
+            this.data = pcm.get();
+            this.out = out;
+            this.disk = disk;
+
+            data.clear();
+            clear_buffer();
+        }
+
+        @Override
+        public void append(int channel, short value)
+        {
+            buffer[bufferp[channel]] = value;
+            bufferp[channel] += channels;
+        }
+
+        @Override
+        public void write_buffer(int val)
+        {
+            final int length = bufferp[0];
+
+            try
+            {
+                if (data.remaining() < length * BYTES_PER_SAMPLE)
+                {
+                    flush();
                 }
             }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+
+            for (int i = 0; i < length; i++)
+            {
+                data.putShort(buffer[i]);
+            }
+
+            clear_buffer();
         }
-        catch (IOException e)
+
+        // Appends the PCM data decoded so far to the file
+        void flush() throws IOException
         {
-            e.printStackTrace();
+            data.flip();
+            size += data.remaining();
+
+            if (size > MAX_DATA_SIZE)
+            {
+                throw new IOException("Too long for a WAV file");
+            }
+
+            try
+            {
+                disk.acquire();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            try
+            {
+                while (data.hasRemaining())
+                {
+                    out.write(data);
+                }
+            }
+            finally
+            {
+                disk.release();
+            }
+
+            data.clear();
         }
+
+        @Override
+        public void clear_buffer()
+        {
+            for (int i = 0; i < channels; i++)
+            {
+                bufferp[i] = i;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public void set_stop_flag()
+        {
+        }
+    }
+
+    // RIFF header of 16 bit PCM data
+    private static ByteBuffer wavHeader(int channels, int frequency, long dataSize)
+    {
+        final ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        header.put(new byte[] {'R', 'I', 'F', 'F'})
+                .putInt((int) (WAV_HEADER_SIZE - 8 + dataSize))
+                .put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '})
+                .putInt(16)
+                .putShort((short) 1)
+                .putShort((short) channels)
+                .putInt(frequency)
+                .putInt(frequency * channels * BYTES_PER_SAMPLE)
+                .putShort((short) (channels * BYTES_PER_SAMPLE))
+                .putShort((short) (8 * BYTES_PER_SAMPLE))
+                .put(new byte[] {'d', 'a', 't', 'a'})
+                .putInt((int) dataSize);
+
+        header.flip();
+        return header;
     }
 }
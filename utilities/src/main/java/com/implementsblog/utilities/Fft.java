@@ -0,0 +1,85 @@
+package com.implementsblog.utilities;
+
+/**
+ * In place radix-2 FFT of one size, with its twiddle factors and bit
+ * reversal permutation computed once. Not thread safe, use one per thread.
+ */
+final class Fft
+{
+    private final int size;
+    private final float[] cos;
+    private final float[] sin;
+    private final int[] reversed;
+
+    Fft(int size)
+    {
+        if (size < 2 || Integer.bitCount(size) != 1)
+        {
+            throw new IllegalArgumentException("FFT size must be a power of two: "
+                    + size);
+        }
+
+        this.size = size;
+        this.cos = new float[size / 2];
+        this.sin = new float[size / 2];
+        this.reversed = new int[size];
+
+        for (int i = 0; i < size / 2; i++)
+        {
+            final double angle = -2.0 * Math.PI * i / size;
+            cos[i] = (float) Math.cos(angle);
+            sin[i] = (float) Math.sin(angle);
+        }
+
+        final int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++)
+        {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    // Forward transform of re + i*im, both of length size
+    void transform(float[] re, float[] im)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            final int j = reversed[i];
+
+            if (i < j)
+            {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+
+        for (int half = 1, step = size / 2; half < size; half *= 2, step /= 2)
+        {
+            for (int start = 0; start < size; start += 2 * half)
+            {
+                for (int k = 0, t = 0; k < half; k++, t += step)
+                {
+                    final int a = start + k;
+                    final int b = a + half;
+
+                    final float bRe = re[b] * cos[t] - im[b] * sin[t];
+                    final float bIm = re[b] * sin[t] + im[b] * cos[t];
+
+                    re[b] = re[a] - bRe;
+                    im[b] = im[a] - bIm;
+                    re[a] += bRe;
+                    im[a] += bIm;
+                }
+            }
+        }
+    }
+}
@@ -1,146 +1,278 @@
 package com.implementsblog.utilities;
 
-import net.coobird.thumbnailator.Thumbnails;
-import org.javatuples.Triplet;
+import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.stream.Stream;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Writes the partitions of every spectrogram in a directory next to it, as
+ * PNG files for MusicDataSetReader. See SpectrogramPipeline to feed them to
+ * a reader straight from memory instead.
  *
+ * Spectrograms are processed in parallel by a fixed number of threads, and
+ * only as many at once as the estimated size of their decoded images fits
+ * in the memory budget. Every spectrogram whose partitions have all been
+ * written is recorded in a manifest in the directory, so a rerun after a
+ * failure skips the finished ones.
+ *
+ * Usage: ScaleAndPartitionSpectrogram dir [threads] [memory-budget-MB]
  */
 public class ScaleAndPartitionSpectrogram
 {
     private static final Logger log
             = LoggerFactory.getLogger(ScaleAndPartitionSpectrogram.class);
 
-    private static final int DOWN_FROM_TOP = 100;
-    private static final int UP_FROM_BOTTOM = 80;
-    private static final double SCALE = 0.75;
-    private static final int PARTITION_WIDTH = 500;
-    private static final String IMG_FILE_TYPE = "png";
-    private static final String PARTITION = "partition";
+    public static final String MANIFEST = "partitioned.manifest";
+
+    // Bytes held per pixel of a spectrogram while it's processed: the
+    // decoded image, the scaled copy and the encoding of the partitions
+    private static final int BYTES_PER_PIXEL = 8;
+    private static final long MB = 1024 * 1024;
 
     public static void main(String[] args)
     {
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
-                Paths.get(args[0]),
-                file -> {
-                    final String fileName = file.getFileName().toString();
-                    return fileName.endsWith(".png")
-                            && !fileName.contains(PARTITION);
-                }))
+        final Path dir = Paths.get(args[0]);
+        final int threads = args.length > 1
+                ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        final long budgetMB = args.length > 2
+                ? Long.parseLong(args[2])
+                : Runtime.getRuntime().maxMemory() / 2 / MB;
+
+        int failed;
+
+        try
+        {
+            failed = run(dir, new SpectrogramPipeline(), threads, budgetMB);
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            log.error("Failed to resize images.", e);
+            failed = -1;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted", e);
+            failed = -1;
+        }
+
+        // So scripts see a batch with failed files, they're retried on the
+        // next run since they're not in the manifest
+        if (failed != 0)
         {
-            for (Path file : stream)
+            System.exit(1);
+        }
+    }
+
+    // Partitions every spectrogram of dir not in its manifest yet, returns
+    // the number that failed
+    public static int run(
+            Path dir,
+            SpectrogramPipeline pipeline,
+            int threads,
+            long budgetMB) throws IOException, InterruptedException
+    {
+        if (threads <= 0 || budgetMB <= 0 || budgetMB > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Invalid threads or budget");
+        }
+
+        final long start = System.nanoTime();
+        final Path manifestFile = dir.resolve(MANIFEST);
+        final Set<String> done = readManifest(manifestFile);
+        final List<Path> files = SpectrogramPipeline.spectrograms(dir);
+
+        final int budget = (int) budgetMB;
+        final Semaphore memory = new Semaphore(budget, true);
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final LongAdder partitions = new LongAdder();
+        int skipped = 0;
+
+        try (BufferedWriter manifest = Files.newBufferedWriter(
+                manifestFile,
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND))
+        {
+            for (Path file : files)
             {
-                final BufferedImage image = ImageIO.read(file.toFile());
-                int type = image.getType();
-
-                final String fileName = file.getFileName().toString();
-
-                final String fileNameWithoutExt
-                        = fileName.substring(0, fileName.lastIndexOf("."));
-
-                partitionHorizontal(
-                        resize(
-                                // Strip the top and bottom from the image.
-                                // It does have much sound data.
-                                image.getSubimage(
-                                        0,
-                                        DOWN_FROM_TOP,
-                                        image.getWidth(),
-                                        image.getHeight() - DOWN_FROM_TOP - UP_FROM_BOTTOM),
-                                SCALE),
-                        PARTITION_WIDTH,
-                        fileNameWithoutExt)
-                        .forEach(triplet ->
-                        {
-                            final String name
-                                    // Original file name without extension
-                                    = triplet.getValue2()
-                                    // with partition number
-                                    + "_" + PARTITION + triplet.getValue1()
-                                    // new file type.
-                                    + "." + IMG_FILE_TYPE;
-                            try
-                            {
-                                ImageIO.write(
-                                        triplet.getValue0(),
-                                        IMG_FILE_TYPE,
-                                        Paths.get(args[0], name).toFile());
-                            }
-                            catch (IOException e)
-                            {
-                                log.warn(
-                                        "Failed to write scaled and "
-                                                + "partitioned image, "
-                                                + name,
-                                        e);
-                            }
-                        });
+                final String name = file.getFileName().toString();
+
+                if (done.contains(name))
+                {
+                    skipped++;
+                    continue;
+                }
+
+                workers.execute(() -> {
+                    int permits = 0;
+
+                    try
+                    {
+                        permits = (int) Math.min(budget, estimateMB(file));
+                        memory.acquire(permits);
+
+                        final int written = write(dir, pipeline, file);
+                        partitions.add(written);
+
+                        record(manifest, name, written);
+                        log.info(
+                                "Partitioned {} into {} ({}/{})",
+                                name,
+                                written,
+                                completed.incrementAndGet(),
+                                files.size() - done.size());
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        permits = 0;
+                    }
+                    catch (Exception e)
+                    {
+                        failed.incrementAndGet();
+                        log.warn("Failed to partition " + name, e);
+                    }
+                    finally
+                    {
+                        memory.release(permits);
+                    }
+                });
             }
+
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
         }
-        catch (IOException e)
+        finally
         {
-            log.error("Failed to resize images.", e);
+            workers.shutdownNow();
         }
+
+        log.info(
+                "{} spectrograms partitioned into {} partitions, {} skipped, "
+                        + "{} failed in {}s",
+                completed.get(),
+                partitions.sum(),
+                skipped,
+                failed.get(),
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+
+        return failed.get();
     }
 
-    private static BufferedImage resize(BufferedImage image, double scale)
+    // Writes the partitions of file to dir, failing on the first that
+    // can't be written so the file isn't recorded as done
+    private static int write(Path dir, SpectrogramPipeline pipeline, Path file)
             throws IOException
     {
-        return Thumbnails.of(image)
-                .height((int) (image.getHeight() * scale))
-                .asBufferedImage();
+        final String fileNameWithoutExt = SpectrogramPipeline.nameWithoutExt(file);
+        final Iterator<Pair<String, BufferedImage>> partitions
+                = pipeline.partition(file).iterator();
+        int p = 0;
+
+        while (partitions.hasNext())
+        {
+            SpectrogramPipeline.writePartition(
+                    partitions.next().getValue1(),
+                    dir.resolve(SpectrogramPipeline.partitionName(fileNameWithoutExt, p)));
+            p++;
+        }
+
+        return p;
     }
 
-    /**
-     * Partitions the given image into equal sized images of the desired width.
-     *
-     * @param image the image to partition.
-     * @param partitionWidth the width of each partition (any excess at the end
-     *     of the image is dropped).
-     * @param fileName the name of the file from which the image originated
-     *     without the file extension type.
-     *
-     * @return A triplet of
-     *     <ol>
-     *         <li>Partitioned Image</li>
-     *         <li>Partition Number</li>
-     *         <li>Original File Name</li>
-     *     </ol>
-     */
-    private static Stream<Triplet<BufferedImage, Integer, String>>
-    partitionHorizontal(
-            BufferedImage image,
-            int partitionWidth,
-            String fileName)
+    // Names of the spectrograms already partitioned
+    private static Set<String> readManifest(Path manifestFile)
+            throws IOException
     {
-        final Stream.Builder<Triplet<BufferedImage, Integer, String>> builder
-                = Stream.builder();
+        final Set<String> done = new HashSet<>();
+
+        if (Files.exists(manifestFile))
+        {
+            for (String line : Files.readAllLines(
+                    manifestFile,
+                    StandardCharsets.UTF_8))
+            {
+                final int tab = line.indexOf('\t');
 
-        for (int w = 0; w < image.getWidth() - partitionWidth; w += partitionWidth)
+                // A line cut short by a crash has no count, do it again
+                if (tab > 0)
+                {
+                    done.add(line.substring(0, tab));
+                }
+            }
+        }
+
+        return done;
+    }
+
+    private static void record(BufferedWriter manifest, String name, long count)
+            throws IOException
+    {
+        synchronized (manifest)
         {
-            builder.accept(
-                    Triplet.with(
-                            image.getSubimage(
-                                    w,
-                                    0,
-                                    partitionWidth,
-                                    image.getHeight()),
-                            w / partitionWidth,
-                            fileName
-                    ));
+            manifest.write(name + "\t" + count);
+            manifest.newLine();
+            manifest.flush();
         }
+    }
 
-        return builder.build();
+    // Memory a spectrogram needs while it's processed, from the size in
+    // its header so nothing is decoded
+    private static long estimateMB(Path file) throws IOException
+    {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile()))
+        {
+            if (in == null)
+            {
+                throw new IOException("Can't read " + file);
+            }
+
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+
+            if (!readers.hasNext())
+            {
+                throw new IOException("Not an image " + file);
+            }
+
+            final ImageReader reader = readers.next();
+
+            try
+            {
+                reader.setInput(in);
+                final long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                return Math.max(1, pixels * BYTES_PER_PIXEL / MB);
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
     }
 }
@@ -0,0 +1,547 @@
+package com.implementsblog.utilities;
+
+import com.github.tjake.rbm.music.MusicDataSetReader;
+import org.javatuples.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Short time Fourier transform spectrograms of WAV files, streamed as the
+ * labeled partitions {@link MusicDataSetReader} expects: grayscale images
+ * with time left to right and log spaced frequency bands, the lowest at
+ * the bottom, like the cropped and scaled Virtual ANS spectrograms.
+ *
+ * The audio is read a hop at a time and every partition is emitted as soon
+ * as its columns are computed, so a file is never held in memory whole.
+ * Brightness is the level of a band relative to a full scale sine, the
+ * same for every file, dropping to black dynamic range decibels below.
+ *
+ * Usage: SpectrogramGenerator wav-dir [out-dir] [threads]
+ */
+public class SpectrogramGenerator
+{
+    private static final Logger log
+            = LoggerFactory.getLogger(SpectrogramGenerator.class);
+
+    public static final int FFT_SIZE = 4096;
+    public static final int HOP = 1024;
+    // Rows of the partitions of ScaleAndPartitionSpectrogram
+    public static final int BANDS = 153;
+    // The range of a piano, A0 to C8
+    public static final double LOW_HZ = 27.5;
+    public static final double HIGH_HZ = 4186.0;
+    public static final double DYNAMIC_RANGE = 80.0;
+    public static final String WAV_FILE_TYPE = "wav";
+
+    public enum Window
+    {
+        RECTANGULAR, HANN, HAMMING;
+
+        float[] coefficients(int size)
+        {
+            final float[] w = new float[size];
+
+            for (int i = 0; i < size; i++)
+            {
+                final double cos = Math.cos(2.0 * Math.PI * i / size);
+
+                switch (this)
+                {
+                    case HANN:
+                        w[i] = (float) (0.5 - 0.5 * cos);
+                        break;
+                    case HAMMING:
+                        w[i] = (float) (0.54 - 0.46 * cos);
+                        break;
+                    default:
+                        w[i] = 1.0f;
+                }
+            }
+
+            return w;
+        }
+    }
+
+    private Window window = Window.HANN;
+    private int fftSize = FFT_SIZE;
+    private int hop = HOP;
+    private int bands = BANDS;
+    private double lowHz = LOW_HZ;
+    private double highHz = HIGH_HZ;
+    private double dynamicRange = DYNAMIC_RANGE;
+    private int partitionWidth = SpectrogramPipeline.PARTITION_WIDTH;
+    private Path cache;
+
+    public SpectrogramGenerator withWindow(Window window)
+    {
+        this.window = window;
+        return this;
+    }
+
+    // Samples per transform, a power of two, and samples between columns
+    public SpectrogramGenerator withFrames(int fftSize, int hop)
+    {
+        if (fftSize < 2 || Integer.bitCount(fftSize) != 1)
+        {
+            throw new IllegalArgumentException("FFT size must be a power of two: "
+                    + fftSize);
+        }
+
+        if (hop <= 0 || hop > fftSize)
+        {
+            throw new IllegalArgumentException("Invalid hop " + hop);
+        }
+
+        this.fftSize = fftSize;
+        this.hop = hop;
+        return this;
+    }
+
+    // Rows of every partition, log spaced between the two frequencies
+    public SpectrogramGenerator withBands(int bands, double lowHz, double highHz)
+    {
+        if (bands <= 0 || lowHz <= 0.0 || highHz <= lowHz)
+        {
+            throw new IllegalArgumentException("Invalid bands " + bands
+                    + " from " + lowHz + "Hz to " + highHz + "Hz");
+        }
+
+        this.bands = bands;
+        this.lowHz = lowHz;
+        this.highHz = highHz;
+        return this;
+    }
+
+    // Decibels from full scale (white) to black
+    public SpectrogramGenerator withDynamicRange(double dynamicRange)
+    {
+        this.dynamicRange = dynamicRange;
+        return this;
+    }
+
+    public SpectrogramGenerator withPartitionWidth(int partitionWidth)
+    {
+        this.partitionWidth = partitionWidth;
+        return this;
+    }
+
+    // Also writes every partition to dir, null for no cache
+    public SpectrogramGenerator withCache(Path dir)
+    {
+        this.cache = dir;
+        return this;
+    }
+
+    public static void main(String[] args)
+    {
+        final Path dir = Paths.get(args[0]);
+        final Path out = args.length > 1 ? Paths.get(args[1]) : dir;
+        final int threads = args.length > 2
+                ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+
+        final long start = System.nanoTime();
+        final SpectrogramGenerator generator = new SpectrogramGenerator();
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final AtomicInteger failed = new AtomicInteger();
+        final LongAdder partitions = new LongAdder();
+
+        try
+        {
+            final List<Path> files = wavs(dir);
+
+            for (Path file : files)
+            {
+                workers.execute(() -> {
+                    try (Stream<Pair<String, BufferedImage>> stream
+                                 = generator.generate(file))
+                    {
+                        final String fileNameWithoutExt
+                                = SpectrogramPipeline.nameWithoutExt(file);
+                        final Iterator<Pair<String, BufferedImage>> generated
+                                = stream.iterator();
+                        int p = 0;
+
+                        // Unlike the cache, a partition that can't be
+                        // written fails the file
+                        while (generated.hasNext())
+                        {
+                            SpectrogramPipeline.writePartition(
+                                    generated.next().getValue1(),
+                                    out.resolve(SpectrogramPipeline.partitionName(
+                                            fileNameWithoutExt, p)));
+                            p++;
+                        }
+
+                        partitions.add(p);
+                        log.info("Wrote {} partitions of {}", p, file);
+                    }
+                    catch (Exception e)
+                    {
+                        failed.incrementAndGet();
+                        log.warn("Failed to generate spectrogram of " + file, e);
+                    }
+                });
+            }
+
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+            log.info(
+                    "Wrote {} partitions of {} files to {}, {} failed, in {}s",
+                    partitions.sum(),
+                    files.size(),
+                    out,
+                    failed.get(),
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+        }
+        catch (UncheckedIOException e)
+        {
+            log.error("Failed to generate spectrograms.", e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted", e);
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
+    }
+
+    // A reader of the partitions of every WAV file in the two directories,
+    // none of them written anywhere but the cache
+    public MusicDataSetReader read(Path trainingDir, Path testDir)
+    {
+        return new MusicDataSetReader(
+                generateAll(trainingDir),
+                generateAll(testDir));
+    }
+
+    // The labeled partitions of every WAV file in dir, in file order
+    public Stream<Pair<String, BufferedImage>> generateAll(Path dir)
+    {
+        return wavs(dir).stream().flatMap(this::generate);
+    }
+
+    // WAV files in dir, sorted by name
+    public static List<Path> wavs(Path dir)
+    {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                dir,
+                file -> file.getFileName().toString().endsWith("." + WAV_FILE_TYPE)))
+        {
+            final List<Path> files = new ArrayList<>();
+            stream.forEach(files::add);
+            files.sort(null);
+            return files;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The labeled partitions of one WAV file, computed and written through
+    // to the cache as they're consumed. Any excess at the end is dropped.
+    public Stream<Pair<String, BufferedImage>> generate(Path wavFile)
+    {
+        final String fileNameWithoutExt = SpectrogramPipeline.nameWithoutExt(wavFile);
+        final String label = SpectrogramPipeline.label(fileNameWithoutExt);
+        final Partitions partitions;
+
+        try
+        {
+            partitions = new Partitions(wavFile);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        final Iterator<Pair<String, BufferedImage>> labeled
+                = new Iterator<Pair<String, BufferedImage>>()
+        {
+            private int p = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return partitions.hasNext();
+            }
+
+            @Override
+            public Pair<String, BufferedImage> next()
+            {
+                final BufferedImage partition = partitions.next();
+
+                if (cache != null)
+                {
+                    SpectrogramPipeline.write(partition, cache.resolve(
+                            SpectrogramPipeline.partitionName(fileNameWithoutExt, p)));
+                }
+
+                p++;
+                return Pair.with(label, partition);
+            }
+        };
+
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(
+                        labeled,
+                        Spliterator.ORDERED | Spliterator.NONNULL),
+                false)
+                .onClose(partitions::close);
+    }
+
+    // The partitions of one file, read and transformed a hop at a time
+    private class Partitions implements Iterator<BufferedImage>, AutoCloseable
+    {
+        private final AudioInputStream audio;
+        private final int channels;
+        private final byte[] bytes;
+        private final float[] frame = new float[fftSize];
+        private final float[] windowed = window.coefficients(fftSize);
+        private final float[] re = new float[fftSize];
+        private final float[] im = new float[fftSize];
+        private final Fft fft = new Fft(fftSize);
+
+        // FFT bins [first, last] of every band, lowest band first
+        private final int[] first = new int[bands];
+        private final int[] last = new int[bands];
+        // Magnitude of a full scale sine
+        private final float reference;
+
+        private BufferedImage next;
+        private boolean ended;
+
+        Partitions(Path wavFile) throws IOException
+        {
+            AudioInputStream in;
+
+            try
+            {
+                in = AudioSystem.getAudioInputStream(
+                        new BufferedInputStream(Files.newInputStream(wavFile)));
+            }
+            catch (UnsupportedAudioFileException e)
+            {
+                throw new IOException("Not a WAV file " + wavFile, e);
+            }
+
+            final AudioFormat format = in.getFormat();
+            final AudioFormat pcm = new AudioFormat(
+                    format.getSampleRate(),
+                    16,
+                    format.getChannels(),
+                    true,
+                    false);
+
+            if (!format.matches(pcm))
+            {
+                in = AudioSystem.getAudioInputStream(pcm, in);
+            }
+
+            this.audio = in;
+            this.channels = pcm.getChannels();
+            this.bytes = new byte[hop * pcm.getFrameSize()];
+
+            float sum = 0.0f;
+            for (float w : windowed)
+            {
+                sum += w;
+            }
+
+            this.reference = sum / 2.0f;
+
+            final double binHz = pcm.getSampleRate() / fftSize;
+            final int nyquist = fftSize / 2;
+            final double ratio = highHz / lowHz;
+
+            for (int b = 0; b < bands; b++)
+            {
+                final double from = lowHz * Math.pow(ratio, (double) b / bands);
+                final double to = lowHz * Math.pow(ratio, (double) (b + 1) / bands);
+
+                first[b] = Math.min(nyquist, (int) Math.ceil(from / binHz));
+                last[b] = Math.min(nyquist, (int) Math.floor(to / binHz));
+
+                // Bands narrower than a bin take the nearest one
+                if (last[b] < first[b])
+                {
+                    first[b] = last[b] = Math.min(
+                            nyquist,
+                            (int) Math.round(Math.sqrt(from * to) / binHz));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (next == null && !ended)
+            {
+                next = partition();
+            }
+
+            return next != null;
+        }
+
+        @Override
+        public BufferedImage next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+
+            final BufferedImage partition = next;
+            next = null;
+            return partition;
+        }
+
+        // The next whole partition, null at the end of the audio
+        private BufferedImage partition()
+        {
+            final BufferedImage image = new BufferedImage(
+                    partitionWidth,
+                    bands,
+                    BufferedImage.TYPE_3BYTE_BGR);
+            final byte[] pixels
+                    = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+
+            for (int x = 0; x < partitionWidth; x++)
+            {
+                if (!readHop())
+                {
+                    ended = true;
+                    close();
+                    return null;
+                }
+
+                column(pixels, x);
+            }
+
+            return image;
+        }
+
+        // Shifts the next hop of samples, mixed down to mono, into the
+        // frame, false when there are none left
+        private boolean readHop()
+        {
+            int read = 0;
+
+            try
+            {
+                for (int n; read < bytes.length
+                        && (n = audio.read(bytes, read, bytes.length - read)) > 0; )
+                {
+                    read += n;
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+
+            final int samples = read / (2 * channels);
+
+            if (samples == 0)
+            {
+                return false;
+            }
+
+            System.arraycopy(frame, hop, frame, 0, fftSize - hop);
+
+            final float scale = 1.0f / (32768.0f * channels);
+            for (int s = 0, i = 0; s < hop; s++)
+            {
+                float sum = 0.0f;
+
+                for (int c = 0; c < channels && s < samples; c++, i += 2)
+                {
+                    sum += (short) ((bytes[i] & 0xff) | (bytes[i + 1] << 8));
+                }
+
+                frame[fftSize - hop + s] = sum * scale;
+            }
+
+            return true;
+        }
+
+        // Transforms the frame into column x, one band per row
+        private void column(byte[] pixels, int x)
+        {
+            for (int i = 0; i < fftSize; i++)
+            {
+                re[i] = frame[i] * windowed[i];
+                im[i] = 0.0f;
+            }
+
+            fft.transform(re, im);
+
+            final float db = (float) dynamicRange;
+
+            for (int b = 0; b < bands; b++)
+            {
+                float max = 0.0f;
+
+                for (int k = first[b]; k <= last[b]; k++)
+                {
+                    max = Math.max(max, re[k] * re[k] + im[k] * im[k]);
+                }
+
+                final float level = 20.0f * (float) Math.log10(
+                        Math.sqrt(max) / reference + 1e-12);
+                final int value = Math.max(0, Math.min(255,
+                        Math.round(255.0f * (level + db) / db)));
+
+                final int offset = ((bands - 1 - b) * partitionWidth + x) * 3;
+                pixels[offset] = (byte) value;
+                pixels[offset + 1] = (byte) value;
+                pixels[offset + 2] = (byte) value;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            try
+            {
+                audio.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Failed to close audio", e);
+            }
+        }
+    }
+}
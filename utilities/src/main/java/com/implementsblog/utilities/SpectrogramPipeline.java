@@ -0,0 +1,212 @@
+package com.implementsblog.utilities;
+
+import com.github.tjake.rbm.music.MusicDataSetReader;
+import net.coobird.thumbnailator.Thumbnails;
+import org.javatuples.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Crops, scales and partitions spectrogram images in memory and streams the
+ * labeled partitions, so they can be fed to a {@link MusicDataSetReader}
+ * without being encoded to PNG files and decoded again.
+ *
+ * With a cache directory the partitions are also written there, named the
+ * way {@link MusicDataSetReader} expects, so a later run can read them
+ * from disk instead.
+ */
+public class SpectrogramPipeline
+{
+    private static final Logger log
+            = LoggerFactory.getLogger(SpectrogramPipeline.class);
+
+    public static final int DOWN_FROM_TOP = 100;
+    public static final int UP_FROM_BOTTOM = 80;
+    public static final double SCALE = 0.75;
+    public static final int PARTITION_WIDTH = 500;
+    public static final String IMG_FILE_TYPE = "png";
+    public static final String PARTITION = "partition";
+
+    private int downFromTop = DOWN_FROM_TOP;
+    private int upFromBottom = UP_FROM_BOTTOM;
+    private double scale = SCALE;
+    private int partitionWidth = PARTITION_WIDTH;
+    private Path cache;
+
+    // Rows stripped from the top and the bottom of every spectrogram
+    public SpectrogramPipeline withCrop(int downFromTop, int upFromBottom)
+    {
+        this.downFromTop = downFromTop;
+        this.upFromBottom = upFromBottom;
+        return this;
+    }
+
+    public SpectrogramPipeline withScale(double scale)
+    {
+        this.scale = scale;
+        return this;
+    }
+
+    public SpectrogramPipeline withPartitionWidth(int partitionWidth)
+    {
+        this.partitionWidth = partitionWidth;
+        return this;
+    }
+
+    // Also writes every partition to dir, null for no cache
+    public SpectrogramPipeline withCache(Path dir)
+    {
+        this.cache = dir;
+        return this;
+    }
+
+    // A reader of the partitions of every spectrogram in the two
+    // directories, none of them written anywhere but the cache
+    public MusicDataSetReader read(Path trainingDir, Path testDir)
+    {
+        return new MusicDataSetReader(
+                partitionAll(trainingDir),
+                partitionAll(testDir));
+    }
+
+    // The labeled partitions of every spectrogram in dir, in file order.
+    // Files that already are partitions are skipped.
+    public Stream<Pair<String, BufferedImage>> partitionAll(Path dir)
+    {
+        return spectrograms(dir).stream().flatMap(this::partition);
+    }
+
+    // Spectrogram files in dir, sorted by name
+    public static List<Path> spectrograms(Path dir)
+    {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                dir,
+                file -> {
+                    final String fileName = file.getFileName().toString();
+                    return fileName.endsWith("." + IMG_FILE_TYPE)
+                            && !fileName.contains(PARTITION);
+                }))
+        {
+            final List<Path> files = new ArrayList<>();
+            stream.forEach(files::add);
+            files.sort(null);
+            return files;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The labeled partitions of one spectrogram, written through to the
+    // cache as they're consumed
+    public Stream<Pair<String, BufferedImage>> partition(Path file)
+    {
+        final String fileNameWithoutExt = nameWithoutExt(file);
+        final String label = label(fileNameWithoutExt);
+        final BufferedImage partitioned;
+
+        try
+        {
+            partitioned = scaleAndCrop(ImageIO.read(file.toFile()));
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        final int partitions = partitions(partitioned.getWidth());
+
+        return IntStream.range(0, partitions).mapToObj(p -> {
+            final BufferedImage partition = partitioned.getSubimage(
+                    p * partitionWidth,
+                    0,
+                    partitionWidth,
+                    partitioned.getHeight());
+
+            if (cache != null)
+            {
+                write(partition, cache.resolve(
+                        partitionName(fileNameWithoutExt, p)));
+            }
+
+            return Pair.with(label, partition);
+        });
+    }
+
+    // Strips the top and bottom, they don't have much sound data, and
+    // scales what's left
+    public BufferedImage scaleAndCrop(BufferedImage image) throws IOException
+    {
+        final BufferedImage cropped = image.getSubimage(
+                0,
+                downFromTop,
+                image.getWidth(),
+                image.getHeight() - downFromTop - upFromBottom);
+
+        return Thumbnails.of(cropped)
+                .height((int) (cropped.getHeight() * scale))
+                .asBufferedImage();
+    }
+
+    // Whole partitions of an image of the given width, any excess at the
+    // end of the image is dropped
+    public int partitions(int width)
+    {
+        return width / partitionWidth;
+    }
+
+    // Original file name with the partition number, the part before the
+    // first '_' is the label
+    public static String partitionName(String fileNameWithoutExt, int p)
+    {
+        return fileNameWithoutExt + "_" + PARTITION + p + "." + IMG_FILE_TYPE;
+    }
+
+    public static String nameWithoutExt(Path file)
+    {
+        final String fileName = file.getFileName().toString();
+        return fileName.substring(0, fileName.lastIndexOf('.'));
+    }
+
+    // Same label MusicDataSetReader gives the partition files
+    static String label(String fileNameWithoutExt)
+    {
+        final int end = fileNameWithoutExt.indexOf('_');
+        return end < 0 ? fileNameWithoutExt : fileNameWithoutExt.substring(0, end);
+    }
+
+    public static void writePartition(BufferedImage partition, Path toSave)
+            throws IOException
+    {
+        if (!ImageIO.write(partition, IMG_FILE_TYPE, toSave.toFile()))
+        {
+            throw new IOException("No " + IMG_FILE_TYPE + " writer for " + toSave);
+        }
+    }
+
+    // Logs a partition that can't be written and carries on, for caches
+    static void write(BufferedImage partition, Path toSave)
+    {
+        try
+        {
+            writePartition(partition, toSave);
+        }
+        catch (IOException e)
+        {
+            log.warn("Failed to write partition " + toSave, e);
+        }
+    }
+}